@@ -0,0 +1,150 @@
+package src;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Compares two JMH result files written with "-rf csv -prof gc" and
+ * fails when throughput or allocation regressed beyond a tolerance:
+ *
+ *   java -cp benchmarks/target/benchmarks.jar src.BenchmarkGate \
+ *        baseline.csv current.csv [max-slowdown-%] [max-allocation-growth-%]
+ *
+ * Both tolerances default to 10%. Exits with status 1 on a regression,
+ * so it can gate a build.
+ */
+public final class BenchmarkGate {
+
+    private static final String ALLOCATION = ":gc.alloc.rate.norm";
+
+    // Allocation differences below this many bytes per op are noise
+    private static final double ALLOCATION_SLACK = 8.0;
+
+    private BenchmarkGate() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BenchmarkGate <baseline.csv> <current.csv> "
+                + "[max-slowdown-%] [max-allocation-growth-%]");
+            System.exit(2);
+        }
+
+        double maxSlowdown = (args.length > 2) ? Double.parseDouble(args[2]) / 100 : 0.10;
+        double maxGrowth = (args.length > 3) ? Double.parseDouble(args[3]) / 100 : 0.10;
+
+        Map<String, Row> baseline = read(Paths.get(args[0]));
+        Map<String, Row> current = read(Paths.get(args[1]));
+
+        int regressions = 0;
+        for (Row now : current.values()) {
+            Row before = baseline.get(now.key);
+            if (before == null) {
+                continue;
+            }
+
+            String verdict = null;
+            if (now.key.contains(ALLOCATION)) {
+                if (now.score - before.score > ALLOCATION_SLACK
+                        && now.score > before.score * (1 + maxGrowth)) {
+                    verdict = "MORE ALLOCATION";
+                }
+            } else if (now.key.indexOf(':') < 0) {
+                boolean higherIsBetter = now.mode.equals("thrpt");
+                if (higherIsBetter ? now.score < before.score * (1 - maxSlowdown)
+                                   : now.score > before.score * (1 + maxSlowdown)) {
+                    verdict = "SLOWER";
+                }
+            } else {
+                continue;   // other profiler counters are informational
+            }
+
+            System.out.printf("%-16s %-70s %14.3f -> %14.3f %s%n",
+                (verdict != null) ? verdict : "ok", now.key, before.score, now.score, now.unit);
+            if (verdict != null) {
+                regressions++;
+            }
+        }
+
+        if (regressions > 0) {
+            System.out.println(regressions + " regression(s)");
+            System.exit(1);
+        }
+        System.out.println("No regressions");
+    }
+
+    /** One result line: benchmark name plus parameters, score and unit. */
+    static final class Row {
+        final String key;
+        final String mode;
+        final double score;
+        final String unit;
+
+        Row(String key, String mode, double score, String unit) {
+            this.key = key;
+            this.mode = mode;
+            this.score = score;
+            this.unit = unit;
+        }
+    }
+
+    private static Map<String, Row> read(Path file) throws IOException {
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        if (lines.isEmpty()) {
+            throw new IOException(file + " is empty");
+        }
+
+        List<String> header = split(lines.get(0));
+        int benchmark = header.indexOf("Benchmark");
+        int mode = header.indexOf("Mode");
+        int score = header.indexOf("Score");
+        int unit = header.indexOf("Unit");
+        if (benchmark < 0 || mode < 0 || score < 0 || unit < 0) {
+            throw new IOException(file + " is not a JMH CSV result file");
+        }
+
+        Map<String, Row> rows = new LinkedHashMap<>();
+        for (String line : lines.subList(1, lines.size())) {
+            if (line.isBlank()) {
+                continue;
+            }
+            List<String> cells = split(line);
+            StringBuilder key = new StringBuilder(cells.get(benchmark));
+            for (int i = unit + 1; i < cells.size(); i++) {
+                if (!cells.get(i).isEmpty()) {
+                    key.append(' ').append(header.get(i).replace("Param: ", "")).append('=').append(cells.get(i));
+                }
+            }
+            double value = Double.parseDouble(cells.get(score));
+            rows.put(key.toString(), new Row(key.toString(), cells.get(mode), value, cells.get(unit)));
+        }
+        return rows;
+    }
+
+    /** Split one CSV line, honouring double-quoted cells. */
+    private static List<String> split(String line) {
+        List<String> cells = new ArrayList<>();
+        StringBuilder cell = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    cell.append('"');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == ',' && !quoted) {
+                cells.add(cell.toString());
+                cell.setLength(0);
+            } else {
+                cell.append(c);
+            }
+        }
+        cells.add(cell.toString());
+        return cells;
+    }
+}
@@ -0,0 +1,74 @@
+package src;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Function call overhead: argument binding, frame setup and returns,
+ * for a trivial call and for recursion. Run with the bytecode tier off
+ * (-1) and at its default threshold. fib is pure and recursive, so it is
+ * remembered: after the first call, callRecursiveFib measures the lookup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CallBenchmarks {
+
+    @Param({"-1", "1000"})
+    public int tierThreshold;
+
+    private Lexi.ExecutionContext context;
+    private Lexi.Expression add;
+    private Lexi.Expression fib;
+    private Lexi.Expression greet;
+
+    @Setup
+    public void setup() throws Lexi.LexiException {
+        Lexi.LexiRuntime runtime = Programs.runtime("");
+        runtime.setTierThreshold(tierThreshold);
+
+        Lexi.ParsedProgram program = Programs.parse(
+            "function add a b",
+            "    return a + b",
+            "end",
+            "function fib n",
+            "    if n < 2",
+            "        return n",
+            "    end",
+            "    set x to call fib with n - 1",
+            "    set y to call fib with n - 2",
+            "    return x + y",
+            "end",
+            "function greet name",
+            "    return \"Hello, \" + name",
+            "end",
+            "set r to call add with 3, 4",
+            "set r to call fib with 15",
+            "set s to call greet with \"Ada\"");
+        context = Programs.load(runtime, new Lexi.ParsedProgram(program.scope,
+            java.util.Arrays.copyOf(program.tree, 3)));
+
+        add = ((Lexi.SetStatement) Programs.statement(program, 3)).value;
+        fib = ((Lexi.SetStatement) Programs.statement(program, 4)).value;
+        greet = ((Lexi.SetStatement) Programs.statement(program, 5)).value;
+    }
+
+    @Benchmark
+    public Object callAdd() throws Lexi.LexiException {
+        return add.evaluate(context);
+    }
+
+    @Benchmark
+    public Object callRecursiveFib() throws Lexi.LexiException {
+        return fib.evaluate(context);
+    }
+
+    @Benchmark
+    public Object callWithText() throws Lexi.LexiException {
+        return greet.evaluate(context);
+    }
+}
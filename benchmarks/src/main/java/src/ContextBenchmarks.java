@@ -0,0 +1,68 @@
+package src;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Variable lookups and stores in execution frames: local slots, the
+ * global fallback from a function frame, and the boxing boundary.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContextBenchmarks {
+
+    private Lexi.ExecutionContext globals;
+    private Lexi.ExecutionContext frame;
+    private int local;
+    private int global;
+    private int text;
+
+    @Setup
+    public void setup() {
+        Lexi.Scope globalScope = new Lexi.Scope("global", null);
+        Lexi.Scope functionScope = new Lexi.Scope("f", globalScope);
+
+        globals = new Lexi.ExecutionContext(globalScope, Programs.runtime(""));
+        globals.setLong(globalScope.define("limit"), 100);
+        globals.set(globalScope.define("title"), "report");
+
+        local = functionScope.define("n");
+        global = functionScope.define("limit");
+        text = functionScope.define("title");
+        functionScope.link();
+
+        frame = new Lexi.ExecutionContext(functionScope, globals);
+        frame.setLong(local, 42);
+    }
+
+    @Benchmark
+    public long getLongLocal() throws Lexi.LexiException {
+        return frame.getLong(local);
+    }
+
+    @Benchmark
+    public long getLongGlobal() throws Lexi.LexiException {
+        return frame.getLong(global);
+    }
+
+    @Benchmark
+    public Object getBoxed() {
+        return frame.get(local);
+    }
+
+    @Benchmark
+    public Object getGlobalText() {
+        return frame.get(text);
+    }
+
+    @Benchmark
+    public Lexi.ExecutionContext setLong() {
+        frame.setLong(local, frame.numbers[local] + 1);
+        return frame;
+    }
+}
@@ -0,0 +1,75 @@
+package src;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Deeply nested if/while/for blocks: matching block ends when the
+ * program is compiled, and running the nested loops afterwards.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ControlFlowBenchmarks {
+
+    @Param({"4", "16"})
+    public int depth;
+
+    private List<String> source;
+    private Lexi.ParsedProgram program;
+    private Lexi.LexiRuntime runtime;
+
+    @Setup
+    public void setup() {
+        source = nested(depth);
+        program = Lexi.parseProgram(source);
+        runtime = Programs.runtime("");
+    }
+
+    /** for/if/while blocks nested to the given depth, each with an else arm. */
+    static List<String> nested(int depth) {
+        List<String> lines = new ArrayList<>();
+        lines.add("set total to 0");
+        for (int level = 0; level < depth; level++) {
+            String indent = "    ".repeat(level);
+            switch (level % 3) {
+                case 0:
+                    lines.add(indent + "for each i" + level + " from 1 to 2");
+                    break;
+                case 1:
+                    lines.add(indent + "if total >= 0");
+                    break;
+                default:
+                    lines.add(indent + "set w" + level + " to 0");
+                    lines.add(indent + "while w" + level + " < 2");
+                    lines.add(indent + "    increase w" + level);
+                    break;
+            }
+            lines.add(indent + "    increase total");
+        }
+        for (int level = depth - 1; level >= 0; level--) {
+            String indent = "    ".repeat(level);
+            if (level % 3 == 1) {
+                lines.add(indent + "else");
+                lines.add(indent + "    decrease total");
+            }
+            lines.add(indent + "end");
+        }
+        return lines;
+    }
+
+    @Benchmark
+    public Lexi.ParsedProgram compileNested() {
+        return Lexi.parseProgram(source);
+    }
+
+    @Benchmark
+    public Lexi.ExecutionContext executeNested() throws Lexi.LexiException {
+        return Programs.load(runtime, program);
+    }
+}
@@ -0,0 +1,56 @@
+package src;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * End-to-end runs of the programs in examples/, with canned answers for
+ * their "ask" prompts and display output discarded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExampleBenchmarks {
+
+    static final Map<String, String> INPUT = Map.of(
+        "hello", "Ann\n",
+        "calculator", "12\n5\n",
+        "finance_calculator", "Bob\n5000\n3\n800\n300\n200\n1\n10000\n12\n24\n");
+
+    @Param({"hello", "calculator", "finance_calculator"})
+    public String example;
+
+    private List<String> source;
+    private Lexi.ParsedProgram program;
+
+    @Setup
+    public void setup() throws IOException {
+        source = Programs.example(example);
+        program = Lexi.parseProgram(source);
+    }
+
+    /** Parse and run, as "java src.Lexi file" does without the cache. */
+    @Benchmark
+    public Lexi.ParsedProgram parseAndRun() throws Lexi.LexiException {
+        Lexi.ParsedProgram parsed = Lexi.parseProgram(source);
+        run(parsed);
+        return parsed;
+    }
+
+    /** Run an already parsed program, as after a cache hit. */
+    @Benchmark
+    public Lexi.ParsedProgram run() throws Lexi.LexiException {
+        run(program);
+        return program;
+    }
+
+    private void run(Lexi.ParsedProgram parsed) throws Lexi.LexiException {
+        Lexi.runProgram(Programs.runtime(INPUT.get(example)), parsed);
+    }
+}
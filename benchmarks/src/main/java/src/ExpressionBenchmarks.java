@@ -0,0 +1,91 @@
+package src;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Expression parsing and evaluation of compiled expression trees,
+ * including string concatenation and conditions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExpressionBenchmarks {
+
+    static final String ARITHMETIC = "(a + b) * c - a / (b + 1) % 7";
+    static final String FRACTION = "a / 7 * 100 + 0.5";
+
+    private Lexi.ParsedProgram program;
+    private Lexi.ExecutionContext context;
+    private Lexi.Expression arithmetic;
+    private Lexi.Expression fraction;
+    private Lexi.Expression concatenation;
+    private Lexi.Condition condition;
+    private Lexi.ParsedProgram report;
+    private Lexi.LexiRuntime reportRuntime;
+
+    @Setup
+    public void setup() throws Lexi.LexiException {
+        program = Programs.parse(
+            "set a to 12",
+            "set b to 5",
+            "set c to 3",
+            "set name to \"Ada\"",
+            "set result to " + ARITHMETIC,
+            "set message to \"Hello \" + name + \", you have \" + a + \" items and \" + b + \" left\"",
+            "while a * 2 >= b + c",
+            "end");
+        context = Programs.load(Programs.runtime(""), new Lexi.ParsedProgram(program.scope,
+            java.util.Arrays.copyOf(program.tree, 4)));
+
+        arithmetic = ((Lexi.SetStatement) Programs.statement(program, 4)).value;
+        fraction = new Lexi.Parser(FRACTION, program.scope).parseExpression();
+        concatenation = ((Lexi.SetStatement) Programs.statement(program, 5)).value;
+        condition = ((Lexi.WhileStatement) Programs.statement(program, 6)).condition;
+
+        report = Programs.parse(
+            "set out to \"\"",
+            "for i from 1 to 10000",
+            "    set out to out + \"line \" + i + \": ok \"",
+            "end");
+        reportRuntime = Programs.runtime("");
+    }
+
+    @Benchmark
+    public Lexi.Expression parseArithmetic() {
+        return new Lexi.Parser(ARITHMETIC, program.scope).parseExpression();
+    }
+
+    @Benchmark
+    public int evaluateArithmetic() throws Lexi.LexiException {
+        return arithmetic.evaluateInt(context);
+    }
+
+    /** Whole numbers that divide unevenly, so the result widens to a double. */
+    @Benchmark
+    public Object evaluateFraction() throws Lexi.LexiException {
+        return fraction.evaluate(context);
+    }
+
+    @Benchmark
+    public Object evaluateConcatenation() throws Lexi.LexiException {
+        return concatenation.evaluate(context);
+    }
+
+    @Benchmark
+    public boolean evaluateCondition() throws Lexi.LexiException {
+        return condition.evaluate(context);
+    }
+
+    /** Accumulating a report with "set out to out + ..." (10,000 appends). */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Lexi.LexiRuntime appendReport() throws Lexi.LexiException {
+        Lexi.runProgram(reportRuntime, report);
+        return reportRuntime;
+    }
+}
@@ -0,0 +1,40 @@
+package src;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Building a list of numbers and reading it back by position.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListBenchmarks {
+
+    private Lexi.ParsedProgram fillAndSum;
+    private Lexi.LexiRuntime runtime;
+
+    @Setup
+    public void setup() {
+        fillAndSum = Programs.parse(
+            "create list values",
+            "for i from 1 to 1000",
+            "    add i * 3 to values",
+            "end",
+            "set total to 0",
+            "for i from 1 to length of values",
+            "    set total to total + item i of values",
+            "end");
+        runtime = Programs.runtime("");
+    }
+
+    @Benchmark
+    public Lexi.LexiRuntime fillAndSum() throws Lexi.LexiException {
+        Lexi.runProgram(runtime, fillAndSum);
+        return runtime;
+    }
+}
@@ -0,0 +1,51 @@
+package src;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * A display-heavy loop writing through System.out's kind of stream
+ * (autoflushing PrintStream) versus the runtime's own output buffer.
+ * Both sinks discard the bytes, so this measures the output path only.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutputBenchmarks {
+
+    @Param({"printStream", "buffer"})
+    public String sink;
+
+    private Lexi.ParsedProgram program;
+    private Lexi.LexiRuntime runtime;
+
+    @Setup
+    public void setup() {
+        program = Programs.parse(
+            "for i from 1 to 1000",
+            "    display \"row \" + i",
+            "end");
+        Reader input = new StringReader("");
+        Writer output;
+        if (sink.equals("buffer")) {
+            output = new Lexi.OutputBuffer(Channels.newChannel(OutputStream.nullOutputStream()),
+                                           StandardCharsets.UTF_8, false);
+        } else {
+            output = new Lexi.PrintStreamWriter(new PrintStream(OutputStream.nullOutputStream(), true));
+        }
+        runtime = new Lexi.LexiRuntime(input, output);
+    }
+
+    @Benchmark
+    public Lexi.LexiRuntime displayLoop() throws Lexi.LexiException {
+        Lexi.runProgram(runtime, program);
+        return runtime;
+    }
+}
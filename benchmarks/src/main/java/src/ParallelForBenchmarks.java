@@ -0,0 +1,66 @@
+package src;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * A loop whose iterations are independent (a call per iteration, summed),
+ * run as a plain for and as a parallel for with a sum reduction. The
+ * gap between the two grows with the number of cores.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParallelForBenchmarks {
+
+    @Param({"1000", "100000"})
+    public int iterations;
+
+    private Lexi.LexiRuntime runtime;
+    private Lexi.ParsedProgram sequential;
+    private Lexi.ParsedProgram parallel;
+
+    @Setup
+    public void setup() {
+        runtime = Programs.runtime("");
+        runtime.setTierThreshold(-1);
+        sequential = Programs.parse(program("for i from 1 to " + iterations));
+        parallel = Programs.parse(program("parallel for i from 1 to " + iterations + " reducing sum total"));
+    }
+
+    private static String[] program(String loop) {
+        return new String[] {
+            "function collatz n",
+            "    set steps to 0",
+            "    while n > 1",
+            "        if n % 2 == 0",
+            "            set n to n / 2",
+            "        else",
+            "            set n to 3 * n + 1",
+            "        end",
+            "        increase steps",
+            "    end",
+            "    return steps",
+            "end",
+            "set total to 0",
+            loop,
+            "    set steps to call collatz with i",
+            "    increase total by steps",
+            "end"
+        };
+    }
+
+    @Benchmark
+    public Lexi.ExecutionContext sequentialFor() throws Lexi.LexiException {
+        return Programs.load(runtime, sequential);
+    }
+
+    @Benchmark
+    public Lexi.ExecutionContext parallelFor() throws Lexi.LexiException {
+        return Programs.load(runtime, parallel);
+    }
+}
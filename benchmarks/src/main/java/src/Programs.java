@@ -0,0 +1,65 @@
+package src;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Shared fixtures for the benchmarks: parsing snippets, creating quiet
+ * runtimes and locating the example programs.
+ */
+final class Programs {
+
+    private static final PrintStream NOWHERE = new PrintStream(OutputStream.nullOutputStream());
+
+    private Programs() {
+    }
+
+    /** A runtime whose "display" output is discarded, answering "ask" with input. */
+    static Lexi.LexiRuntime runtime(String input) {
+        return new Lexi.LexiRuntime(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), NOWHERE);
+    }
+
+    /** Parse lines of Lexi source with the interpreter's own grammar. */
+    static Lexi.ParsedProgram parse(String... lines) {
+        return Lexi.parseProgram(Arrays.asList(lines));
+    }
+
+    /** Run a parsed program once in runtime, leaving its functions registered. */
+    static Lexi.ExecutionContext load(Lexi.LexiRuntime runtime, Lexi.ParsedProgram parsed)
+            throws Lexi.LexiException {
+        Lexi.ExecutionContext context = new Lexi.ExecutionContext(parsed.scope, runtime);
+        Lexi.executeBlock(parsed.tree, context);
+        return context;
+    }
+
+    /** The statement at the given index of a parsed program. */
+    static Lexi.Statement statement(Lexi.ParsedProgram parsed, int index) {
+        return parsed.tree[index];
+    }
+
+    /**
+     * Source lines of examples/<name>.lexi. The directory can be set with
+     * -Dlexi.examples=...; by default it is looked up from the working
+     * directory and its parent, so the jar runs from the repo root or
+     * from benchmarks/.
+     */
+    static List<String> example(String name) throws IOException {
+        String configured = System.getProperty("lexi.examples");
+        List<Path> candidates = new ArrayList<>();
+        if (configured != null) {
+            candidates.add(Paths.get(configured));
+        }
+        candidates.add(Paths.get("examples"));
+        candidates.add(Paths.get("..", "examples"));
+
+        for (Path dir : candidates) {
+            Path file = dir.resolve(name + ".lexi");
+            if (Files.isRegularFile(file)) {
+                return Files.readAllLines(file, StandardCharsets.UTF_8);
+            }
+        }
+        throw new FileNotFoundException(name + ".lexi not found (set -Dlexi.examples=<dir>)");
+    }
+}
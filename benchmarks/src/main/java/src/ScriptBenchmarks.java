@@ -0,0 +1,60 @@
+package src;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Per-request cost of the embedding API: executing an already compiled
+ * rule with fresh bindings, from one thread and from several at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScriptBenchmarks {
+
+    static final String RULE = String.join("\n",
+        "if age >= 18",
+        "    if country == \"NL\"",
+        "        set verdict to \"adult\"",
+        "    else",
+        "        set verdict to \"adult-abroad\"",
+        "    end",
+        "else",
+        "    set verdict to \"minor\"",
+        "end",
+        "set score to age * 3 + 7",
+        "return verdict");
+
+    private static final PrintStream NOWHERE = new PrintStream(OutputStream.nullOutputStream());
+
+    private Lexi.LexiScript rule;
+    private Map<String, Object> bindings;
+
+    @Setup
+    public void setup() {
+        rule = Lexi.compile(RULE);
+        bindings = Map.of("age", 42, "country", "NL");
+    }
+
+    @Benchmark
+    public Object execute() throws Lexi.LexiException {
+        return rule.execute(bindings, NOWHERE).returnValue();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object executeConcurrently() throws Lexi.LexiException {
+        return rule.execute(bindings, NOWHERE).returnValue();
+    }
+
+    @Benchmark
+    public Lexi.LexiScript compile() {
+        return Lexi.compile(RULE);
+    }
+}
@@ -0,0 +1,57 @@
+package src;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Statement compilation (pattern matching each line into a node) and
+ * dispatch of already compiled statements.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatementBenchmarks {
+
+    static final String[] STRAIGHT_LINE = {
+        "create a number called total with value 0",
+        "create a number called count with value 3",
+        "create a text called label with value \"sum\"",
+        "set total to total + count * 2",
+        "increase total by 5",
+        "decrease count by 1",
+        "set total to total - count",
+        "increase count",
+        "set label to \"sum: \" + total",
+        "if total > 10",
+        "    set total to total / 2",
+        "else",
+        "    set total to total * 2",
+        "end",
+        "create a list called items",
+        "add total to items",
+    };
+
+    private Lexi.ParsedProgram program;
+    private Lexi.ExecutionContext context;
+
+    @Setup
+    public void setup() {
+        program = Programs.parse(STRAIGHT_LINE);
+        context = new Lexi.ExecutionContext(program.scope, Programs.runtime(""));
+    }
+
+    @Benchmark
+    public Lexi.ParsedProgram compileStatements() {
+        return Programs.parse(STRAIGHT_LINE);
+    }
+
+    @Benchmark
+    public Lexi.ExecutionContext executeStatements() throws Lexi.LexiException {
+        Lexi.executeBlock(program.tree, context);
+        return context;
+    }
+}
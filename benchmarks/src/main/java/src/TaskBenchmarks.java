@@ -0,0 +1,69 @@
+package src;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Eight independent calls made one after another, and spawned as tasks
+ * and then waited for. The gap shows what a task costs to start and join,
+ * and on a multi-core machine how much running the calls at once saves.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TaskBenchmarks {
+
+    @Param({"10", "100000"})
+    public int work;
+
+    private Lexi.LexiRuntime runtime;
+    private Lexi.ParsedProgram sequential;
+    private Lexi.ParsedProgram spawned;
+
+    @Setup
+    public void setup() {
+        runtime = Programs.runtime("");
+        runtime.setTierThreshold(-1);
+        String[] calls = new String[16];
+        String[] tasks = new String[16];
+        for (int i = 0; i < 8; i++) {
+            calls[i] = "set t" + i + " to call count with " + work;
+            calls[8 + i] = "increase total by t" + i;
+            tasks[i] = "spawn call count with " + work + " as t" + i;
+            tasks[8 + i] = "wait for t" + i;
+        }
+        sequential = Programs.parse(program(calls));
+        spawned = Programs.parse(program(tasks));
+    }
+
+    private static String[] program(String[] body) {
+        String[] function = {
+            "function count n",
+            "    set sum to 0",
+            "    for i from 1 to n",
+            "        increase sum by i",
+            "    end",
+            "    return sum",
+            "end",
+            "set total to 0"
+        };
+        String[] lines = new String[function.length + body.length];
+        System.arraycopy(function, 0, lines, 0, function.length);
+        System.arraycopy(body, 0, lines, function.length, body.length);
+        return lines;
+    }
+
+    @Benchmark
+    public Lexi.ExecutionContext sequentialCalls() throws Lexi.LexiException {
+        return Programs.load(runtime, sequential);
+    }
+
+    @Benchmark
+    public Lexi.ExecutionContext spawnedTasks() throws Lexi.LexiException {
+        return Programs.load(runtime, spawned);
+    }
+}
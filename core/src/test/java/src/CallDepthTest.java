@@ -0,0 +1,111 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Deep recursion runs across several stack segments (each on a thread of
+ * its own), and interrupting it stops every segment before the runtime
+ * is handed back.
+ */
+class CallDepthTest {
+    // Nested blocks make each call use more Java stack than a plain one
+    private static final String[] DOWN = {
+        "function down n",
+        "    if n >= 0",
+        "        if n >= 0",
+        "            while n > -1",
+        "                for i from 1 to 1",
+        "                    if n == 0",
+        "                        return 0",
+        "                    end",
+        "                    set r to call down with ((n - 1) + 0) * 1",
+        "                    return ((r + 1) + 0) * 1",
+        "                end",
+        "            end",
+        "        end",
+        "    end",
+        "    return 0",
+        "end"
+    };
+
+    @Test
+    void recursionCrossesSeveralSegments() throws Lexi.LexiException {
+        int depth = 4 * Lexi.SEGMENT_CALLS;
+        for (int tier : new int[] {-1, 0}) {
+            StringWriter out = new StringWriter();
+            Lexi.LexiRuntime runtime = new Lexi.LexiRuntime(new StringReader(""), out);
+            runtime.setTierThreshold(tier);
+            runtime.run(program("set v to call down with " + depth, "display v"));
+            assertEquals(depth + System.lineSeparator(), out.toString(), "tier " + tier);
+            assertEquals(0, runtime.callDepth);
+        }
+    }
+
+    @Test
+    void interruptingStopsEverySegment() throws Exception {
+        int depth = 2 * Lexi.SEGMENT_CALLS + Lexi.FIRST_SEGMENT;
+        StringWriter out = new StringWriter();
+        Lexi.LexiRuntime runtime = new Lexi.LexiRuntime(new StringReader(""), out);
+        List<String> program = program(
+            "function spin n",
+            "    if n > 0",
+            "        set r to call spin with n - 1",
+            "        return r",
+            "    end",
+            "    set x to 0",
+            "    while x > -1",
+            "        increase x",
+            "    end",
+            "    return x",
+            "end",
+            "set v to call spin with " + depth);
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicReference<Boolean> interrupted = new AtomicReference<>();
+        Thread runner = new Thread(() -> {
+            try {
+                runtime.run(program);
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+            interrupted.set(Thread.interrupted());
+        });
+        runner.start();
+
+        long deadline = System.nanoTime() + 30_000_000_000L;
+        while (runtime.callDepth <= depth && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(runtime.callDepth > depth, "never reached the bottom");
+        runner.interrupt();
+        runner.join(30_000);
+        assertFalse(runner.isAlive(), "still running after the interrupt");
+
+        assertTrue(failure.get() instanceof Lexi.LexiException, String.valueOf(failure.get()));
+        assertTrue(failure.get().getMessage().contains("Interrupted in function 'spin'"),
+                   failure.get().getMessage());
+        assertTrue(interrupted.get(), "interrupt was not re-asserted");
+
+        // Every segment has unwound, so the runtime can be used again
+        assertEquals(0, runtime.callDepth);
+        assertFalse(runtime.cancelled);
+        runtime.run(program("set w to call down with 300", "display w"));
+        assertTrue(out.toString().endsWith("300" + System.lineSeparator()), out.toString());
+    }
+
+    private static List<String> program(String... lines) {
+        String[] all = Arrays.copyOf(DOWN, DOWN.length + lines.length);
+        System.arraycopy(lines, 0, all, DOWN.length, lines.length);
+        return Arrays.asList(all);
+    }
+}
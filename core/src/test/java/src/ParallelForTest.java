@@ -0,0 +1,167 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Chunks of a parallel for run at the same time on shared lists, so
+ * anything that could change one must be rejected rather than race, as
+ * must changes to variables that the chunks' copies would lose.
+ */
+class ParallelForTest {
+
+    @Test
+    void pureCallsAreSummedAsInAPlainFor() throws Lexi.LexiException {
+        String[] function = {
+            "function collatz n",
+            "    set steps to 0",
+            "    while n > 1",
+            "        if n % 2 == 0",
+            "            set n to n / 2",
+            "        else",
+            "            set n to 3 * n + 1",
+            "        end",
+            "        increase steps",
+            "    end",
+            "    return steps",
+            "end",
+            "set total to 0"
+        };
+        String sequential = run(concat(function,
+            "for i from 1 to 5000",
+            "    set s to call collatz with i",
+            "    increase total by s",
+            "end",
+            "display total"));
+        String parallel = run(concat(function,
+            "parallel for i from 1 to 5000 reducing sum total",
+            "    set s to call collatz with i",
+            "    increase total by s",
+            "end",
+            "display total"));
+        assertEquals(sequential, parallel);
+    }
+
+    @Test
+    void callingAFunctionThatChangesAGlobalListIsRejected() {
+        Lexi.LexiException e = assertThrows(Lexi.LexiException.class, () -> run(
+            "create list shared",
+            "function fill n",
+            "    for k from 1 to n",
+            "        add k to shared",
+            "    end",
+            "    return n",
+            "end",
+            "parallel for i from 1 to 8 reducing sum total",
+            "    set r to call fill with 100000",
+            "    increase total by r",
+            "end"));
+        assertTrue(e.getMessage().contains("'fill'"), e.getMessage());
+    }
+
+    @Test
+    void changingASharedListInTheBodyIsRejected() {
+        Lexi.LexiException e = assertThrows(Lexi.LexiException.class, () -> run(
+            "create list shared",
+            "parallel for i from 1 to 8",
+            "    add i to shared",
+            "end"));
+        assertTrue(e.getMessage().contains("reducing list"), e.getMessage());
+    }
+
+    @Test
+    void aListCreatedOnlyOnSomePathsIsRejected() {
+        Lexi.LexiException e = assertThrows(Lexi.LexiException.class, () -> run(
+            "create list shared",
+            "parallel for i from 1 to 200000",
+            "    if i < 0",
+            "        create list shared",
+            "    end",
+            "    add i to shared",
+            "end"));
+        assertTrue(e.getMessage().contains("'shared'"), e.getMessage());
+    }
+
+    @Test
+    void addingThroughAnAliasOfASharedListIsRejected() {
+        Lexi.LexiException e = assertThrows(Lexi.LexiException.class, () -> run(
+            "create list shared",
+            "parallel for i from 1 to 200000",
+            "    set mine to shared",
+            "    add i to mine",
+            "end"));
+        assertTrue(e.getMessage().contains("'mine'"), e.getMessage());
+    }
+
+    @Test
+    void settingAVariableFromBeforeTheLoopIsRejected() {
+        Lexi.LexiException e = assertThrows(Lexi.LexiException.class, () -> run(
+            "set count to 0",
+            "parallel for i from 1 to 100",
+            "    increase count",
+            "end"));
+        assertTrue(e.getMessage().contains("'count'"), e.getMessage());
+    }
+
+    @Test
+    void listsMadeInEachPassCanBeChanged() throws Lexi.LexiException {
+        String output = run(
+            "create list sizes",
+            "parallel for i from 1 to 1000 reducing list sizes",
+            "    create list row",
+            "    if i % 2 == 0",
+            "        add i to row",
+            "    else",
+            "        create list row",
+            "    end",
+            "    for k from 1 to 3",
+            "        add k to row",
+            "        create list row",
+            "        add k to row",
+            "    end",
+            "    set item 1 of row to 0",
+            "    add length of row to sizes",
+            "end",
+            "display length of sizes");
+        assertEquals("1000" + System.lineSeparator(), output);
+    }
+
+    @Test
+    void minAndMaxKeepTheChunksExtremes() throws Lexi.LexiException {
+        String output = run(
+            "set lo to 1000",
+            "set hi to -1",
+            "parallel for i from 1 to 5000 reducing min lo, max hi",
+            "    set v to (i * 37) % 5003",
+            "    if v < lo",
+            "        set lo to v",
+            "    end",
+            "    if v > hi",
+            "        set hi to v",
+            "    end",
+            "end",
+            "display lo",
+            "display hi");
+        assertEquals(String.join(System.lineSeparator(), "1", "5002", ""), output);
+    }
+
+    private static String[] concat(String[] first, String... rest) {
+        String[] lines = Arrays.copyOf(first, first.length + rest.length);
+        System.arraycopy(rest, 0, lines, first.length, rest.length);
+        return lines;
+    }
+
+    private static String run(String... program) throws Lexi.LexiException {
+        StringWriter out = new StringWriter();
+        Lexi.LexiRuntime runtime = new Lexi.LexiRuntime(new StringReader(""), out);
+        runtime.run(Arrays.asList(program));
+        return out.toString();
+    }
+}
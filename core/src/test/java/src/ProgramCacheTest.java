@@ -0,0 +1,127 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * A program run from its cache must behave exactly as one parsed from
+ * source, and a cache that cannot be trusted must be ignored and
+ * rewritten rather than used.
+ */
+class ProgramCacheTest {
+    private static final String[] PROGRAM = {
+        "function area w h",
+        "    return w * h",
+        "end",
+        "create list sizes",
+        "for i from 1 to 4",
+        "    set a to call area with i, i + 1",
+        "    add a to sizes",
+        "end",
+        "display sizes",
+        "set name to \"café\"",
+        "display \"Hello \" + name",
+        "if length of sizes > 3",
+        "    display item 2 of sizes",
+        "else",
+        "    display \"short\"",
+        "end"
+    };
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void aCachedProgramRunsAsTheSource() throws Exception {
+        Path source = source();
+        String uncached = run(source, false);
+        assertTrue(Files.notExists(cache(source)));
+
+        assertEquals(uncached, run(source, true));
+        assertNotNull(readCache(source));
+        assertEquals(uncached, run(source, true));
+    }
+
+    @Test
+    void aCorruptCacheIsIgnoredAndRewritten() throws Exception {
+        Path source = source();
+        String expected = run(source, true);
+
+        byte[] bytes = Files.readAllBytes(cache(source));
+        Files.write(cache(source), Arrays.copyOf(bytes, bytes.length / 2));
+        assertNull(readCache(source));
+        assertEquals(expected, run(source, true));
+        assertNotNull(readCache(source));
+
+        Files.write(cache(source), new byte[] {1, 2, 3});
+        assertEquals(expected, run(source, true));
+        assertNotNull(readCache(source));
+    }
+
+    @Test
+    void aCacheFromAnotherFormatOrVersionIsIgnored() throws Exception {
+        Path source = source();
+        String expected = run(source, true);
+        byte[] good = Files.readAllBytes(cache(source));
+
+        // Format number follows the magic number
+        byte[] format = good.clone();
+        ByteBuffer.wrap(format).putInt(4, ByteBuffer.wrap(good).getInt(4) + 1);
+        Files.write(cache(source), format);
+        assertNull(readCache(source));
+        assertEquals(expected, run(source, true));
+        assertNotNull(readCache(source));
+
+        // Version string follows the format: a two-byte length, then "1.0"
+        byte[] version = good.clone();
+        version[10] = '9';
+        Files.write(cache(source), version);
+        assertNull(readCache(source));
+        assertEquals(expected, run(source, true));
+        assertNotNull(readCache(source));
+    }
+
+    @Test
+    void aCacheForOtherContentIsIgnored() throws Exception {
+        Path source = source();
+        run(source, true);
+        Files.write(source, Arrays.asList("display 42"));
+        assertTrue(run(source, true).contains("42"));
+        assertNotNull(readCache(source));
+    }
+
+    private Path source() throws IOException {
+        Path source = dir.resolve("program.lexi");
+        Files.write(source, Arrays.asList(PROGRAM));
+        return source;
+    }
+
+    private static Path cache(Path source) {
+        return source.resolveSibling(source.getFileName() + Lexi.ProgramCache.EXTENSION);
+    }
+
+    private static Lexi.ParsedProgram readCache(Path source) throws IOException {
+        return Lexi.ProgramCache.read(cache(source), Lexi.ProgramCache.hash(Files.readAllBytes(source)));
+    }
+
+    private static String run(Path source, boolean cache) throws Exception {
+        StringWriter out = new StringWriter();
+        Lexi.LexiRuntime runtime = new Lexi.LexiRuntime(new StringReader(""), out);
+        runtime.setProgramCache(cache);
+        runtime.runFile(source.toString());
+        return out.toString();
+    }
+}
@@ -0,0 +1,136 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Lexi through javax.script: bindings in and out, compiled scripts,
+ * and Invocable calls, which must not share lists with each other or
+ * with the evaluation that defined their functions.
+ */
+class ScriptEngineTest {
+
+    @Test
+    void bindingsBecomeGlobalsAndComeBack() throws ScriptException {
+        ScriptEngine engine = engine();
+        StringWriter out = new StringWriter();
+        engine.getContext().setWriter(out);
+        engine.put("width", 6);
+        engine.put("name", "box");
+
+        Object result = engine.eval(String.join("\n",
+            "set area to width * 7",
+            "display name + \" \" + area",
+            "return area"));
+        assertEquals("box 42" + System.lineSeparator(), out.toString());
+        assertEquals(result, engine.get("area"));
+        assertEquals("42", result.toString());
+    }
+
+    @Test
+    void evalCompilesEachSourceOnce() throws ScriptException {
+        ScriptEngine engine = engine();
+        String source = "return 1 + 2";
+        assertSame(((Compilable) engine).compile(source), ((Compilable) engine).compile(source));
+        assertEquals("3", engine.eval(source).toString());
+    }
+
+    @Test
+    void invokeFunctionCallsTheLatestDefinitions() throws Exception {
+        ScriptEngine engine = engine();
+        engine.eval(String.join("\n",
+            "function add a b",
+            "    return a + b",
+            "end"));
+        assertEquals("5", ((Invocable) engine).invokeFunction("add", 2, 3).toString());
+        assertEquals("ab", ((Invocable) engine).invokeFunction("add", "a", "b").toString());
+        assertThrows(NoSuchMethodException.class, () -> ((Invocable) engine).invokeFunction("missing"));
+
+        Adder adder = ((Invocable) engine).getInterface(Adder.class);
+        assertNotNull(adder);
+        assertEquals("7", adder.add(3, 4).toString());
+    }
+
+    @Test
+    void concurrentInvocationsGetTheirOwnLists() throws Exception {
+        ScriptEngine engine = engine();
+        engine.eval(String.join("\n",
+            "create list shared",
+            "add 0 to shared",
+            "function grow n",
+            "    for i from 1 to n",
+            "        add i to shared",
+            "    end",
+            "    return length of shared",
+            "end"));
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Object>> calls = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                calls.add(pool.submit(() -> ((Invocable) engine).invokeFunction("grow", 100000)));
+            }
+            for (Future<Object> call : calls) {
+                assertEquals("100001", call.get().toString());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals("1", engine.eval("return length of shared").toString());
+    }
+
+    @Test
+    void unsupportedValuesAreScriptErrors() throws ScriptException {
+        ScriptEngine engine = engine();
+        engine.eval(String.join("\n",
+            "function twice x",
+            "    return x * 2",
+            "end"));
+        ScriptException call = assertThrows(ScriptException.class,
+            () -> ((Invocable) engine).invokeFunction("twice", new Object()));
+        assertTrue(call.getMessage().contains("argument 1"), call.getMessage());
+
+        Bindings bindings = engine.createBindings();
+        bindings.put("x", new Object());
+        ScriptException bind = assertThrows(ScriptException.class, () -> engine.eval("display x", bindings));
+        assertTrue(bind.getMessage().contains("'x'"), bind.getMessage());
+    }
+
+    @Test
+    void errorsCarryTheirLine() {
+        ScriptException e = assertThrows(ScriptException.class, () -> engine().eval(String.join("\n",
+            "set a to 1",
+            "set b to 0",
+            "display a / b")));
+        assertEquals(3, e.getLineNumber());
+    }
+
+    public interface Adder {
+        Object add(Object a, Object b);
+    }
+
+    private static ScriptEngine engine() {
+        ScriptEngine engine = new ScriptEngineManager().getEngineByName("lexi");
+        assertNotNull(engine, "lexi engine not registered");
+        return engine;
+    }
+}
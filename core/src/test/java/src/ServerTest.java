@@ -0,0 +1,189 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The server runs EVAL and RUN requests from its owner only: RUN is
+ * limited to .lexi files under the root, TCP requests must carry the
+ * token, and the socket path is only ever replaced if it is a socket.
+ */
+class ServerTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void evalAndRunOverTheSocket() throws Exception {
+        Path root = Files.createDirectory(dir.resolve("root"));
+        Path script = root.resolve("greet.lexi");
+        Files.write(script, Arrays.asList("ask for name", "display \"Hi \" + name"));
+        SocketAddress address = serveSocket(root);
+
+        assertEquals("42", send(address, eval("display 6 * 7") + "INPUT 0\n").trim());
+        String output = send(address, "RUN " + script + "\nINPUT 4\nAnn\n");
+        assertTrue(output.contains("Hi Ann"), output);
+    }
+
+    @Test
+    void runIsLimitedToLexiFilesUnderTheRoot() throws Exception {
+        Path root = Files.createDirectory(dir.resolve("root"));
+        Path outside = Files.write(dir.resolve("outside.lexi"), Arrays.asList("display 1"));
+        Path text = Files.write(root.resolve("notes.txt"), Arrays.asList("display 1"));
+        Path link = Files.createSymbolicLink(root.resolve("link.lexi"), outside);
+        SocketAddress address = serveSocket(root);
+
+        for (Path path : new Path[] {outside, text, link, root.resolve("../outside.lexi")}) {
+            String output = send(address, "RUN " + path + "\nINPUT 0\n");
+            assertTrue(output.startsWith("Error: RUN only runs .lexi files under"), path + ": " + output);
+        }
+    }
+
+    @Test
+    void tcpRequestsNeedTheToken() throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = probe.getLocalPort();
+        }
+        Path tokenFile = dir.resolve(Lexi.LexiServer.TOKEN_FILE);
+        String home = System.getProperty("user.home");
+        System.setProperty("user.home", dir.toString());
+        try {
+            start(() -> new Lexi.LexiServer(1, -1, false, 1000, dir).serve(null, port));
+            waitFor(tokenFile);
+        } finally {
+            System.setProperty("user.home", home);
+        }
+        SocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        String request = eval("display 6 * 7") + "INPUT 0\n";
+        assertEquals("Error: missing or wrong token", sendWhenListening(address, request).trim());
+
+        String token = new String(Files.readAllBytes(tokenFile), StandardCharsets.UTF_8).trim();
+        assertEquals("Error: missing or wrong token", send(address, "TOKEN wrong\n" + request).trim());
+        assertEquals("42", send(address, "TOKEN " + token + "\n" + request).trim());
+    }
+
+    @Test
+    void onlyASocketIsReplaced() throws Exception {
+        Path file = Files.write(dir.resolve("file.sock"), Arrays.asList("keep me"));
+        assertThrows(IOException.class, () -> Lexi.LexiServer.removeStaleSocket(file));
+        assertTrue(Files.isRegularFile(file));
+
+        Path directory = Files.createDirectory(dir.resolve("dir.sock"));
+        assertThrows(IOException.class, () -> Lexi.LexiServer.removeStaleSocket(directory));
+        assertTrue(Files.isDirectory(directory));
+
+        Lexi.LexiServer.removeStaleSocket(dir.resolve("missing.sock"));
+    }
+
+    @Test
+    void aSocketLeftByAStoppedServerIsReplaced() throws Exception {
+        Path path = dir.resolve("stale.sock");
+        try (ServerSocketChannel stale = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            stale.bind(UnixDomainSocketAddress.of(path));
+        }
+        assertTrue(Files.exists(path));
+        SocketAddress address = serveSocket(dir, path);
+        assertEquals("42", send(address, eval("display 6 * 7") + "INPUT 0\n").trim());
+    }
+
+    private interface Server {
+        void serve() throws IOException;
+    }
+
+    private SocketAddress serveSocket(Path root) throws Exception {
+        return serveSocket(root, dir.resolve("lexi.sock"));
+    }
+
+    private static SocketAddress serveSocket(Path root, Path socket) throws Exception {
+        // Built here so a bad root fails the test, not the server thread
+        Lexi.LexiServer server = new Lexi.LexiServer(1, -1, false, 1000, root);
+        start(() -> server.serve(socket.toString(), 0));
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (true) {
+            try {
+                SocketChannel.open(UnixDomainSocketAddress.of(socket)).close();
+                return UnixDomainSocketAddress.of(socket);
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    /** Runs the server on a daemon thread; it lives until the test JVM exits. */
+    private static void start(Server server) {
+        Thread thread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void waitFor(Path file) throws InterruptedException {
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (!Files.exists(file) && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+        }
+    }
+
+    private static String eval(String source) {
+        return "EVAL " + source.getBytes(StandardCharsets.UTF_8).length + "\n" + source;
+    }
+
+    private static String sendWhenListening(SocketAddress address, String request) throws Exception {
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (true) {
+            try {
+                return send(address, request);
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    private static String send(SocketAddress address, String request) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            ByteBuffer bytes = ByteBuffer.wrap(request.getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.shutdownOutput();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+            while (channel.read(buffer) >= 0) {
+                response.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+            return response.toString(StandardCharsets.UTF_8);
+        }
+    }
+}
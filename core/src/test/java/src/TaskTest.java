@@ -0,0 +1,82 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Spawned tasks run at the same time as their spawner and each other,
+ * so none of them may share a list with another.
+ */
+class TaskTest {
+
+    @Test
+    void tasksAddingToASharedListWorkOnCopies() throws Lexi.LexiException {
+        String output = run(
+            "create list shared",
+            "function fill n",
+            "    for i from 1 to n",
+            "        add i to shared",
+            "    end",
+            "    return length of shared",
+            "end",
+            "spawn call fill with 300000 as a",
+            "spawn call fill with 300000 as b",
+            "spawn call fill with 300000 as c",
+            "add 1 to shared",
+            "wait for a",
+            "wait for b",
+            "wait for c",
+            "display a",
+            "display b",
+            "display c",
+            "display length of shared");
+        assertEquals(String.join(System.lineSeparator(), "300000", "300000", "300000", "1", ""), output);
+    }
+
+    @Test
+    void aListArgumentIsCopiedAndReturnedThroughWait() throws Lexi.LexiException {
+        String output = run(
+            "function grow xs",
+            "    add 99 to xs",
+            "    return xs",
+            "end",
+            "create list mine",
+            "add 1 to mine",
+            "spawn call grow with mine as grown",
+            "add 2 to mine",
+            "wait for grown",
+            "display grown",
+            "display mine");
+        assertEquals(String.join(System.lineSeparator(), "[1, 99]", "[1, 2]", ""), output);
+    }
+
+    @Test
+    void onlyTheSpawnerCanWaitForATask() {
+        Lexi.LexiException e = assertThrows(Lexi.LexiException.class, () -> run(
+            "function one",
+            "    return 1",
+            "end",
+            "function waiter",
+            "    wait for t",
+            "    return t",
+            "end",
+            "spawn call one as t",
+            "spawn call waiter as w",
+            "wait for w"));
+        assertTrue(e.getMessage().contains("Only the code that spawned"), e.getMessage());
+    }
+
+    private static String run(String... program) throws Lexi.LexiException {
+        StringWriter out = new StringWriter();
+        Lexi.LexiRuntime runtime = new Lexi.LexiRuntime(new StringReader(""), out);
+        runtime.run(Arrays.asList(program));
+        return out.toString();
+    }
+}
@@ -0,0 +1,130 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compiled code must print exactly what the interpreter prints: each
+ * program is run with the tier off and with everything compiled on first
+ * use, and the output (errors included) compared.
+ */
+class TierTest {
+    private static final Path EXAMPLES = Paths.get("..", "examples");
+
+    @Test
+    void examplesMatchTheInterpreter() throws IOException {
+        assertSameOutput("calculator.lexi", "12\n5\n");
+        assertSameOutput("calculator.lexi", "12\n0\n");
+        assertSameOutput("finance_calculator.lexi", "Bob\n5000\n3\n800\n300\n200\n1\n10000\n12\n24\n");
+        assertSameOutput("hello.lexi", "Ann\n");
+    }
+
+    @Test
+    void overflowMovesUpToFractions() {
+        assertSameOutput(
+            "function grow n",
+            "    set x to 1",
+            "    for i from 1 to n",
+            "        set x to x * 3",
+            "    end",
+            "    return x",
+            "end",
+            "for k from 38 to 42",
+            "    set v to call grow with k",
+            "    display v",
+            "end");
+    }
+
+    @Test
+    void remainderAndDivision() {
+        assertSameOutput(
+            "function mix a b",
+            "    set r to a % b",
+            "    set q to a / b",
+            "    return r + q",
+            "end",
+            "for i from -7 to 7",
+            "    set v to call mix with i, 3",
+            "    display v",
+            "    set w to call mix with i, -4",
+            "    display w",
+            "end");
+    }
+
+    @Test
+    void divisionByZeroIsTheSameError() {
+        assertSameOutput(
+            "function split n d",
+            "    return n / d",
+            "end",
+            "set total to 0",
+            "for i from 1 to 5",
+            "    set v to call split with 10, 3 - i",
+            "    increase total by v",
+            "    display total",
+            "end");
+    }
+
+    @Test
+    void hotTopLevelLoop() {
+        assertSameOutput(
+            "set a to 0",
+            "set b to 1",
+            "set i to 0",
+            "while i < 100",
+            "    set c to a + b",
+            "    set a to b",
+            "    set b to c",
+            "    increase i",
+            "end",
+            "display a",
+            "display i");
+    }
+
+    private static void assertSameOutput(String example, String input) throws IOException {
+        String path = EXAMPLES.resolve(example).toString();
+        assertEquals(runFile(path, input, -1), runFile(path, input, 0), example + " with input " + input);
+    }
+
+    private static void assertSameOutput(String... program) {
+        List<String> lines = Arrays.asList(program);
+        assertEquals(run(lines, -1), run(lines, 0), String.join("\n", program));
+    }
+
+    private static String runFile(String path, String input, int tier) throws IOException {
+        StringWriter out = new StringWriter();
+        Lexi.LexiRuntime runtime = runtime(input, out, tier);
+        try {
+            runtime.runFile(path);
+        } catch (Lexi.LexiException e) {
+            out.write("error: " + e.getMessage());
+        }
+        return out.toString();
+    }
+
+    private static String run(List<String> program, int tier) {
+        StringWriter out = new StringWriter();
+        try {
+            runtime("", out, tier).run(program);
+        } catch (Lexi.LexiException e) {
+            out.write("error: " + e.getMessage());
+        }
+        return out.toString();
+    }
+
+    private static Lexi.LexiRuntime runtime(String input, StringWriter out, int tier) {
+        Lexi.LexiRuntime runtime = new Lexi.LexiRuntime(new StringReader(input), out);
+        runtime.setTierThreshold(tier);
+        runtime.setProgramCache(false);
+        return runtime;
+    }
+}
@@ -1,7 +1,51 @@
 package src;
 import java.util.*;
 import java.io.*;
+import java.lang.invoke.*;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.URISyntaxException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import jdk.net.ExtendedSocketOptions;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.jar.*;
+import javax.script.*;
+import javax.tools.*;
 import java.util.regex.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 
 /**
  * Lexi Programming Language Interpreter
@@ -26,19 +70,331 @@ public class Lexi {
         "╚════════════════════════════════════════════╝";
     
     // ============================================================
-    // GLOBAL STATE
+    // INTERPRETER STATE
     // ============================================================
     
-    private static Map<String, Object> globalVariables = new HashMap<>();
-    private static Map<String, Function> functions = new HashMap<>();
-    private static List<String> program = new ArrayList<>();
-    private static int currentLine = 0;
-    private static Scanner userInput = new Scanner(System.in);
-    private static boolean debugMode = false;
+    /**
+     * Everything one interpreter instance owns: its program, functions,
+     * variables, input/output and settings. Runtimes share no state, so a
+     * JVM can run many programs at once, one runtime per thread. Every
+     * frame points back to the runtime executing it.
+     *
+     *   LexiRuntime runtime = new LexiRuntime(input, output);
+     *   runtime.runFile("job.lexi");
+     */
+    public static final class LexiRuntime {
+        private static final AtomicLong FUNCTION_STAMPS = new AtomicLong();
+        
+        final Map<String, Object> globalVariables = new HashMap<>();
+        final Map<String, Function> functions = new HashMap<>();
+        // Changes whenever functions does; call sites linked under another stamp relink
+        long functionStamp = FUNCTION_STAMPS.incrementAndGet();
+        final List<String> program = new ArrayList<>();
+        int currentLine = 0;
+        private final Readable input;
+        private Scanner userInput;   // created on the first "ask"
+        final PrintWriter out;       // flushed before "ask" and when a run ends
+        PrintWriter err = new PrintWriter(new PrintStreamWriter(System.err));
+        boolean debugMode = false;
+        
+        // Calls/iterations before a function or top-level loop is compiled to
+        // bytecode: -1 never compiles, 0 compiles on first use
+        int tierThreshold = 1000;
+        
+        // Reuse/write the parsed program cached next to a source file
+        boolean useProgramCache = true;
+        
+        // Fractions as exact BigDecimals instead of doubles (for money)
+        boolean decimal = false;
+        
+        // Nested function calls allowed (tail calls do not count), and in progress
+        int maxCallDepth = DEFAULT_CALL_DEPTH;
+        int callDepth = 0;
+        int segmentEnd = FIRST_SEGMENT;   // depth at which calls move to a new stack segment
+        
+        // Value returned by the top level of the last program run
+        Object returnValue = null;
+        
+        // Tasks spawned by the running call (or the top level); set when
+        // this runtime's task is cancelled, checked at every block
+        TaskScope tasks = null;
+        volatile boolean cancelled = false;
+        private LexiRuntime inputOwner = null;   // a task reads its spawner's input
+        
+        // Runs one chunk of a parallel for, so it may only call pure functions
+        boolean parallelWorker = false;
+        
+        /** A runtime reading standard input and writing standard output. */
+        public LexiRuntime() {
+            this(System.in, System.out);
+        }
+        
+        /** A runtime whose "ask" reads input and whose "display" writes to out. */
+        public LexiRuntime(InputStream input, PrintStream out) {
+            this((Readable) new InputStreamReader(input), new PrintWriter(new PrintStreamWriter(out)));
+        }
+        
+        /** The same, for character streams (e.g. a script engine's context). */
+        public LexiRuntime(Reader input, Writer out) {
+            this((Readable) input, (out instanceof PrintWriter) ? (PrintWriter) out : new PrintWriter(out));
+        }
+        
+        private LexiRuntime(Readable input, PrintWriter out) {
+            this.input = input;
+            this.out = out;
+        }
+        
+        /** The next line of input, for "ask"; tasks take turns, a line each. */
+        synchronized String readLine() throws LexiException {
+            if (inputOwner != null) {
+                return inputOwner.readLine();
+            }
+            out.flush();
+            if (userInput == null) {
+                userInput = new Scanner(input);
+            }
+            if (!userInput.hasNextLine()) {
+                throw new LexiException("No input available");
+            }
+            return userInput.nextLine();
+        }
+        
+        /** Run a .lexi file, reusing its parsed-program cache (large files are streamed). */
+        public void runFile(String path) throws IOException, LexiException {
+            Lexi.runFile(this, path, false);
+        }
+        
+        /** Run a program given as source lines. */
+        public void run(List<String> lines) throws LexiException {
+            runProgram(this, parseProgram(lines));
+        }
+        
+        /** -1 never compiles to bytecode, 0 compiles on first use. */
+        public void setTierThreshold(int threshold) {
+            tierThreshold = threshold;
+        }
+        
+        public void setProgramCache(boolean enabled) {
+            useProgramCache = enabled;
+        }
+        
+        /** Exact decimal fractions (BigDecimal) instead of doubles. */
+        public void setDecimal(boolean enabled) {
+            decimal = enabled;
+        }
+        
+        /** How deeply function calls may nest before the program is stopped. */
+        public void setMaxCallDepth(int depth) {
+            maxCallDepth = depth;
+        }
+        
+        /** Register a function, replacing any of the same name. */
+        void define(Function function) {
+            functions.put(function.name, function);
+            functionsChanged();
+        }
+        
+        /**
+         * A runtime for one worker of a parallel for: the same functions
+         * and settings, no input, and display written to output.
+         */
+        LexiRuntime worker(Writer output) {
+            LexiRuntime worker = new LexiRuntime(new StringReader(""), output);
+            worker.parallelWorker = true;
+            worker.functions.putAll(functions);
+            worker.functionStamp = functionStamp;   // same functions, so call sites stay linked
+            worker.tierThreshold = tierThreshold;
+            worker.debugMode = debugMode;
+            worker.decimal = decimal;
+            worker.maxCallDepth = maxCallDepth;
+            worker.callDepth = callDepth;
+            worker.segmentEnd = callDepth + FIRST_SEGMENT;   // a pool thread's stack
+            return worker;
+        }
+        
+        /**
+         * A runtime for a spawned task: the same functions, settings,
+         * output and input, and a call depth of its own.
+         */
+        LexiRuntime task() {
+            LexiRuntime task = new LexiRuntime(input, out);
+            task.inputOwner = (inputOwner != null) ? inputOwner : this;
+            task.err = err;
+            task.functions.putAll(functions);
+            task.functionStamp = functionStamp;
+            task.tierThreshold = tierThreshold;
+            task.debugMode = debugMode;
+            task.decimal = decimal;
+            task.maxCallDepth = maxCallDepth;
+            return task;
+        }
+        
+        /** Unlink every call site from this runtime's functions. */
+        void functionsChanged() {
+            functionStamp = FUNCTION_STAMPS.incrementAndGet();
+        }
+    }
+    
+    /**
+     * Text written to a PrintStream, encoded by the stream itself
+     * (System.out keeps its console encoding and flushing).
+     */
+    static final class PrintStreamWriter extends Writer {
+        private final PrintStream stream;
+        
+        PrintStreamWriter(PrintStream stream) {
+            this.stream = stream;
+        }
+        
+        @Override
+        public void write(char[] chars, int offset, int length) {
+            stream.print(new String(chars, offset, length));
+        }
+        
+        @Override
+        public void write(String text, int offset, int length) {
+            stream.print((offset == 0 && length == text.length()) ? text : text.substring(offset, offset + length));
+        }
+        
+        @Override
+        public void flush() {
+            stream.flush();
+        }
+        
+        @Override
+        public void close() {
+            stream.flush();
+        }
+    }
     
-    // For handling return values
-    private static Object returnValue = null;
-    private static boolean hasReturned = false;
+    /**
+     * The writer "display" uses for the process's standard output.
+     *
+     * Text is copied into a reusable char buffer and encoded in bulk into a
+     * byte buffer that is written straight to file descriptor 1, so a
+     * display costs a copy rather than a lock, an encode and a syscall.
+     * Output is flushed at every newline only when a person is watching
+     * (both ends on a terminal); otherwise when the buffer fills, before
+     * "ask", on errors and when the program ends.
+     */
+    static final class OutputBuffer extends Writer {
+        private static final int SIZE = 64 * 1024;
+        
+        private final WritableByteChannel channel;
+        private final CharsetEncoder encoder;
+        private final boolean flushLines;
+        private final char[] chars = new char[SIZE];
+        private final CharBuffer pending = CharBuffer.wrap(chars);
+        private final ByteBuffer bytes = ByteBuffer.allocateDirect(SIZE);
+        private int count = 0;
+        
+        OutputBuffer(WritableByteChannel channel, Charset charset, boolean flushLines) {
+            this.channel = channel;
+            this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            this.flushLines = flushLines;
+        }
+        
+        /** Standard output, in the charset System.out would use. */
+        static OutputBuffer standardOutput() {
+            String encoding = System.getProperty("sun.stdout.encoding");
+            Charset charset = Charset.defaultCharset();
+            if (encoding != null) {
+                try {
+                    charset = Charset.forName(encoding);
+                } catch (IllegalArgumentException e) {
+                    // keep the default, as System.out does
+                }
+            }
+            System.out.flush();
+            return new OutputBuffer(new FileOutputStream(FileDescriptor.out).getChannel(),
+                                    charset, System.console() != null);
+        }
+        
+        @Override
+        public void write(int c) throws IOException {
+            if (count == SIZE) {
+                encode();
+            }
+            chars[count++] = (char) c;
+            if (flushLines && c == '\n') {
+                flush();
+            }
+        }
+        
+        @Override
+        public void write(String text, int offset, int length) throws IOException {
+            int end = offset + length;
+            while (offset < end) {
+                int n = Math.min(end - offset, SIZE - count);
+                text.getChars(offset, offset + n, chars, count);
+                count += n;
+                offset += n;
+                if (count == SIZE) {
+                    encode();
+                }
+            }
+            if (flushLines && text.lastIndexOf('\n', end - 1) >= end - length) {
+                flush();
+            }
+        }
+        
+        @Override
+        public void write(char[] text, int offset, int length) throws IOException {
+            int end = offset + length;
+            boolean newline = false;
+            while (offset < end) {
+                int n = Math.min(end - offset, SIZE - count);
+                System.arraycopy(text, offset, chars, count, n);
+                for (int i = 0; flushLines && i < n; i++) {
+                    newline |= text[offset + i] == '\n';
+                }
+                count += n;
+                offset += n;
+                if (count == SIZE) {
+                    encode();
+                }
+            }
+            if (newline) {
+                flush();
+            }
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            encode();
+            drain();
+        }
+        
+        /** Flushes; standard output itself stays open. */
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+        
+        /** Encode the buffered chars, keeping a trailing half surrogate pair for later. */
+        private void encode() throws IOException {
+            pending.limit(count).position(0);
+            while (encoder.encode(pending, bytes, false).isOverflow()) {
+                drain();
+            }
+            int rest = pending.remaining();
+            System.arraycopy(chars, pending.position(), chars, 0, rest);
+            count = rest;
+        }
+        
+        private void drain() throws IOException {
+            bytes.flip();
+            try {
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+            } finally {
+                bytes.clear();
+            }
+        }
+    }
     
     // ============================================================
     // FUNCTION DEFINITION
@@ -47,47 +403,430 @@ public class Lexi {
     static class Function {
         String name;
         List<String> parameters;
-        List<String> body;
+        Statement[] body;
+        Scope scope;      // parameters occupy slots 0..n-1
         
-        Function(String name, List<String> parameters, List<String> body) {
+        // Bytecode tier state (a compiled script may run on several threads;
+        // racing counters only shift when compilation happens)
+        int calls;
+        boolean tierAttempted;
+        volatile CompiledFunction compiled;
+        
+        // Body translated to Java by --compile (null when interpreted)
+        CompiledBody compiledBody;
+        
+        // Declared with "remember function"; memo is also set for pure recursive functions
+        final boolean remembered;
+        final Memo memo;
+        
+        // Depends on nothing but its arguments (see Purity); a parallel for may only call these
+        final boolean pure;
+        
+        Function(String name, List<String> parameters, Statement[] body, Scope scope, boolean remembered) {
             this.name = name;
             this.parameters = parameters;
             this.body = body;
+            this.scope = scope;
+            this.remembered = remembered;
+            Purity purity = new Purity(this);
+            this.pure = purity.isPure();
+            this.memo = (remembered || (pure && purity.recursive)) ? new Memo() : null;
+        }
+    }
+    
+    /**
+     * Whether a function's result depends on nothing but its arguments.
+     * Its body may not display, ask, change a list, call another function
+     * or define one, and may read a variable only once it has given it a
+     * value: an unassigned name would read the global of the same name.
+     * Assignments inside an if or a loop only count within that block.
+     */
+    static final class Purity {
+        private final Function function;
+        boolean recursive;
+        
+        Purity(Function function) {
+            this.function = function;
+        }
+        
+        /** Whether the body is pure; afterwards recursive tells whether it calls itself. */
+        boolean isPure() {
+            BitSet assigned = new BitSet();
+            assigned.set(0, function.parameters.size());
+            return block(function.body, assigned);
+        }
+        
+        private boolean block(Statement[] block, BitSet assigned) {
+            for (Statement statement : block) {
+                if (!statement(statement, assigned)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        private boolean statement(Statement statement, BitSet assigned) {
+            if (statement instanceof CreateStatement) {
+                CreateStatement s = (CreateStatement) statement;
+                return assign(s.slot, s.value, assigned);
+            } else if (statement instanceof SetStatement) {
+                SetStatement s = (SetStatement) statement;
+                return assign(s.slot, s.value, assigned);
+            } else if (statement instanceof IncreaseStatement) {
+                IncreaseStatement s = (IncreaseStatement) statement;
+                return assigned.get(s.slot) && (s.amount == null || reads(s.amount, assigned));
+            } else if (statement instanceof ReturnStatement) {
+                Expression value = ((ReturnStatement) statement).value;
+                return value == null || reads(value, assigned);
+            } else if (statement instanceof IfStatement) {
+                IfStatement s = (IfStatement) statement;
+                for (int i = 0; i < s.conditions.length; i++) {
+                    if (!reads(s.conditions[i], assigned) || !block(s.branches[i], (BitSet) assigned.clone())) {
+                        return false;
+                    }
+                }
+                return s.elseBranch == null || block(s.elseBranch, (BitSet) assigned.clone());
+            } else if (statement instanceof WhileStatement) {
+                WhileStatement s = (WhileStatement) statement;
+                return reads(s.condition, assigned) && block(s.body, (BitSet) assigned.clone());
+            } else if (statement instanceof ForStatement) {
+                ForStatement s = (ForStatement) statement;
+                if (!reads(s.start, assigned) || !reads(s.end, assigned)) {
+                    return false;
+                }
+                BitSet body = (BitSet) assigned.clone();
+                body.set(s.slot);
+                return block(s.body, body);
+            }
+            return false;
+        }
+        
+        private boolean assign(int slot, Expression value, BitSet assigned) {
+            if (!reads(value, assigned)) {
+                return false;
+            }
+            assigned.set(slot);
+            return true;
+        }
+        
+        private boolean reads(Condition condition, BitSet assigned) {
+            return (condition.left == null || reads(condition.left, assigned)) &&
+                   (condition.right == null || reads(condition.right, assigned));
+        }
+        
+        private boolean reads(Expression e, BitSet assigned) {
+            if (e instanceof NumberLiteral || e instanceof DecimalLiteral || e instanceof StringLiteral ||
+                    e instanceof ValueExpression || e instanceof InvalidExpression) {
+                return true;
+            } else if (e instanceof VariableExpression) {
+                return assigned.get(((VariableExpression) e).slot);
+            } else if (e instanceof LengthExpression) {
+                return assigned.get(((LengthExpression) e).slot);
+            } else if (e instanceof ListItemExpression) {
+                ListItemExpression item = (ListItemExpression) e;
+                return assigned.get(item.listSlot) && reads(item.position, assigned);
+            } else if (e instanceof NegateExpression) {
+                return reads(((NegateExpression) e).operand, assigned);
+            } else if (e instanceof BinaryExpression) {
+                BinaryExpression b = (BinaryExpression) e;
+                return reads(b.left, assigned) && reads(b.right, assigned);
+            } else if (e instanceof ConcatenationExpression) {
+                return reads(((ConcatenationExpression) e).parts, assigned);
+            } else if (e instanceof ConcatenationPart) {
+                ConcatenationPart part = (ConcatenationPart) e;
+                return (part.slot < 0 || assigned.get(part.slot)) && reads(part.numeric, assigned);
+            } else if (e instanceof AdditionOrConcatenation) {
+                AdditionOrConcatenation a = (AdditionOrConcatenation) e;
+                for (int slot : a.slots) {
+                    if (!assigned.get(slot)) {
+                        return false;
+                    }
+                }
+                return reads(a.addition, assigned) && reads(a.concatenation, assigned);
+            } else if (e instanceof CallExpression && ((CallExpression) e).name.equals(function.name)) {
+                recursive = true;
+                return reads(((CallExpression) e).arguments, assigned);
+            }
+            return false;
+        }
+        
+        private boolean reads(Expression[] expressions, BitSet assigned) {
+            for (Expression e : expressions) {
+                if (!reads(e, assigned)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+    
+    /**
+     * Results of a remembered function by argument values, least recently
+     * used dropped first. Only calls whose arguments and result are numbers
+     * or text are remembered. A compiled program may run on several
+     * threads at once, so access is synchronized.
+     */
+    static final class Memo {
+        static final int CAPACITY = 10_000;
+        
+        private final Map<Object, Object> results = new LinkedHashMap<Object, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+                return size() > CAPACITY;
+            }
+        };
+        private long hits;
+        private long misses;
+        
+        /**
+         * The cache key for these arguments, or null if one of them is a
+         * list. Decimal mode is part of the key, as it changes arithmetic.
+         */
+        static Object key(Object[] arguments, boolean decimal) {
+            for (Object argument : arguments) {
+                if (!(argument instanceof String) && !Numbers.isNumber(argument)) {
+                    return null;
+                }
+            }
+            if (arguments.length == 1 && !decimal) {
+                return arguments[0];
+            }
+            List<Object> key = new ArrayList<>(arguments.length + 1);
+            key.addAll(Arrays.asList(arguments));
+            key.add(decimal);
+            return key;
+        }
+        
+        /** The remembered result, or null (counted as a miss). */
+        synchronized Object get(Object key) {
+            Object result = results.get(key);
+            if (result != null) {
+                hits++;
+            } else {
+                misses++;
+            }
+            return result;
+        }
+        
+        synchronized void put(Object key, Object result) {
+            if (result instanceof String || Numbers.isNumber(result)) {
+                results.put(key, result);
+            }
+        }
+        
+        synchronized long hits() {
+            return hits;
+        }
+        
+        synchronized long misses() {
+            return misses;
+        }
+        
+        synchronized int size() {
+            return results.size();
         }
     }
     
     // ============================================================
-    // EXECUTION CONTEXT (Local Scopes)
+    // SCOPES AND FRAMES (Slot-Resolved Variables)
     // ============================================================
     
+    /**
+     * Compile-time layout of one scope: every variable name used in it gets
+     * a fixed slot index. There is one global scope per compiled program and
+     * one scope per function. A function slot that has not been assigned yet
+     * falls back to the global slot of the same name (see link()).
+     */
+    static final class Scope {
+        final String name;
+        final Scope global;   // null for the global scope itself
+        final List<String> names = new ArrayList<>();
+        private final Map<String, Integer> slots = new HashMap<>();
+        private int[] fallback = new int[0];
+        
+        Scope(String name, Scope global) {
+            this.name = name;
+            this.global = global;
+        }
+        
+        /** Slot for a name, allocating one if the name is new. */
+        int define(String variable) {
+            Integer slot = slots.get(variable);
+            if (slot == null) {
+                slot = names.size();
+                slots.put(variable, slot);
+                names.add(variable);
+            }
+            return slot;
+        }
+        
+        /** Slot for a name, or -1 if this scope never mentions it. */
+        int indexOf(String variable) {
+            Integer slot = slots.get(variable);
+            return (slot != null) ? slot : -1;
+        }
+        
+        int size() {
+            return names.size();
+        }
+        
+        /** Resolve each function slot's global fallback once its body is compiled. */
+        void link() {
+            fallback = new int[names.size()];
+            for (int i = 0; i < fallback.length; i++) {
+                fallback[i] = global.define(names.get(i));
+            }
+        }
+    }
+    
+    /**
+     * Runtime frame for one scope: variable values indexed by slot.
+     * Numbers are kept unboxed in numbers[], with the NUMBER marker in
+     * slots[]; anything else is stored as an object. Values are never
+     * null, so a null slot means "not assigned".
+     */
     static class ExecutionContext {
-        Map<String, Object> localVariables = new HashMap<>();
-        ExecutionContext parent;
-        String scopeName;
+        static final Object NUMBER = new Object();
+        
+        final Scope scope;
+        final ExecutionContext globals;   // the global frame (this, for the global frame)
+        final LexiRuntime runtime;
+        Object[] slots;
+        long[] numbers;
+        
+        /** The global frame of a program run by runtime. */
+        ExecutionContext(Scope scope, LexiRuntime runtime) {
+            this.scope = scope;
+            this.globals = this;
+            this.runtime = runtime;
+            this.slots = new Object[scope.size()];
+            this.numbers = new long[scope.size()];
+        }
+        
+        /** A copy of a global frame for another runtime; values are shared. */
+        ExecutionContext(ExecutionContext source, LexiRuntime runtime) {
+            this.scope = source.scope;
+            this.globals = this;
+            this.runtime = runtime;
+            this.slots = source.slots.clone();
+            this.numbers = source.numbers.clone();
+            // Text being appended to belongs to one frame; the copy gets its current value
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i] instanceof TextBuffer) {
+                    slots[i] = slots[i].toString();
+                }
+            }
+        }
+        
+        /** Replace every list in the slots with its copy (see LexiList.copy). */
+        void copyLists(Map<LexiList, LexiList> copies) {
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i] instanceof LexiList) {
+                    slots[i] = ((LexiList) slots[i]).copy(copies);
+                }
+            }
+        }
+        
+        /** A copy of a function frame over another copy of the global frame. */
+        ExecutionContext(ExecutionContext source, ExecutionContext globals) {
+            this.scope = source.scope;
+            this.globals = globals;
+            this.runtime = globals.runtime;
+            this.slots = source.slots.clone();
+            this.numbers = source.numbers.clone();
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i] instanceof TextBuffer) {
+                    slots[i] = slots[i].toString();
+                }
+            }
+        }
+        
+        /** A function frame; globals is the program's global frame. */
+        ExecutionContext(Scope scope, ExecutionContext globals) {
+            this.scope = scope;
+            this.globals = globals;
+            this.runtime = globals.runtime;
+            this.slots = new Object[scope.size()];
+            this.numbers = new long[scope.size()];
+        }
+        
+        /** Slot value as an object; numbers are boxed and text flattened here, at the boundary. */
+        Object get(int slot) {
+            Object value = (slot < slots.length) ? slots[slot] : null;
+            if (value == NUMBER) {
+                return Numbers.whole(numbers[slot]);
+            }
+            if (value instanceof TextBuffer) {
+                return value.toString();
+            }
+            if (value == null && globals != this) {
+                value = globals.get(scope.fallback[slot]);
+            }
+            return value;
+        }
+        
+        /** This frame's own slot content as stored, without the global fallback. */
+        Object local(int slot) {
+            return (slot < slots.length) ? slots[slot] : null;
+        }
+        
+        /** Slot value as a number, without boxing when it is stored unboxed. */
+        long getLong(int slot) throws LexiException {
+            Object value = (slot < slots.length) ? slots[slot] : null;
+            if (value == NUMBER) {
+                return numbers[slot];
+            }
+            if (value == null) {
+                if (globals != this) {
+                    return globals.getLong(scope.fallback[slot]);
+                }
+                throw new LexiException("Variable '" + scope.names.get(slot) + "' not defined");
+            }
+            return toLong((value instanceof TextBuffer) ? value.toString() : value);
+        }
         
-        ExecutionContext(ExecutionContext parent, String scopeName) {
-            this.parent = parent;
-            this.scopeName = scopeName;
+        void set(int slot, Object value) {
+            if (value instanceof Integer || value instanceof Long) {
+                setLong(slot, ((Number) value).longValue());
+                return;
+            }
+            ensureCapacity(slot);
+            slots[slot] = value;
+        }
+        
+        void setLong(int slot, long value) {
+            ensureCapacity(slot);
+            slots[slot] = NUMBER;
+            numbers[slot] = value;
         }
         
-        Object getVariable(String name) {
-            if (localVariables.containsKey(name)) {
-                return localVariables.get(name);
+        private void ensureCapacity(int slot) {
+            if (slot >= slots.length) {
+                // Doubling keeps a global frame cheap to grow while a program is streamed
+                int size = Math.max(Math.max(slot + 1, scope.size()), slots.length * 2);
+                slots = Arrays.copyOf(slots, size);
+                numbers = Arrays.copyOf(numbers, size);
             }
-            if (parent != null) {
-                return parent.getVariable(name);
+        }
+        
+        /** Slot content as stored (NUMBER for numbers), following the global fallback. */
+        private Object raw(int slot) {
+            Object value = (slot < slots.length) ? slots[slot] : null;
+            if (value == null && globals != this) {
+                return globals.raw(scope.fallback[slot]);
             }
-            return globalVariables.get(name);
+            return value;
         }
         
-        void setVariable(String name, Object value) {
-            localVariables.put(name, value);
+        /** True if the slot holds a string (checked without boxing). */
+        boolean holdsString(int slot) {
+            Object value = raw(slot);
+            return value instanceof String || value instanceof TextBuffer;
         }
         
-        boolean hasVariable(String name) {
-            return localVariables.containsKey(name) || 
-                   (parent != null && parent.hasVariable(name)) ||
-                   globalVariables.containsKey(name);
+        /** True if the slot holds an unboxed number. */
+        boolean holdsNumber(int slot) {
+            return raw(slot) == NUMBER;
         }
     }
     
@@ -95,9 +834,35 @@ public class Lexi {
     // CUSTOM EXCEPTION
     // ============================================================
     
-    static class LexiException extends Exception {
+    public static class LexiException extends Exception {
+        private static final long serialVersionUID = 1L;
+        
+        int line = -1;   // source line, filled in by the statement that raised it
+        
+        // Errors are reported by message and line, never by stack trace, so
+        // none is captured: raising one costs no more than an allocation
         LexiException(String message) {
-            super("Line " + (currentLine + 1) + ": " + message);
+            super(message, null, false, false);
+        }
+        
+        LexiException(String message, int line) {
+            this(message);
+            this.line = line;
+        }
+        
+        /** The 0-based source line the error was raised on, or -1 if not known. */
+        public int getLine() {
+            return line;
+        }
+        
+        @Override
+        public String getMessage() {
+            return "Line " + (line + 1) + ": " + super.getMessage();
+        }
+        
+        /** The message without its line number. */
+        String detail() {
+            return super.getMessage();
         }
     }
     
@@ -106,20 +871,121 @@ public class Lexi {
     // ============================================================
     
     public static void main(String[] args) {
+        LexiRuntime runtime = new LexiRuntime(new InputStreamReader(System.in), OutputBuffer.standardOutput());
+        String file = null;
+        String compileSource = null;
+        String output = null;
+        boolean stream = false;
+        boolean serve = false;
+        String socket = null;
+        int port = -1;   // the Unix socket unless a port is given
+        String root = ".";
+        int workers = Runtime.getRuntime().availableProcessors();
+        
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--serve")) {
+                serve = true;
+            } else if (arg.startsWith("--socket=")) {
+                socket = arg.substring("--socket=".length());
+            } else if (arg.startsWith("--port=")) {
+                port = positiveOption(arg);
+            } else if (arg.startsWith("--workers=")) {
+                workers = positiveOption(arg);
+            } else if (arg.startsWith("--root=")) {
+                root = arg.substring("--root=".length());
+            } else if (arg.startsWith("--tier=")) {
+                setTierThreshold(runtime, arg.substring("--tier=".length()));
+            } else if (arg.equals("--stream")) {
+                stream = true;
+            } else if (arg.equals("--no-cache")) {
+                runtime.useProgramCache = false;
+            } else if (arg.equals("--decimal")) {
+                runtime.decimal = true;
+            } else if (arg.startsWith("--max-depth=")) {
+                runtime.maxCallDepth = positiveOption(arg);
+            } else if (arg.equals("--compile") && i + 1 < args.length) {
+                compileSource = args[++i];
+            } else if (arg.equals("-o") && i + 1 < args.length) {
+                output = args[++i];
+            } else if (arg.startsWith("-")) {
+                System.err.println("Unknown option: " + arg);
+                System.exit(1);
+            } else {
+                file = arg;
+            }
+        }
+        
+        if (compileSource != null) {
+            // Ahead-of-time compilation to a runnable jar
+            if (output == null) {
+                output = compileSource.replaceFirst("\\.lexi$", "") + ".jar";
+            }
+            compileToJar(compileSource, output);
+            return;
+        }
+        
+        if (serve) {
+            try {
+                new LexiServer(workers, runtime.tierThreshold, runtime.decimal, runtime.maxCallDepth, Paths.get(root))
+                    .serve(socket, port);
+            } catch (IOException e) {
+                System.err.println("Cannot start server: " + e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
+        
         System.out.println(BANNER);
         System.out.println();
         
-        if (args.length > 0) {
+        if (file != null) {
             // File execution mode
-            loadFile(args[0]);
             try {
-                runProgram();
+                runFile(runtime, file, stream);
+            } catch (IOException e) {
+                System.err.println("Error loading file: " + e.getMessage());
+                System.exit(1);
             } catch (LexiException e) {
-                displayError(e);
+                displayError(runtime, e);
             }
         } else {
             // Interactive REPL mode
-            startREPL();
+            startREPL(runtime);
+        }
+    }
+    
+    /** The number in "--name=N", which must be positive. */
+    private static int positiveOption(String arg) {
+        String value = arg.substring(arg.indexOf('=') + 1);
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        System.err.println("Invalid value in " + arg + " (use a positive number)");
+        System.exit(1);
+        return 0;
+    }
+    
+    /**
+     * --tier=off, --tier=force or --tier=N (compile after N calls/iterations)
+     */
+    private static void setTierThreshold(LexiRuntime runtime, String value) {
+        if (value.equalsIgnoreCase("off")) {
+            runtime.tierThreshold = -1;
+        } else if (value.equalsIgnoreCase("force")) {
+            runtime.tierThreshold = 0;
+        } else {
+            try {
+                runtime.tierThreshold = Math.max(0, Integer.parseInt(value));
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid --tier value: " + value + " (use off, force or a number)");
+                System.exit(1);
+            }
         }
     }
     
@@ -127,7 +993,7 @@ public class Lexi {
     // REPL (Read-Eval-Print Loop)
     // ============================================================
     
-    private static void startREPL() {
+    private static void startREPL(LexiRuntime runtime) {
         System.out.println("Welcome to Lexi! Type HELP for commands.");
         System.out.println();
         
@@ -151,36 +1017,37 @@ public class Lexi {
             }
             
             if (input.equalsIgnoreCase("clear")) {
-                program.clear();
-                globalVariables.clear();
-                functions.clear();
+                runtime.program.clear();
+                runtime.globalVariables.clear();
+                runtime.functions.clear();
+                runtime.functionsChanged();
                 System.out.println("Memory cleared.");
                 continue;
             }
             
             if (input.equalsIgnoreCase("debug")) {
-                debugMode = !debugMode;
-                System.out.println("Debug mode: " + (debugMode ? "ON" : "OFF"));
+                runtime.debugMode = !runtime.debugMode;
+                System.out.println("Debug mode: " + (runtime.debugMode ? "ON" : "OFF"));
                 continue;
             }
             
             if (input.equalsIgnoreCase("run")) {
                 try {
-                    runProgram();
+                    runProgram(runtime, parseProgram(runtime.program));
                 } catch (LexiException e) {
-                    displayError(e);
+                    displayError(runtime, e);
                 }
                 System.out.println();
                 continue;
             }
             
             if (input.equalsIgnoreCase("show")) {
-                showProgramState();
+                showProgramState(runtime);
                 continue;
             }
             
             // Add line to program
-            program.add(input);
+            runtime.program.add(input);
         }
     }
     
@@ -202,6 +1069,17 @@ public class Lexi {
         System.out.println("  EXIT     - Quit Lexi");
         System.out.println();
         
+        System.out.println("COMMAND LINE:");
+        System.out.println("  java src.Lexi [options] [file.lexi]");
+        System.out.println("  --tier=N       - Compile functions/loops to bytecode after N runs (default 1000)");
+        System.out.println("  --tier=force   - Compile them on first use");
+        System.out.println("  --tier=off     - Always interpret");
+        System.out.println("  --no-cache     - Do not read or write the parsed-program cache (file.lexi.cache)");
+        System.out.println("  --stream       - Run the file while it loads (automatic from 1 MB)");
+        System.out.println("  --compile foo.lexi -o foo.jar - Compile to a runnable jar");
+        System.out.println("  --serve [--socket=PATH | --port=N] [--root=DIR] [--workers=N] - Run scripts for bin/lexi-client");
+        System.out.println();
+        
         System.out.println("LANGUAGE BASICS:");
         System.out.println("  Variables:");
         System.out.println("    create a number called x with value 10");
@@ -225,6 +1103,7 @@ public class Lexi {
         System.out.println("      return n * n");
         System.out.println("    end");
         System.out.println("    set result to call square with 5");
+        System.out.println("    remember function rate n   (repeated calls reuse the result)");
         System.out.println();
         
         System.out.println("  Conditionals:");
@@ -241,6 +1120,12 @@ public class Lexi {
         System.out.println("    for i from 1 to 10");
         System.out.println("      display i");
         System.out.println("    end");
+        System.out.println("    parallel for i from 1 to n reducing sum total   (also min, max, list)");
+        System.out.println();
+        
+        System.out.println("  Tasks:");
+        System.out.println("    spawn call fetch with url as page   # Runs alongside");
+        System.out.println("    wait for page                       # page = its return value");
         System.out.println();
         
         System.out.println("  Expressions:");
@@ -257,35 +1142,40 @@ public class Lexi {
     // PROGRAM STATE DISPLAY
     // ============================================================
     
-    private static void showProgramState() {
+    private static void showProgramState(LexiRuntime runtime) {
         System.out.println("\n╔════════════════════════════════════════════╗");
         System.out.println("║         PROGRAM STATE                      ║");
         System.out.println("╚════════════════════════════════════════════╝\n");
         
         System.out.println("VARIABLES:");
-        if (globalVariables.isEmpty()) {
+        if (runtime.globalVariables.isEmpty()) {
             System.out.println("  (none)");
         } else {
-            for (Map.Entry<String, Object> entry : globalVariables.entrySet()) {
+            for (Map.Entry<String, Object> entry : runtime.globalVariables.entrySet()) {
                 System.out.println("  " + entry.getKey() + " = " + formatValue(entry.getValue()));
             }
         }
         System.out.println();
         
         System.out.println("FUNCTIONS:");
-        if (functions.isEmpty()) {
+        if (runtime.functions.isEmpty()) {
             System.out.println("  (none)");
         } else {
-            for (Map.Entry<String, Function> entry : functions.entrySet()) {
+            for (Map.Entry<String, Function> entry : runtime.functions.entrySet()) {
                 Function f = entry.getValue();
                 System.out.print("  " + f.name + "(");
                 System.out.print(String.join(", ", f.parameters));
-                System.out.println(")");
+                System.out.print(")");
+                if (f.memo != null) {
+                    System.out.print("  remembered: " + f.memo.size() + " results, " +
+                        f.memo.hits() + " hits, " + f.memo.misses() + " misses");
+                }
+                System.out.println();
             }
         }
         System.out.println();
         
-        System.out.println("PROGRAM LINES: " + program.size());
+        System.out.println("PROGRAM LINES: " + runtime.program.size());
         System.out.println();
     }
     
@@ -293,913 +1183,6487 @@ public class Lexi {
     // FILE LOADING
     // ============================================================
     
-    private static void loadFile(String path) {
-        try (BufferedReader br = new BufferedReader(new FileReader(path))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                program.add(line);
-            }
-            System.out.println("Loaded: " + path);
-            System.out.println();
-        } catch (IOException e) {
-            System.err.println("Error loading file: " + e.getMessage());
-            System.exit(1);
+    // Files at least this big are run while they load (see streamProgram)
+    static final long STREAM_THRESHOLD = 1 << 20;
+    
+    /** Run a program file, streaming it when asked to or when it is large. */
+    private static void runFile(LexiRuntime runtime, String path, boolean stream)
+            throws IOException, LexiException {
+        if (stream || Files.size(Paths.get(path)) >= STREAM_THRESHOLD) {
+            streamProgram(runtime, path);
+        } else {
+            runProgram(runtime, loadProgram(runtime, path));
         }
     }
     
-    // ============================================================
-    // PROGRAM EXECUTION (Structured Block Execution)
-    // ============================================================
+    private static void loadFile(LexiRuntime runtime, String path) throws IOException {
+        try (SourceReader source = new SourceReader(Paths.get(path))) {
+            String line;
+            while ((line = source.readLine()) != null) {
+                runtime.program.add(line);
+            }
+            runtime.out.println("Loaded: " + path);
+            runtime.out.println();
+        }
+    }
     
-    private static void runProgram() throws LexiException {
-        currentLine = 0;
-        hasReturned = false;
-        returnValue = null;
-        ExecutionContext globalContext = new ExecutionContext(null, "global");
-        executeBlock(program, 0, program.size(), globalContext);
+    /** All lines of a UTF-8 source file. */
+    static List<String> readSource(Path path) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (SourceReader source = new SourceReader(path)) {
+            String line;
+            while ((line = source.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
     }
     
     /**
-     * Execute a block of code using structured execution
-     * This is cleaner than jumping with instruction pointers
+     * Reads the lines of a UTF-8 source file through a memory mapping.
+     *
+     * The file is mapped one window at a time and each line is decoded
+     * only when it is returned, so nothing but the current line is kept
+     * on the heap. Lines end at \n, \r or \r\n, as with BufferedReader;
+     * malformed bytes decode to U+FFFD.
      */
-    private static void executeBlock(List<String> code, int startLine, int endLine, 
-                                     ExecutionContext context) throws LexiException {
-        int i = startLine;
+    static final class SourceReader implements Closeable {
+        private static final long WINDOW = 64L << 20;
         
-        while (i < endLine && !hasReturned) {
-            currentLine = i;
-            String line = code.get(i).trim();
-            
-            if (debugMode) {
-                System.out.println("[DEBUG] Line " + (i + 1) + ": " + line);
+        private final FileChannel channel;
+        private final long size;
+        private MappedByteBuffer window;
+        private long windowStart = 0;
+        private byte[] bytes = new byte[256];
+        
+        SourceReader(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            size = channel.size();
+            window = map(0);
+        }
+        
+        /** The next line without its terminator, or null at the end of the file. */
+        String readLine() throws IOException {
+            int start = window.position();
+            if (windowStart + start >= size) {
+                return null;
             }
             
-            // Skip empty lines and comments
-            if (line.isEmpty() || line.startsWith("#") || line.startsWith("//")) {
+            int limit = window.limit();
+            int i = start;
+            while (i < limit) {
+                byte b = window.get(i);
+                if (b == '\n' || b == '\r') {
+                    break;
+                }
                 i++;
-                continue;
             }
             
-            // Handle different statement types
-            if (isReturnStatement(line)) {
-                handleReturn(line, context);
-                return;
-            } else if (isIfStatement(line)) {
-                i = handleIfBlock(code, i, endLine, context);
-            } else if (isWhileStatement(line)) {
-                i = handleWhileBlock(code, i, endLine, context);
-            } else if (isForStatement(line)) {
-                i = handleForBlock(code, i, endLine, context);
-            } else if (isFunctionDefinition(line)) {
-                i = handleFunctionDefinition(code, i, endLine);
-            } else if (isBlockEnd(line)) {
-                return; // Exit this block
-            } else {
-                executeStatement(line, context);
-                i++;
+            boolean lastWindow = windowStart + limit == size;
+            if (i == limit && !lastWindow || i == limit - 1 && window.get(i) == '\r' && !lastWindow) {
+                // The line (or its \r\n) runs past this window
+                if (start == 0) {
+                    throw new IOException("Line longer than " + (WINDOW >> 20) + " MB");
+                }
+                window = map(windowStart + start);
+                return readLine();
+            }
+            
+            int length = i - start;
+            if (bytes.length < length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            window.get(start, bytes, 0, length);
+            
+            int next = i;
+            if (i < limit) {
+                next = (window.get(i) == '\r' && i + 1 < limit && window.get(i + 1) == '\n') ? i + 2 : i + 1;
             }
+            window.position(next);
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+        
+        private MappedByteBuffer map(long start) throws IOException {
+            windowStart = start;
+            return channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW, size - start));
+        }
+        
+        @Override
+        public void close() throws IOException {
+            channel.close();
         }
     }
     
     // ============================================================
-    // STATEMENT EXECUTION
+    // PROGRAM CACHE (Pre-Parsed Programs on Disk)
     // ============================================================
-    
-    private static void executeStatement(String line, ExecutionContext context) 
-            throws LexiException {
-        
-        // Try all natural language patterns
-        if (tryCreateVariable(line, context)) return;
-        if (trySetVariable(line, context)) return;
-        if (tryIncreaseVariable(line, context)) return;
-        if (tryDecreaseVariable(line, context)) return;
-        if (tryDisplay(line, context)) return;
-        if (tryInput(line, context)) return;
-        if (tryFunctionCall(line, context)) return;
-        if (tryCreateArray(line, context)) return;
-        if (tryArrayAdd(line, context)) return;
-        
-        throw new LexiException("Unknown command: " + line);
+
+    /**
+     * A parsed program: its statement tree and the global scope whose
+     * slots the tree refers to.
+     */
+    static final class ParsedProgram {
+        final Scope scope;
+        final Statement[] tree;
+
+        ParsedProgram(Scope scope, Statement[] tree) {
+            this.scope = scope;
+            this.tree = tree;
+        }
     }
-    
+
+    /**
+     * Load a program file, using the parsed form cached next to it when
+     * the cache was written from the same content by the same version.
+     */
+    private static ParsedProgram loadProgram(LexiRuntime runtime, String path) throws IOException {
+        byte[] content = Files.readAllBytes(Paths.get(path));
+
+        Path cacheFile = Paths.get(path + ProgramCache.EXTENSION);
+        byte[] hash = ProgramCache.hash(content);
+
+        ParsedProgram parsed = runtime.useProgramCache ? ProgramCache.read(cacheFile, hash) : null;
+        if (parsed != null) {
+            runtime.out.println("Loaded: " + path);
+            runtime.out.println();
+            return parsed;
+        }
+
+        // Parse the bytes already read for the hash rather than reading the file again
+        try (BufferedReader source = new BufferedReader(new StringReader(new String(content, StandardCharsets.UTF_8)))) {
+            String line;
+            while ((line = source.readLine()) != null) {
+                runtime.program.add(line);
+            }
+        }
+        runtime.out.println("Loaded: " + path);
+        runtime.out.println();
+        parsed = parseProgram(runtime.program);
+
+        if (runtime.useProgramCache) {
+            ProgramCache.write(cacheFile, hash, parsed);
+        }
+        return parsed;
+    }
+
+    /**
+     * Binary cache of a parsed program, stored as "<file>.lexi.cache".
+     *
+     * Layout: magic, format version, interpreter version, SHA-256 of the
+     * source, then a string table, the scope table (global scope first)
+     * and the statement tree. Nodes are written as a tag followed by their
+     * fields; slots are stored as resolved, so nothing is re-parsed. The
+     * file is memory-mapped when read. A cache that does not match, or
+     * cannot be decoded, is ignored and rewritten.
+     */
+    static final class ProgramCache {
+        static final String EXTENSION = ".cache";
+        private static final int MAGIC = 0x4c455843;   // "LEXC"
+        private static final int FORMAT = 7;
+
+        // Statement tags
+        private static final int CREATE = 1, SET = 2, INCREASE = 3, DISPLAY = 4, INPUT = 5,
+            CALL = 6, CREATE_LIST = 7, LIST_ADD = 8, RETURN = 9, IF = 10, WHILE = 11,
+            FOR = 12, FUNCTION = 13, INVALID = 14, SET_LIST_ITEM = 15, PARALLEL_FOR = 16,
+            SPAWN = 17, WAIT = 18;
+
+        // Expression tags
+        private static final int NUMBER = 1, STRING = 2, VARIABLE = 3, NEGATE = 4, BINARY = 5,
+            CONCATENATION = 6, CONCATENATION_PART = 7, ADDITION_OR_CONCATENATION = 8,
+            CALL_EXPRESSION = 9, INVALID_EXPRESSION = 10, LIST_ITEM = 11, LENGTH = 12, DECIMAL = 13;
+
+        static byte[] hash(byte[] content) {
+            try {
+                return MessageDigest.getInstance("SHA-256").digest(content);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /** The cached program, or null if there is no usable cache. */
+        static ParsedProgram read(Path file, byte[] hash) {
+            if (!Files.isRegularFile(file)) {
+                return null;
+            }
+            try (FileChannel channel = FileChannel.open(file)) {
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                return new Reader(buffer).read(hash);
+            } catch (IOException | RuntimeException e) {
+                return null;   // unreadable or stale: parse the source instead
+            }
+        }
+
+        /** Write the cache; failures (e.g. a read-only directory) are ignored. */
+        static void write(Path file, byte[] hash, ParsedProgram parsed) {
+            try {
+                byte[] bytes = new Writer().write(hash, parsed);
+                Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), ".lexi", ".tmp");
+                try {
+                    Files.write(temp, bytes);
+                    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    Files.deleteIfExists(temp);
+                }
+            } catch (IOException | RuntimeException e) {
+                // The cache is an optimisation only
+            }
+        }
+
+        private static final class Writer {
+            private final Map<String, Integer> strings = new LinkedHashMap<>();
+            private final List<Scope> scopes = new ArrayList<>();
+            private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            private final DataOutputStream out = new DataOutputStream(body);
+
+            byte[] write(byte[] hash, ParsedProgram parsed) throws IOException {
+                scopes.add(parsed.scope);
+                block(parsed.tree);
+
+                ByteArrayOutputStream file = new ByteArrayOutputStream();
+                DataOutputStream header = new DataOutputStream(file);
+                header.writeInt(MAGIC);
+                header.writeInt(FORMAT);
+                header.writeUTF(VERSION);
+                header.write(hash);
+
+                // Scope table, interning names before the string table is written
+                ByteArrayOutputStream scopeBytes = new ByteArrayOutputStream();
+                DataOutputStream scopeOut = new DataOutputStream(scopeBytes);
+                scopeOut.writeInt(scopes.size());
+                for (Scope scope : scopes) {
+                    scopeOut.writeInt(string(scope.name));
+                    scopeOut.writeInt(scope.names.size());
+                    for (String name : scope.names) {
+                        scopeOut.writeInt(string(name));
+                    }
+                }
+
+                header.writeInt(strings.size());
+                for (String s : strings.keySet()) {
+                    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                    header.writeInt(bytes.length);
+                    header.write(bytes);
+                }
+                scopeBytes.writeTo(file);
+                body.writeTo(file);
+                return file.toByteArray();
+            }
+
+            private int string(String s) {
+                Integer index = strings.get(s);
+                if (index == null) {
+                    index = strings.size();
+                    strings.put(s, index);
+                }
+                return index;
+            }
+
+            private void block(Statement[] block) throws IOException {
+                out.writeInt(block.length);
+                for (Statement statement : block) {
+                    statement(statement);
+                }
+            }
+
+            private void statement(Statement statement) throws IOException {
+                int tag = tag(statement);
+                out.writeByte(tag);
+                out.writeInt(statement.line);
+                out.writeInt(string(statement.source));
+
+                switch (tag) {
+                    case CREATE:
+                        out.writeInt(((CreateStatement) statement).slot);
+                        expression(((CreateStatement) statement).value);
+                        break;
+                    case SET:
+                        out.writeInt(((SetStatement) statement).slot);
+                        expression(((SetStatement) statement).value);
+                        break;
+                    case INCREASE: {
+                        IncreaseStatement s = (IncreaseStatement) statement;
+                        out.writeInt(s.slot);
+                        out.writeByte(s.sign);
+                        optional(s.amount);
+                        break;
+                    }
+                    case DISPLAY:
+                        expression(((DisplayStatement) statement).value);
+                        break;
+                    case INPUT:
+                        out.writeInt(((InputStatement) statement).slot);
+                        break;
+                    case CALL:
+                        expression(((CallStatement) statement).call);
+                        break;
+                    case SPAWN:
+                        expression(((SpawnStatement) statement).call);
+                        out.writeInt(((SpawnStatement) statement).slot);
+                        break;
+                    case WAIT:
+                        out.writeInt(string(((WaitStatement) statement).name));
+                        out.writeInt(((WaitStatement) statement).slot);
+                        break;
+                    case CREATE_LIST:
+                        out.writeInt(((CreateListStatement) statement).slot);
+                        break;
+                    case LIST_ADD: {
+                        ListAddStatement s = (ListAddStatement) statement;
+                        expression(s.value);
+                        out.writeInt(string(s.listName));
+                        out.writeInt(s.listSlot);
+                        break;
+                    }
+                    case SET_LIST_ITEM: {
+                        SetListItemStatement s = (SetListItemStatement) statement;
+                        out.writeInt(string(s.listName));
+                        out.writeInt(s.listSlot);
+                        expression(s.position);
+                        expression(s.value);
+                        break;
+                    }
+                    case RETURN:
+                        optional(((ReturnStatement) statement).value);
+                        break;
+                    case IF: {
+                        IfStatement s = (IfStatement) statement;
+                        out.writeInt(s.conditions.length);
+                        for (int i = 0; i < s.conditions.length; i++) {
+                            condition(s.conditions[i]);
+                            block(s.branches[i]);
+                        }
+                        out.writeBoolean(s.elseBranch != null);
+                        if (s.elseBranch != null) {
+                            block(s.elseBranch);
+                        }
+                        break;
+                    }
+                    case WHILE: {
+                        WhileStatement s = (WhileStatement) statement;
+                        out.writeBoolean(s.tier != null);
+                        condition(s.condition);
+                        block(s.body);
+                        break;
+                    }
+                    case FOR: {
+                        ForStatement s = (ForStatement) statement;
+                        out.writeBoolean(s.tier != null);
+                        out.writeInt(s.slot);
+                        expression(s.start);
+                        expression(s.end);
+                        block(s.body);
+                        break;
+                    }
+                    case PARALLEL_FOR: {
+                        ParallelForStatement s = (ParallelForStatement) statement;
+                        out.writeInt(s.slot);
+                        expression(s.start);
+                        expression(s.end);
+                        out.writeInt(s.reductions.length);
+                        for (int i = 0; i < s.reductions.length; i++) {
+                            out.writeInt(s.reductions[i]);
+                            out.writeInt(s.reductionSlots[i]);
+                            out.writeInt(string(s.reductionNames[i]));
+                        }
+                        block(s.body);
+                        break;
+                    }
+                    case FUNCTION: {
+                        Function function = ((FunctionDefinitionStatement) statement).function;
+                        out.writeInt(string(function.name));
+                        out.writeInt(function.parameters.size());
+                        for (String parameter : function.parameters) {
+                            out.writeInt(string(parameter));
+                        }
+                        out.writeInt(scopes.size());
+                        scopes.add(function.scope);
+                        out.writeBoolean(function.remembered);
+                        block(function.body);
+                        break;
+                    }
+                    default:
+                        out.writeInt(string(((InvalidStatement) statement).message));
+                }
+            }
+
+            private int tag(Statement s) {
+                if (s instanceof CreateStatement) return CREATE;
+                if (s instanceof SetStatement) return SET;
+                if (s instanceof IncreaseStatement) return INCREASE;
+                if (s instanceof DisplayStatement) return DISPLAY;
+                if (s instanceof InputStatement) return INPUT;
+                if (s instanceof CallStatement) return CALL;
+                if (s instanceof SpawnStatement) return SPAWN;
+                if (s instanceof WaitStatement) return WAIT;
+                if (s instanceof CreateListStatement) return CREATE_LIST;
+                if (s instanceof ListAddStatement) return LIST_ADD;
+                if (s instanceof SetListItemStatement) return SET_LIST_ITEM;
+                if (s instanceof ReturnStatement) return RETURN;
+                if (s instanceof IfStatement) return IF;
+                if (s instanceof WhileStatement) return WHILE;
+                if (s instanceof ForStatement) return FOR;
+                if (s instanceof ParallelForStatement) return PARALLEL_FOR;
+                if (s instanceof FunctionDefinitionStatement) return FUNCTION;
+                if (s instanceof InvalidStatement) return INVALID;
+                throw new IllegalArgumentException("Cannot cache " + s.getClass().getSimpleName());
+            }
+
+            private void optional(Expression e) throws IOException {
+                out.writeBoolean(e != null);
+                if (e != null) {
+                    expression(e);
+                }
+            }
+
+            private void condition(Condition c) throws IOException {
+                out.writeByte(c.operator);
+                if (c.operator >= 0) {
+                    expression(c.left);
+                    expression(c.right);
+                }
+            }
+
+            private void expressions(Expression[] expressions) throws IOException {
+                out.writeInt(expressions.length);
+                for (Expression e : expressions) {
+                    expression(e);
+                }
+            }
+
+            private void expression(Expression e) throws IOException {
+                if (e instanceof NumberLiteral) {
+                    out.writeByte(NUMBER);
+                    out.writeLong(((NumberLiteral) e).value);
+                } else if (e instanceof DecimalLiteral) {
+                    out.writeByte(DECIMAL);
+                    out.writeInt(string(((DecimalLiteral) e).text));
+                } else if (e instanceof StringLiteral) {
+                    out.writeByte(STRING);
+                    out.writeInt(string(((StringLiteral) e).value));
+                } else if (e instanceof VariableExpression) {
+                    out.writeByte(VARIABLE);
+                    out.writeInt(string(((VariableExpression) e).name));
+                    out.writeInt(((VariableExpression) e).slot);
+                } else if (e instanceof ListItemExpression) {
+                    ListItemExpression item = (ListItemExpression) e;
+                    out.writeByte(LIST_ITEM);
+                    out.writeInt(string(item.listName));
+                    out.writeInt(item.listSlot);
+                    expression(item.position);
+                } else if (e instanceof LengthExpression) {
+                    out.writeByte(LENGTH);
+                    out.writeInt(string(((LengthExpression) e).name));
+                    out.writeInt(((LengthExpression) e).slot);
+                } else if (e instanceof NegateExpression) {
+                    out.writeByte(NEGATE);
+                    expression(((NegateExpression) e).operand);
+                } else if (e instanceof BinaryExpression) {
+                    BinaryExpression b = (BinaryExpression) e;
+                    out.writeByte(BINARY);
+                    out.writeChar(b.operator);
+                    expression(b.left);
+                    expression(b.right);
+                } else if (e instanceof ConcatenationExpression) {
+                    out.writeByte(CONCATENATION);
+                    expressions(((ConcatenationExpression) e).parts);
+                } else if (e instanceof ConcatenationPart) {
+                    ConcatenationPart p = (ConcatenationPart) e;
+                    out.writeByte(CONCATENATION_PART);
+                    out.writeInt(string(p.text));
+                    out.writeInt(p.slot);
+                    expression(p.numeric);
+                } else if (e instanceof AdditionOrConcatenation) {
+                    AdditionOrConcatenation a = (AdditionOrConcatenation) e;
+                    out.writeByte(ADDITION_OR_CONCATENATION);
+                    out.writeInt(a.slots.length);
+                    for (int slot : a.slots) {
+                        out.writeInt(slot);
+                    }
+                    expression(a.addition);
+                    expression(a.concatenation);
+                } else if (e instanceof CallExpression) {
+                    out.writeByte(CALL_EXPRESSION);
+                    out.writeInt(string(((CallExpression) e).name));
+                    expressions(((CallExpression) e).arguments);
+                } else if (e instanceof InvalidExpression) {
+                    out.writeByte(INVALID_EXPRESSION);
+                    out.writeInt(string(((InvalidExpression) e).message));
+                } else {
+                    throw new IllegalArgumentException("Cannot cache " + e.getClass().getSimpleName());
+                }
+            }
+        }
+
+        private static final class Reader {
+            private final ByteBuffer in;
+            private String[] strings;
+            private Scope[] scopes;
+
+            Reader(ByteBuffer in) {
+                this.in = in;
+            }
+
+            ParsedProgram read(byte[] hash) {
+                if (in.getInt() != MAGIC || in.getInt() != FORMAT) {
+                    return null;
+                }
+                byte[] version = new byte[in.getShort() & 0xffff];
+                in.get(version);
+                if (!new String(version, StandardCharsets.UTF_8).equals(VERSION)) {
+                    return null;
+                }
+                byte[] stored = new byte[hash.length];
+                in.get(stored);
+                if (!Arrays.equals(stored, hash)) {
+                    return null;
+                }
+
+                strings = new String[in.getInt()];
+                for (int i = 0; i < strings.length; i++) {
+                    byte[] bytes = new byte[in.getInt()];
+                    in.get(bytes);
+                    strings[i] = new String(bytes, StandardCharsets.UTF_8);
+                }
+
+                // Global scope first, so function scopes can link to it
+                scopes = new Scope[in.getInt()];
+                for (int i = 0; i < scopes.length; i++) {
+                    scopes[i] = new Scope(string(), (i == 0) ? null : scopes[0]);
+                    int count = in.getInt();
+                    for (int j = 0; j < count; j++) {
+                        scopes[i].define(string());
+                    }
+                }
+                for (int i = 1; i < scopes.length; i++) {
+                    scopes[i].link();
+                }
+
+                return new ParsedProgram(scopes[0], block());
+            }
+
+            private String string() {
+                return strings[in.getInt()];
+            }
+
+            private Statement[] block() {
+                Statement[] block = new Statement[in.getInt()];
+                for (int i = 0; i < block.length; i++) {
+                    block[i] = statement();
+                }
+                return block;
+            }
+
+            private Statement statement() {
+                int tag = in.get();
+                int line = in.getInt();
+                String source = string();
+
+                switch (tag) {
+                    case CREATE:
+                        return new CreateStatement(line, source, in.getInt(), expression());
+                    case SET:
+                        return new SetStatement(line, source, in.getInt(), expression());
+                    case INCREASE: {
+                        int slot = in.getInt();
+                        int sign = in.get();
+                        return new IncreaseStatement(line, source, slot, optional(), sign);
+                    }
+                    case DISPLAY:
+                        return new DisplayStatement(line, source, expression());
+                    case INPUT:
+                        return new InputStatement(line, source, in.getInt());
+                    case CALL:
+                        return new CallStatement(line, source, (CallExpression) expression());
+                    case SPAWN: {
+                        CallExpression call = (CallExpression) expression();
+                        return new SpawnStatement(line, source, call, in.getInt());
+                    }
+                    case WAIT: {
+                        String name = string();
+                        return new WaitStatement(line, source, name, in.getInt());
+                    }
+                    case CREATE_LIST:
+                        return new CreateListStatement(line, source, in.getInt());
+                    case LIST_ADD: {
+                        Expression value = expression();
+                        String listName = string();
+                        return new ListAddStatement(line, source, value, listName, in.getInt());
+                    }
+                    case SET_LIST_ITEM: {
+                        String listName = string();
+                        int listSlot = in.getInt();
+                        Expression position = expression();
+                        return new SetListItemStatement(line, source, listName, listSlot, position, expression());
+                    }
+                    case RETURN:
+                        return new ReturnStatement(line, source, optional());
+                    case IF: {
+                        Condition[] conditions = new Condition[in.getInt()];
+                        Statement[][] branches = new Statement[conditions.length][];
+                        for (int i = 0; i < conditions.length; i++) {
+                            conditions[i] = condition();
+                            branches[i] = block();
+                        }
+                        Statement[] elseBranch = (in.get() != 0) ? block() : null;
+                        return new IfStatement(line, source, conditions, branches, elseBranch);
+                    }
+                    case WHILE: {
+                        boolean topLevel = in.get() != 0;
+                        Condition condition = condition();
+                        return new WhileStatement(line, source, condition, block(), topLevel);
+                    }
+                    case FOR: {
+                        boolean topLevel = in.get() != 0;
+                        int slot = in.getInt();
+                        Expression start = expression();
+                        Expression end = expression();
+                        return new ForStatement(line, source, slot, start, end, block(), topLevel);
+                    }
+                    case PARALLEL_FOR: {
+                        int slot = in.getInt();
+                        Expression start = expression();
+                        Expression end = expression();
+                        int[] reductions = new int[in.getInt()];
+                        int[] reductionSlots = new int[reductions.length];
+                        String[] reductionNames = new String[reductions.length];
+                        for (int i = 0; i < reductions.length; i++) {
+                            reductions[i] = in.getInt();
+                            reductionSlots[i] = in.getInt();
+                            reductionNames[i] = string();
+                        }
+                        return new ParallelForStatement(line, source, slot, start, end, block(),
+                            reductions, reductionSlots, reductionNames);
+                    }
+                    case FUNCTION: {
+                        String name = string();
+                        List<String> parameters = new ArrayList<>();
+                        int count = in.getInt();
+                        for (int i = 0; i < count; i++) {
+                            parameters.add(string());
+                        }
+                        Scope scope = scopes[in.getInt()];
+                        boolean remembered = in.get() != 0;
+                        return new FunctionDefinitionStatement(line, source,
+                            new Function(name, parameters, block(), scope, remembered));
+                    }
+                    case INVALID:
+                        return new InvalidStatement(line, source, string());
+                    default:
+                        throw new IllegalStateException("Bad statement tag " + tag);
+                }
+            }
+
+            private Expression optional() {
+                return (in.get() != 0) ? expression() : null;
+            }
+
+            private Condition condition() {
+                int operator = in.get();
+                if (operator < 0) {
+                    return new Condition(-1, null, null);
+                }
+                Expression left = expression();
+                return new Condition(operator, left, expression());
+            }
+
+            private Expression[] expressions() {
+                Expression[] expressions = new Expression[in.getInt()];
+                for (int i = 0; i < expressions.length; i++) {
+                    expressions[i] = expression();
+                }
+                return expressions;
+            }
+
+            private Expression expression() {
+                int tag = in.get();
+                switch (tag) {
+                    case NUMBER:
+                        return new NumberLiteral(in.getLong());
+                    case DECIMAL:
+                        return new DecimalLiteral(string());
+                    case STRING:
+                        return new StringLiteral(string());
+                    case VARIABLE: {
+                        String name = string();
+                        return new VariableExpression(name, in.getInt());
+                    }
+                    case LIST_ITEM: {
+                        String listName = string();
+                        int listSlot = in.getInt();
+                        return new ListItemExpression(listName, listSlot, expression());
+                    }
+                    case LENGTH: {
+                        String name = string();
+                        return new LengthExpression(name, in.getInt());
+                    }
+                    case NEGATE:
+                        return new NegateExpression(expression());
+                    case BINARY: {
+                        char operator = in.getChar();
+                        Expression left = expression();
+                        return new BinaryExpression(operator, left, expression());
+                    }
+                    case CONCATENATION:
+                        return new ConcatenationExpression(expressions());
+                    case CONCATENATION_PART: {
+                        String text = string();
+                        int slot = in.getInt();
+                        return new ConcatenationPart(text, slot, expression());
+                    }
+                    case ADDITION_OR_CONCATENATION: {
+                        int[] slots = new int[in.getInt()];
+                        for (int i = 0; i < slots.length; i++) {
+                            slots[i] = in.getInt();
+                        }
+                        Expression addition = expression();
+                        return new AdditionOrConcatenation(slots, addition, expression());
+                    }
+                    case CALL_EXPRESSION: {
+                        String name = string();
+                        return new CallExpression(name, expressions());
+                    }
+                    case INVALID_EXPRESSION:
+                        return new InvalidExpression(string());
+                    default:
+                        throw new IllegalStateException("Bad expression tag " + tag);
+                }
+            }
+        }
+    }
+
     // ============================================================
-    // NATURAL LANGUAGE PATTERNS
+    // PROGRAM EXECUTION (Structured Block Execution)
     // ============================================================
     
     /**
-     * Pattern: "create a number called score with value 90"
+     * Compile source lines into a statement tree with a fresh global scope.
      */
-    private static boolean tryCreateVariable(String line, ExecutionContext context) 
-            throws LexiException {
-        
-        Pattern p = Pattern.compile(
-            "create\\s+a\\s+(?:number|variable|string)\\s+called\\s+(\\w+)\\s+with\\s+value\\s+(.+)",
-            Pattern.CASE_INSENSITIVE
-        );
-        
-        Matcher m = p.matcher(line);
-        if (m.matches()) {
-            String varName = m.group(1);
-            String valueExpr = m.group(2);
-            
-            Object value = evaluateExpression(valueExpr, context);
-            context.setVariable(varName, value);
-            return true;
+    static ParsedProgram parseProgram(List<String> lines) {
+        Scope globalScope = new Scope("global", null);
+        return new ParsedProgram(globalScope,
+            compileBlock(lines, new BlockIndex(lines), globalScope, 0, lines.size()));
+    }
+    
+    static void runProgram(LexiRuntime runtime, ParsedProgram parsed) throws LexiException {
+        runtime.currentLine = 0;
+        runtime.returnValue = null;
+        ExecutionContext globalContext = new ExecutionContext(parsed.scope, runtime);
+        try {
+            runtime.returnValue = valueOf(executeBlock(parsed.tree, globalContext));
+            TaskScope.close(runtime);
+        } finally {
+            TaskScope.cancel(runtime);
+            runtime.out.flush();
+            publishGlobals(globalContext);
         }
-        
-        return false;
     }
     
     /**
-     * Pattern: "set score to 100"
-     * Pattern: "set result to call square with 5"
+     * Copy the slot values of the global frame into the name-based map
+     * that the REPL "show" command displays.
      */
-    private static boolean trySetVariable(String line, ExecutionContext context) 
-            throws LexiException {
-        
-        Pattern p1 = Pattern.compile(
-            "(set|make|let)\\s+(\\w+)\\s+(?:to|equal to|=|be)\\s+(.+)",
-            Pattern.CASE_INSENSITIVE
-        );
-        
-        Matcher m = p1.matcher(line);
-        if (m.matches()) {
-            String varName = m.group(2);
-            String valueExpr = m.group(3);
-            
-            // Check if it's a function call with return value
-            if (valueExpr.toLowerCase().contains("call ")) {
-                Object value = evaluateFunctionCallExpression(valueExpr, context);
-                context.setVariable(varName, value);
-            } else {
-                Object value = evaluateExpression(valueExpr, context);
-                context.setVariable(varName, value);
+    private static void publishGlobals(ExecutionContext globalContext) {
+        Map<String, Object> globalVariables = globalContext.runtime.globalVariables;
+        globalVariables.clear();
+        List<String> names = globalContext.scope.names;
+        for (int i = 0; i < names.size(); i++) {
+            Object value = globalContext.get(i);
+            if (value != null) {
+                globalVariables.put(names.get(i), value);
             }
-            return true;
         }
-        
-        return false;
     }
     
     /**
-     * Pattern: "increase score by 5"
+     * Run a program file while it is being read. Each top-level statement
+     * is compiled and executed as soon as its line is scanned; a block
+     * (if/while/for/function) is collected until its closing end and then
+     * compiled and run as a whole. Only the current block's lines are
+     * held, so output starts at once and memory does not grow with the
+     * length of the file. The parsed tree is not kept, so nothing is
+     * written to the program cache.
      */
-    private static boolean tryIncreaseVariable(String line, ExecutionContext context) 
-            throws LexiException {
-        
-        Pattern p = Pattern.compile(
-            "(increase|increment)\\s+(\\w+)(?:\\s+by\\s+(\\S+))?",
-            Pattern.CASE_INSENSITIVE
-        );
+    static void streamProgram(LexiRuntime runtime, String path) throws IOException, LexiException {
+        runtime.currentLine = 0;
+        runtime.returnValue = null;
+        Scope globalScope = new Scope("global", null);
+        ExecutionContext globalContext = new ExecutionContext(globalScope, runtime);
         
-        Matcher m = p.matcher(line);
-        if (m.matches()) {
-            String varName = m.group(2);
-            String amountStr = m.group(3);
+        try (SourceReader source = new SourceReader(Paths.get(path))) {
+            runtime.out.println("Loaded: " + path);
+            runtime.out.println();
             
-            if (!context.hasVariable(varName)) {
-                throw new LexiException("Variable '" + varName + "' not defined");
+            List<String> block = new ArrayList<>();
+            int first = 0;
+            int depth = 0;
+            String line;
+            for (int lineNumber = 0; (line = source.readLine()) != null; lineNumber++) {
+                if (block.isEmpty()) {
+                    first = lineNumber;
+                }
+                block.add(line);
+                
+                String lower = line.trim().toLowerCase();
+                if (isBlockHeader(lower)) {
+                    depth++;
+                } else if (depth > 0 && isBlockEnd(lower)) {
+                    depth--;
+                }
+                if (depth == 0) {
+                    Object completion = executeStreamed(block, first, globalContext);
+                    block.clear();
+                    if (completion != null) {
+                        runtime.returnValue = valueOf(completion);
+                        TaskScope.close(runtime);
+                        return;
+                    }
+                }
             }
-            
-            int amount = 1;
-            if (amountStr != null) {
-                amount = (int) evaluateExpression(amountStr, context);
+            // An unclosed block runs to the end of the file, as when parsed whole
+            if (!block.isEmpty()) {
+                runtime.returnValue = valueOf(executeStreamed(block, first, globalContext));
             }
-            
-            int currentValue = toInt(context.getVariable(varName));
-            context.setVariable(varName, currentValue + amount);
-            return true;
+            TaskScope.close(runtime);
+        } finally {
+            TaskScope.cancel(runtime);
+            runtime.out.flush();
+            publishGlobals(globalContext);
         }
-        
-        return false;
+    }
+    
+    private static Object executeStreamed(List<String> block, int first, ExecutionContext globalContext)
+            throws LexiException {
+        List<String> code = new SourceWindow(first, block);
+        return executeBlock(compileBlock(code, new BlockIndex(code, first), globalContext.scope, first, code.size()),
+                     globalContext);
     }
     
     /**
-     * Pattern: "decrease score by 3"
+     * Execute a block of already-parsed statements.
+     * Nested blocks (if/while/for bodies) call back into this method.
      */
-    private static boolean tryDecreaseVariable(String line, ExecutionContext context) 
+    static Object executeBlock(Statement[] block, ExecutionContext context) 
             throws LexiException {
         
-        Pattern p = Pattern.compile(
-            "(decrease|decrement)\\s+(\\w+)(?:\\s+by\\s+(\\S+))?",
-            Pattern.CASE_INSENSITIVE
-        );
-        
-        Matcher m = p.matcher(line);
-        if (m.matches()) {
-            String varName = m.group(2);
-            String amountStr = m.group(3);
+        LexiRuntime runtime = context.runtime;
+        if (runtime.cancelled) {
+            throw new LexiException("Task cancelled");
+        }
+        for (Statement statement : block) {
+            runtime.currentLine = statement.line;
             
-            if (!context.hasVariable(varName)) {
-                throw new LexiException("Variable '" + varName + "' not defined");
+            if (runtime.debugMode) {
+                runtime.out.println("[DEBUG] Line " + (statement.line + 1) + ": " + statement.source);
             }
             
-            int amount = 1;
-            if (amountStr != null) {
-                amount = (int) evaluateExpression(amountStr, context);
+            Object completion;
+            try {
+                completion = statement.execute(context);
+            } catch (LexiException e) {
+                // Report the line that was executing when the error was raised
+                if (e.line < 0) {
+                    e.line = runtime.currentLine;
+                }
+                throw e;
+            }
+            if (completion != null) {
+                return completion;
             }
-            
-            int currentValue = toInt(context.getVariable(varName));
-            context.setVariable(varName, currentValue - amount);
-            return true;
         }
-        
-        return false;
+        return null;
     }
     
+    /** The value of a block's completion: what its "return" produced, if anything. */
+    static Object valueOf(Object completion) {
+        return (completion == Statement.RETURNED) ? null : completion;
+    }
+    
+    // ============================================================
+    // EMBEDDING API
+    // ============================================================
+    
     /**
-     * Pattern: "display score" or "display \"Hello\" + name"
+     * Compile Lexi source once for repeated execution from Java:
+     *
+     *   LexiScript rules = Lexi.compile(source);
+     *   Result result = rules.execute(Map.of("age", 42));
+     *   Object decision = result.get("decision");
+     *
+     * As when running a file, a line that does not parse is reported
+     * when execution reaches it.
      */
-    private static boolean tryDisplay(String line, ExecutionContext context) 
-            throws LexiException {
-        
-        Pattern p = Pattern.compile(
-            "(display|show|print|say)\\s+(.+)",
-            Pattern.CASE_INSENSITIVE
-        );
-        
-        Matcher m = p.matcher(line);
-        if (m.matches()) {
-            String expr = m.group(2);
-            Object value = evaluateExpression(expr, context);
-            System.out.println(formatValue(value));
-            return true;
-        }
-        
-        return false;
+    public static LexiScript compile(String source) {
+        return new LexiScript(parseProgram(Arrays.asList(source.split("\\R", -1))));
     }
     
     /**
-     * Pattern: "ask for name"
+     * A compiled program. It is never modified by running it, so one
+     * instance can be executed any number of times, from any number of
+     * threads at once; each execution gets its own runtime and frame.
+     * Executions share nothing but the parsed tree and its compiled code.
      */
-    private static boolean tryInput(String line, ExecutionContext context) 
-            throws LexiException {
+    public static final class LexiScript {
+        private final ParsedProgram program;
+        
+        LexiScript(ParsedProgram program) {
+            this.program = program;
+        }
         
-        Pattern p = Pattern.compile(
-            "(ask|get|input)\\s+(?:for|input for)\\s+(\\w+)",
-            Pattern.CASE_INSENSITIVE
-        );
+        /** Run with the given globals; "display" output is collected in the result. */
+        public Result execute(Map<String, ?> bindings) throws LexiException {
+            StringWriter buffer = new StringWriter();
+            ExecutionContext globals = run(new LexiRuntime(Reader.nullReader(), buffer), null, bindings);
+            return new Result(globals, buffer.toString());
+        }
         
-        Matcher m = p.matcher(line);
-        if (m.matches()) {
-            String varName = m.group(2);
-            System.out.print("? ");
-            String input = userInput.nextLine();
+        /** Run with the given globals, writing "display" output to out. */
+        public Result execute(Map<String, ?> bindings, PrintStream out) throws LexiException {
+            return new Result(run(new LexiRuntime(InputStream.nullInputStream(), out), null, bindings), null);
+        }
+        
+        /** Run with the given globals, writing "display" output to out. */
+        public Result execute(Map<String, ?> bindings, Writer out) throws LexiException {
+            return new Result(run(new LexiRuntime(Reader.nullReader(), out), null, bindings), null);
+        }
+        
+        /**
+         * Bindings are stored straight into the slots of the names the
+         * script uses; names it never mentions are ignored. Entries of
+         * bindings win over outer (which may be null).
+         */
+        ExecutionContext run(LexiRuntime runtime, Map<String, ?> outer, Map<String, ?> bindings)
+                throws LexiException {
+            ExecutionContext globals = new ExecutionContext(program.scope, runtime);
+            if (outer != null) {
+                bind(globals, outer);
+            }
+            bind(globals, bindings);
             
             try {
-                context.setVariable(varName, Integer.parseInt(input));
-            } catch (NumberFormatException e) {
-                context.setVariable(varName, input);
+                runtime.returnValue = valueOf(executeBlock(program.tree, globals));
+                TaskScope.close(runtime);
+            } finally {
+                TaskScope.cancel(runtime);
+                runtime.out.flush();
             }
-            return true;
+            return globals;
         }
         
-        return false;
+        private void bind(ExecutionContext globals, Map<String, ?> bindings) {
+            for (Map.Entry<String, ?> binding : bindings.entrySet()) {
+                int slot = program.scope.indexOf(binding.getKey());
+                if (slot >= 0) {
+                    globals.set(slot, toLexiValue(binding.getKey(), binding.getValue()));
+                }
+            }
+        }
     }
     
     /**
-     * Pattern: "call greet with \"Alice\""
+     * The outcome of one LexiScript execution: the final global variables,
+     * the value of a top-level "return" and the collected output.
      */
-    private static boolean tryFunctionCall(String line, ExecutionContext context) 
-            throws LexiException {
+    public static final class Result {
+        private final ExecutionContext globals;
+        private final Object returnValue;
+        private final String output;
         
-        Pattern p = Pattern.compile(
-            "(call|run function)\\s+(\\w+)(?:\\s+with\\s+(.+))?",
-            Pattern.CASE_INSENSITIVE
-        );
+        Result(ExecutionContext globals, String output) {
+            this.globals = globals;
+            this.returnValue = globals.runtime.returnValue;
+            this.output = output;
+        }
         
-        Matcher m = p.matcher(line);
-        if (m.matches()) {
-            String funcName = m.group(2);
-            String argsStr = m.group(3);
-            
-            callFunction(funcName, argsStr, context);
-            return true;
+        /** A global's final value (a number, String or List), or null if never set. */
+        public Object get(String name) {
+            int slot = globals.scope.indexOf(name);
+            return (slot >= 0) ? globals.get(slot) : null;
+        }
+        
+        /** All globals that have a value, in order of first mention. */
+        public Map<String, Object> variables() {
+            Map<String, Object> variables = new LinkedHashMap<>();
+            List<String> names = globals.scope.names;
+            for (int i = 0; i < names.size(); i++) {
+                Object value = globals.get(i);
+                if (value != null) {
+                    variables.put(names.get(i), value);
+                }
+            }
+            return variables;
         }
         
-        return false;
+        /** The value of a top-level "return", or null. */
+        public Object returnValue() {
+            return returnValue;
+        }
+        
+        /** Collected "display" output, or null if it went to a caller's stream. */
+        public String output() {
+            return output;
+        }
     }
     
     /**
-     * Pattern: "create list names"
+     * A Java value as a Lexi value: whole numbers, doubles, BigDecimals,
+     * strings and lists (other lists are copied into a LexiList).
+     */
+    private static Object toLexiValue(String name, Object value) {
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            return Numbers.whole(((Number) value).longValue());
+        }
+        if (value instanceof Double || value instanceof Float) {
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof BigDecimal || value instanceof String || value instanceof LexiList) {
+            return value;
+        }
+        if (value instanceof List) {
+            return new LexiList((List<?>) value);
+        }
+        throw new IllegalArgumentException("Binding '" + name + "' has unsupported value " + value +
+            ((value != null) ? " (" + value.getClass().getName() + ")" : ""));
+    }
+    
+    // ============================================================
+    // SCRIPT ENGINE (JSR-223)
+    // ============================================================
+    
+    /**
+     * Makes Lexi available through javax.script:
+     *
+     *   ScriptEngine engine = new ScriptEngineManager().getEngineByName("lexi");
+     *
+     * Registered in META-INF/services/javax.script.ScriptEngineFactory.
      */
-    private static boolean tryCreateArray(String line, ExecutionContext context) {
-        Pattern p = Pattern.compile(
-            "create\\s+(list|array)\\s+(\\w+)",
-            Pattern.CASE_INSENSITIVE
-        );
+    public static final class LexiScriptEngineFactory implements ScriptEngineFactory {
+        @Override
+        public String getEngineName() {
+            return "Lexi";
+        }
         
-        Matcher m = p.matcher(line);
-        if (m.matches()) {
-            String listName = m.group(2);
-            context.setVariable(listName, new ArrayList<Object>());
-            return true;
+        @Override
+        public String getEngineVersion() {
+            return VERSION;
+        }
+        
+        @Override
+        public List<String> getExtensions() {
+            return List.of("lexi");
+        }
+        
+        @Override
+        public List<String> getMimeTypes() {
+            return List.of("text/x-lexi", "application/x-lexi");
+        }
+        
+        @Override
+        public List<String> getNames() {
+            return List.of("lexi", "Lexi");
+        }
+        
+        @Override
+        public String getLanguageName() {
+            return "Lexi";
+        }
+        
+        @Override
+        public String getLanguageVersion() {
+            return VERSION;
+        }
+        
+        @Override
+        public Object getParameter(String key) {
+            switch (key) {
+                case ScriptEngine.ENGINE: return getEngineName();
+                case ScriptEngine.ENGINE_VERSION: return getEngineVersion();
+                case ScriptEngine.NAME: return "lexi";
+                case ScriptEngine.LANGUAGE: return getLanguageName();
+                case ScriptEngine.LANGUAGE_VERSION: return getLanguageVersion();
+                // Compiled scripts may be evaluated on several threads at once
+                case "THREADING": return "MULTITHREADED";
+                default: return null;
+            }
         }
         
-        return false;
+        @Override
+        public String getMethodCallSyntax(String object, String method, String... args) {
+            return "call " + method + ((args.length > 0) ? " with " + String.join(", ", args) : "");
+        }
+        
+        @Override
+        public String getOutputStatement(String toDisplay) {
+            return "display \"" + toDisplay + "\"";
+        }
+        
+        @Override
+        public String getProgram(String... statements) {
+            return String.join("\n", statements);
+        }
+        
+        @Override
+        public ScriptEngine getScriptEngine() {
+            return new LexiScriptEngine(this);
+        }
     }
     
     /**
-     * Pattern: "add 5 to scores"
+     * A Lexi ScriptEngine. Scripts are compiled once per distinct source
+     * (eval() goes through the same cache as compile()), and a compiled
+     * script can be evaluated concurrently against different contexts.
+     * Bindings become globals; after a run the script's globals are put
+     * back into the engine-scope bindings. Invocable calls the functions
+     * defined by the most recent evaluation.
      */
-    private static boolean tryArrayAdd(String line, ExecutionContext context) 
-            throws LexiException {
+    public static final class LexiScriptEngine extends AbstractScriptEngine
+            implements Compilable, Invocable {
+        private static final int CACHE_SIZE = 64;
         
-        Pattern p = Pattern.compile(
-            "add\\s+(.+?)\\s+to\\s+(\\w+)",
-            Pattern.CASE_INSENSITIVE
-        );
+        private final ScriptEngineFactory factory;
+        private final Map<String, LexiCompiledScript> cache =
+            new LinkedHashMap<String, LexiCompiledScript>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, LexiCompiledScript> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
         
-        Matcher m = p.matcher(line);
-        if (m.matches()) {
-            String valueStr = m.group(1).trim();
-            String listName = m.group(2).trim();
-            
-            if (!context.hasVariable(listName)) {
-                throw new LexiException("Variable '" + listName + "' not defined");
+        // Global frame of the latest evaluation, for Invocable
+        private volatile ExecutionContext state;
+        
+        LexiScriptEngine(ScriptEngineFactory factory) {
+            this.factory = factory;
+        }
+        
+        @Override
+        public Object eval(String script, ScriptContext context) throws ScriptException {
+            return compile(script).eval(context);
+        }
+        
+        @Override
+        public Object eval(Reader reader, ScriptContext context) throws ScriptException {
+            return eval(read(reader), context);
+        }
+        
+        @Override
+        public Bindings createBindings() {
+            return new SimpleBindings();
+        }
+        
+        @Override
+        public ScriptEngineFactory getFactory() {
+            return factory;
+        }
+        
+        @Override
+        public CompiledScript compile(String script) {
+            LexiCompiledScript compiled;
+            synchronized (cache) {
+                compiled = cache.get(script);
+            }
+            if (compiled == null) {
+                compiled = new LexiCompiledScript(this, Lexi.compile(script));
+                synchronized (cache) {
+                    LexiCompiledScript raced = cache.putIfAbsent(script, compiled);
+                    if (raced != null) {
+                        compiled = raced;
+                    }
+                }
+            }
+            return compiled;
+        }
+        
+        @Override
+        public CompiledScript compile(Reader script) throws ScriptException {
+            return compile(read(script));
+        }
+        
+        @Override
+        public Object invokeFunction(String name, Object... args)
+                throws ScriptException, NoSuchMethodException {
+            ExecutionContext latest = state;
+            Function function = (latest != null) ? latest.runtime.functions.get(name) : null;
+            if (function == null) {
+                throw new NoSuchMethodException(name);
             }
             
-            Object list = context.getVariable(listName);
-            if (!(list instanceof ArrayList)) {
-                throw new LexiException("Variable '" + listName + "' is not a list");
+            // A private copy of the globals, lists included, and a runtime
+            // of its own, so invocations can run concurrently
+            ScriptContext context = getContext();
+            LexiRuntime runtime = runtime(context);
+            runtime.functions.putAll(latest.runtime.functions);
+            runtime.functionsChanged();
+            ExecutionContext globals = new ExecutionContext(latest, runtime);
+            globals.copyLists(new IdentityHashMap<>());
+            
+            Expression[] arguments = new Expression[args.length];
+            try {
+                for (int i = 0; i < args.length; i++) {
+                    arguments[i] = new ValueExpression(toLexiValue("argument " + (i + 1), args[i]));
+                }
+            } catch (IllegalArgumentException e) {
+                throw argumentError(e);
             }
             
-            @SuppressWarnings("unchecked")
-            ArrayList<Object> arr = (ArrayList<Object>) list;
-            Object value = evaluateExpression(valueStr, context);
-            arr.add(value);
+            try {
+                return callFunction(new CallExpression(name, arguments), globals);
+            } catch (LexiException e) {
+                if (e.line < 0) {
+                    e.line = runtime.currentLine;
+                }
+                throw scriptError(e, context);
+            } finally {
+                runtime.out.flush();
+            }
+        }
+        
+        @Override
+        public Object invokeMethod(Object object, String name, Object... args) {
+            throw new IllegalArgumentException("Lexi scripts have no objects");
+        }
+        
+        /** An implementation of type whose methods call the Lexi functions of the same name. */
+        @Override
+        public <T> T getInterface(Class<T> type) {
+            if (type == null || !type.isInterface()) {
+                throw new IllegalArgumentException("Not an interface: " + type);
+            }
+            ExecutionContext latest = state;
+            if (latest == null) {
+                return null;
+            }
+            for (Method method : type.getMethods()) {
+                if (!Modifier.isStatic(method.getModifiers()) &&
+                        !latest.runtime.functions.containsKey(method.getName())) {
+                    return null;
+                }
+            }
             
-            return true;
+            return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                (proxy, method, args) -> {
+                    if (method.getDeclaringClass() == Object.class) {
+                        switch (method.getName()) {
+                            case "equals": return proxy == args[0];
+                            case "hashCode": return System.identityHashCode(proxy);
+                            default: return "Lexi " + type.getName();
+                        }
+                    }
+                    return invokeFunction(method.getName(), (args != null) ? args : new Object[0]);
+                }));
         }
         
-        return false;
-    }
-    
-    // ============================================================
-    // RETURN STATEMENT
-    // ============================================================
-    
-    private static boolean isReturnStatement(String line) {
-        return line.trim().toLowerCase().startsWith("return ");
+        @Override
+        public <T> T getInterface(Object object, Class<T> type) {
+            throw new IllegalArgumentException("Lexi scripts have no objects");
+        }
+        
+        private static String read(Reader reader) throws ScriptException {
+            try {
+                StringWriter text = new StringWriter();
+                reader.transferTo(text);
+                return text.toString();
+            } catch (IOException e) {
+                throw new ScriptException(e);
+            }
+        }
+        
+        static LexiRuntime runtime(ScriptContext context) {
+            Reader input = context.getReader();
+            Writer output = context.getWriter();
+            return new LexiRuntime((input != null) ? input : Reader.nullReader(),
+                                   (output != null) ? output : Writer.nullWriter());
+        }
+        
+        /** A value with no Lexi equivalent, as a ScriptException. */
+        static ScriptException argumentError(IllegalArgumentException e) {
+            ScriptException error = new ScriptException(e.getMessage());
+            error.initCause(e);
+            return error;
+        }
+        
+        static ScriptException scriptError(LexiException e, ScriptContext context) {
+            Object file = context.getAttribute(ScriptEngine.FILENAME);
+            ScriptException error = new ScriptException(e.detail(),
+                (file != null) ? file.toString() : null, e.line + 1);
+            error.initCause(e);
+            return error;
+        }
     }
     
-    private static void handleReturn(String line, ExecutionContext context) 
-            throws LexiException {
-        String expr = line.substring(6).trim(); // Skip "return"
-        returnValue = evaluateExpression(expr, context);
-        hasReturned = true;
+    /**
+     * A script compiled by LexiScriptEngine. It holds only the immutable
+     * LexiScript, so evaluations on different threads do not interfere.
+     */
+    static final class LexiCompiledScript extends CompiledScript {
+        private final LexiScriptEngine engine;
+        private final LexiScript script;
+        
+        LexiCompiledScript(LexiScriptEngine engine, LexiScript script) {
+            this.engine = engine;
+            this.script = script;
+        }
+        
+        /** Runs the script; returns the value of a top-level "return", or null. */
+        @Override
+        public Object eval(ScriptContext context) throws ScriptException {
+            Bindings engineScope = context.getBindings(ScriptContext.ENGINE_SCOPE);
+            Bindings globalScope = context.getBindings(ScriptContext.GLOBAL_SCOPE);
+            LexiRuntime runtime = LexiScriptEngine.runtime(context);
+            
+            ExecutionContext globals;
+            try {
+                globals = script.run(runtime, globalScope, (engineScope != null) ? engineScope : Map.of());
+            } catch (LexiException e) {
+                throw LexiScriptEngine.scriptError(e, context);
+            } catch (IllegalArgumentException e) {
+                throw LexiScriptEngine.argumentError(e);
+            }
+            
+            engine.state = globals;
+            if (engineScope != null) {
+                List<String> names = globals.scope.names;
+                for (int i = 0; i < names.size(); i++) {
+                    Object value = globals.get(i);
+                    if (value != null) {
+                        engineScope.put(names.get(i), value);
+                    }
+                }
+            }
+            return runtime.returnValue;
+        }
+        
+        @Override
+        public ScriptEngine getEngine() {
+            return engine;
+        }
     }
     
     // ============================================================
-    // FUNCTION HANDLING
+    // SERVER MODE (--serve)
     // ============================================================
     
-    private static boolean isFunctionDefinition(String line) {
-        String lower = line.trim().toLowerCase();
-        return lower.startsWith("function ") || lower.startsWith("define function ");
-    }
-    
-    private static int handleFunctionDefinition(List<String> code, int startLine, int maxLine) 
-            throws LexiException {
-        
-        String line = code.get(startLine);
+    /**
+     * A long-lived daemon that runs scripts for "bin/lexi-client", so a
+     * warm script costs a socket round trip instead of a JVM launch.
+     *
+     * Protocol, one script per connection:
+     *   client: over TCP first "TOKEN <token>\n", the token the server
+     *           wrote to ~/.lexi-token; then
+     *           "RUN <absolute path>\n" or "EVAL <byte count>\n<source>",
+     *           then "INPUT <byte count>\n<bytes>" when its input is a
+     *           file or pipe, or "INPUT stream\n" to forward a terminal
+     *           for "ask" until the script ends
+     *   server: the script's output, errors included, then closes
+     *
+     * Each request gets its own runtime on a worker thread. Parsed
+     * programs are kept in an LRU cache keyed by path and re-read when
+     * the file's modification time or size changes.
+     *
+     * Only the server's owner may run scripts: by default the server
+     * listens on a Unix socket that only the owner can open (and checks
+     * the peer's user where the platform reports it); a TCP port is open
+     * to every local user, so requests on it must carry the token. RUN
+     * only reads .lexi files under the server's root directory.
+     */
+    static final class LexiServer {
+        static final String DEFAULT_SOCKET = ".lexi.sock";   // in the home directory
+        static final String TOKEN_FILE = ".lexi-token";
+        private static final int CACHE_SIZE = 256;
+        // Largest EVAL source or INPUT block, and request line, a client may send
+        static final int MAX_BYTES = 16 << 20;
+        private static final int MAX_LINE = 8192;
         
-        Pattern p = Pattern.compile(
-            "(?:define\\s+)?function\\s+(\\w+)(?:\\s+(.+))?",
-            Pattern.CASE_INSENSITIVE
-        );
+        private final Path root;
+        private String token;   // required on TCP connections
+        private final int tierThreshold;
+        private final boolean decimal;
+        private final int maxCallDepth;
+        private final ExecutorService workers;
+        private final Map<Path, CachedProgram> cache =
+            new LinkedHashMap<Path, CachedProgram>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Path, CachedProgram> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
         
-        Matcher m = p.matcher(line);
-        if (!m.find()) {
-            throw new LexiException("Invalid function syntax");
+        /** A parsed program and the file state it was parsed from. */
+        static final class CachedProgram {
+            final long modified;
+            final long size;
+            final ParsedProgram program;
+            
+            CachedProgram(long modified, long size, ParsedProgram program) {
+                this.modified = modified;
+                this.size = size;
+                this.program = program;
+            }
         }
         
-        String funcName = m.group(1);
-        String paramsStr = m.group(2);
+        LexiServer(int workers, int tierThreshold, boolean decimal, int maxCallDepth, Path root)
+                throws IOException {
+            this.root = root.toRealPath();
+            this.workers = Executors.newFixedThreadPool(workers);
+            this.tierThreshold = tierThreshold;
+            this.decimal = decimal;
+            this.maxCallDepth = maxCallDepth;
+        }
         
-        List<String> parameters = new ArrayList<>();
-        if (paramsStr != null && !paramsStr.trim().isEmpty()) {
-            String[] params = paramsStr.trim().split("\\s+");
-            for (String param : params) {
-                parameters.add(param.trim());
+        /**
+         * Accept connections on a localhost port if port is positive,
+         * otherwise on a Unix domain socket (socket, or ~/.lexi.sock).
+         */
+        void serve(String socket, int port) throws IOException {
+            Path home = Paths.get(System.getProperty("user.home"));
+            ServerSocketChannel server;
+            if (port <= 0) {
+                Path path = (socket != null) ? Paths.get(socket).toAbsolutePath() : home.resolve(DEFAULT_SOCKET);
+                removeStaleSocket(path);
+                server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+                server.bind(UnixDomainSocketAddress.of(path));
+                restrictToOwner(path);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        Files.deleteIfExists(path);
+                    } catch (IOException e) {
+                        // nothing left to do at exit
+                    }
+                }));
+                System.out.println("Lexi server listening on " + path);
+            } else {
+                Path tokenFile = home.resolve(TOKEN_FILE);
+                token = writeToken(tokenFile);
+                server = ServerSocketChannel.open();
+                server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+                System.out.println("Lexi server listening on " + InetAddress.getLoopbackAddress().getHostAddress() +
+                    ":" + port + " (token in " + tokenFile + ")");
+            }
+            
+            try (ServerSocketChannel listener = server) {
+                while (true) {
+                    SocketChannel client = listener.accept();
+                    workers.execute(() -> handle(client));
+                }
             }
         }
         
-        int blockEnd = findBlockEnd(code, startLine, maxLine);
-        
-        List<String> body = new ArrayList<>();
-        for (int i = startLine + 1; i < blockEnd; i++) {
-            body.add(code.get(i));
+        private void handle(SocketChannel channel) {
+            try (SocketChannel client = channel) {
+                InputStream in = new BufferedInputStream(Channels.newInputStream(client));
+                PrintWriter out = new PrintWriter(new BufferedWriter(
+                    new OutputStreamWriter(Channels.newOutputStream(client), StandardCharsets.UTF_8)));
+                try {
+                    authenticate(client, in);
+                    ParsedProgram program = request(in);
+                    Reader input = new InputStreamReader(input(in), StandardCharsets.UTF_8);
+                    LexiRuntime runtime = new LexiRuntime(input, (Writer) out);
+                    runtime.err = out;
+                    runtime.tierThreshold = tierThreshold;
+                    runtime.decimal = decimal;
+                    runtime.maxCallDepth = maxCallDepth;
+                    try {
+                        new LexiScript(program).run(runtime, null, Collections.emptyMap());
+                    } catch (LexiException e) {
+                        displayError(runtime, e);
+                    }
+                } catch (IOException | IllegalArgumentException e) {
+                    out.println("Error: " + e.getMessage());
+                } catch (RuntimeException e) {
+                    // A bug rather than a bad request, but the client should still hear of it
+                    out.println("Error: " + e);
+                }
+                out.flush();
+            } catch (IOException e) {
+                // the client went away; nothing to report to
+            }
         }
         
-        functions.put(funcName, new Function(funcName, parameters, body));
-        
-        return blockEnd + 1;
-    }
-    
-    /**
-     * Call function and handle return value
-     */
-    private static void callFunction(String funcName, String argsStr, ExecutionContext context) 
-            throws LexiException {
+        /**
+         * Turn away clients that are not the server's owner: on TCP the
+         * first line must be the token, on a Unix socket the peer must be
+         * the owner's user where the platform reports it.
+         */
+        private void authenticate(SocketChannel client, InputStream in) throws IOException {
+            if (token != null) {
+                String header = readLine(in);
+                byte[] sent = header.startsWith("TOKEN ")
+                    ? header.substring(6).trim().getBytes(StandardCharsets.UTF_8) : new byte[0];
+                if (!MessageDigest.isEqual(sent, token.getBytes(StandardCharsets.UTF_8))) {
+                    throw new IllegalArgumentException("missing or wrong token");
+                }
+                return;
+            }
+            UserPrincipal peer;
+            try {
+                peer = client.getOption(ExtendedSocketOptions.SO_PEERCRED).user();
+            } catch (UnsupportedOperationException e) {
+                return;   // the socket file's owner-only permissions apply
+            }
+            UserPrincipal owner = FileSystems.getDefault().getUserPrincipalLookupService()
+                .lookupPrincipalByName(System.getProperty("user.name"));
+            if (!peer.equals(owner)) {
+                throw new IllegalArgumentException("connection from another user");
+            }
+        }
         
-        if (!functions.containsKey(funcName)) {
-            throw new LexiException("Function '" + funcName + "' not defined");
+        /** Read the request line and return the program it names. */
+        private ParsedProgram request(InputStream in) throws IOException {
+            String header = readLine(in);
+            if (header.startsWith("RUN ")) {
+                return program(script(header.substring(4)));
+            }
+            if (header.startsWith("EVAL ")) {
+                int length = length(header.substring(5), "EVAL");
+                String source = new String(in.readNBytes(length), StandardCharsets.UTF_8);
+                return parseProgram(Arrays.asList(source.split("\\R", -1)));
+            }
+            throw new IllegalArgumentException("expected RUN <path> or EVAL <length>, got: " + header);
         }
         
-        Function func = functions.get(funcName);
-        List<Object> args = new ArrayList<>();
+        /** The file a RUN names, if it is a .lexi file under the root. */
+        private Path script(String name) throws IOException {
+            Path path = Paths.get(name).toAbsolutePath().normalize();
+            if (path.toString().endsWith(".lexi") && path.startsWith(root)) {
+                // Resolve links, so a link under the root cannot reach outside it
+                Path real = path.toRealPath();
+                if (real.toString().endsWith(".lexi") && real.startsWith(root)) {
+                    return real;
+                }
+            }
+            throw new IllegalArgumentException("RUN only runs .lexi files under " + root);
+        }
         
-        if (argsStr != null) {
-            String[] argParts = argsStr.split(",");
-            for (String arg : argParts) {
-                args.add(evaluateExpression(arg.trim(), context));
+        /** The stream "ask" reads from: a fixed block of bytes, or the rest of the connection. */
+        private static InputStream input(InputStream in) throws IOException {
+            String header = readLine(in);
+            if (header.equals("INPUT stream")) {
+                return in;
             }
+            if (header.startsWith("INPUT ")) {
+                return new ByteArrayInputStream(in.readNBytes(length(header.substring(6), "INPUT")));
+            }
+            throw new IllegalArgumentException("expected INPUT <length> or INPUT stream, got: " + header);
         }
         
-        if (args.size() != func.parameters.size()) {
-            throw new LexiException("Function '" + funcName + "' expects " + 
-                func.parameters.size() + " arguments, got " + args.size());
+        private static int length(String text, String request) {
+            try {
+                int length = Integer.parseInt(text.trim());
+                if (length >= 0 && length <= MAX_BYTES) {
+                    return length;
+                }
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+            throw new IllegalArgumentException("bad " + request + " length: " + text.trim() +
+                " (at most " + MAX_BYTES + " bytes)");
         }
         
-        // Create new context
-        ExecutionContext funcContext = new ExecutionContext(context, funcName);
+        /** A new random token, readable only by the owner, in tokenFile. */
+        private static String writeToken(Path tokenFile) throws IOException {
+            byte[] bytes = new byte[24];
+            new SecureRandom().nextBytes(bytes);
+            StringBuilder token = new StringBuilder();
+            for (byte b : bytes) {
+                token.append(String.format("%02x", b));
+            }
+            Files.deleteIfExists(tokenFile);
+            try {
+                Files.createFile(tokenFile, PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rw-------")));
+            } catch (UnsupportedOperationException e) {
+                Files.createFile(tokenFile);   // not a POSIX file system; the directory's permissions apply
+            }
+            Files.write(tokenFile, (token + "\n").getBytes(StandardCharsets.UTF_8));
+            return token.toString();
+        }
         
-        // Bind parameters
-        for (int i = 0; i < func.parameters.size(); i++) {
-            funcContext.setVariable(func.parameters.get(i), args.get(i));
+        /** The parsed program for a file, from the cache while the file is unchanged. */
+        private ParsedProgram program(Path path) throws IOException {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            long modified = attributes.lastModifiedTime().toMillis();
+            long size = attributes.size();
+            
+            CachedProgram cached;
+            synchronized (cache) {
+                cached = cache.get(path);
+            }
+            if (cached != null && cached.modified == modified && cached.size == size) {
+                return cached.program;
+            }
+            
+            ParsedProgram program = parseProgram(readSource(path));
+            synchronized (cache) {
+                cache.put(path, new CachedProgram(modified, size, program));
+            }
+            return program;
         }
         
-        // Reset return state
-        boolean previousReturnState = hasReturned;
-        Object previousReturnValue = returnValue;
-        hasReturned = false;
-        returnValue = null;
+        private static String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') {
+                if (line.size() >= MAX_LINE) {
+                    throw new IllegalArgumentException("request line longer than " + MAX_LINE + " bytes");
+                }
+                line.write(b);
+            }
+            if (b == -1 && line.size() == 0) {
+                throw new EOFException("empty request");
+            }
+            return line.toString(StandardCharsets.UTF_8).trim();
+        }
         
-        // Execute function
-        executeBlock(func.body, 0, func.body.size(), funcContext);
+        /**
+         * Delete a socket file left by a server that is no longer running.
+         * Anything else at the path (a regular file, a directory or a link)
+         * is left alone and refused.
+         */
+        static void removeStaleSocket(Path path) throws IOException {
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (NoSuchFileException e) {
+                return;
+            }
+            if (!attributes.isOther()) {
+                throw new IOException(path + " exists and is not a socket; not replacing it");
+            }
+            boolean running;
+            try {
+                SocketChannel.open(UnixDomainSocketAddress.of(path)).close();
+                running = true;
+            } catch (IOException e) {
+                running = false;
+            }
+            if (running) {
+                throw new IOException("a server is already listening on " + path);
+            }
+            Files.delete(path);
+        }
         
-        // Restore previous state
-        hasReturned = previousReturnState;
-        returnValue = previousReturnValue;
+        private static void restrictToOwner(Path path) {
+            try {
+                Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-------"));
+            } catch (IOException | UnsupportedOperationException e) {
+                // not a POSIX file system; the directory's permissions apply
+            }
+        }
     }
     
+    // ============================================================
+    // TEXT BUFFERS
+    // ============================================================
+    
     /**
-     * Evaluate function call in expression context
+     * Text that a "set s to s + ..." statement keeps appending to. The
+     * variable's slot holds the buffer, so each append copies only the new
+     * text instead of the whole string built so far. Reading the variable
+     * (ExecutionContext.get) flattens it to a String, cached until the next
+     * append, so no other code ever sees a buffer or can alias one.
      */
-    private static Object evaluateFunctionCallExpression(String expr, ExecutionContext context) 
-            throws LexiException {
-        
-        Pattern p = Pattern.compile(
-            "(call|run function)\\s+(\\w+)(?:\\s+with\\s+(.+))?",
-            Pattern.CASE_INSENSITIVE
-        );
+    static final class TextBuffer {
+        private final StringBuilder text;
+        private String flat;
         
-        Matcher m = p.matcher(expr);
-        if (!m.find()) {
-            throw new LexiException("Invalid function call syntax");
+        TextBuffer(String initial) {
+            text = new StringBuilder(Math.max(16, initial.length() * 2)).append(initial);
+            flat = initial;
         }
         
-        String funcName = m.group(2);
-        String argsStr = m.group(3);
-        
-        // Execute function
-        callFunction(funcName, argsStr, context);
-        
-        // Return the value
-        if (returnValue == null) {
-            throw new LexiException("Function '" + funcName + "' did not return a value");
+        void append(CharSequence more) {
+            text.append(more);
+            flat = null;
         }
         
-        Object result = returnValue;
-        returnValue = null;
-        hasReturned = false;
-        
-        return result;
+        @Override
+        public String toString() {
+            if (flat == null) {
+                flat = text.toString();
+            }
+            return flat;
+        }
     }
     
     // ============================================================
-    // EXPRESSION EVALUATION
+    // LISTS
     // ============================================================
     
-    private static Object evaluateExpression(String expr, ExecutionContext context) 
-            throws LexiException {
+    /**
+     * A Lexi list. While every element is an int-sized whole number the
+     * elements are kept unboxed in an int[]; the first element that is not
+     * (a string, a fraction, a long or another list) widens the storage to
+     * an Object[] for good.
+     * A list of a million numbers is then 4 MB rather than ~20 MB of
+     * Integer objects and references.
+     *
+     * It is a java.util.List, so embedders see an ordinary list; numbers
+     * are boxed when read through that interface.
+     */
+    public static final class LexiList extends AbstractList<Object> implements RandomAccess {
+        private int[] numbers = new int[8];   // null once widened
+        private Object[] objects;             // used once widened
+        private int size = 0;
         
-        expr = expr.trim();
+        public LexiList() {
+        }
         
-        // String literal
-        if (expr.startsWith("\"") && expr.endsWith("\"")) {
-            return expr.substring(1, expr.length() - 1);
+        /** A copy of values, numbers stored unboxed while they can be. */
+        public LexiList(Collection<?> values) {
+            for (Object value : values) {
+                add(value);
+            }
+        }
+        
+        /** True while the elements are stored as ints. */
+        boolean isNumeric() {
+            return numbers != null;
+        }
+        
+        @Override
+        public int size() {
+            return size;
+        }
+        
+        @Override
+        public Object get(int index) {
+            Objects.checkIndex(index, size);
+            return (numbers != null) ? Integer.valueOf(numbers[index]) : objects[index];
+        }
+        
+        /** Element as a whole number, without boxing when stored unboxed. */
+        long getLong(int index) {
+            Objects.checkIndex(index, size);
+            if (numbers != null) {
+                return numbers[index];
+            }
+            if (!Numbers.isWhole(objects[index])) {
+                throw Numbers.NOT_WHOLE;
+            }
+            return ((Number) objects[index]).longValue();
+        }
+        
+        @Override
+        public boolean add(Object value) {
+            if (value instanceof Integer && numbers != null) {
+                addLong((Integer) value);
+                return true;
+            }
+            widen();
+            if (size == objects.length) {
+                objects = Arrays.copyOf(objects, size * 2);
+            }
+            objects[size++] = value;
+            modCount++;
+            return true;
+        }
+        
+        void addLong(long value) {
+            if (numbers == null || value != (int) value) {
+                add(Numbers.whole(value));
+                return;
+            }
+            if (size == numbers.length) {
+                numbers = Arrays.copyOf(numbers, size * 2);
+            }
+            numbers[size++] = (int) value;
+            modCount++;
+        }
+        
+        @Override
+        public Object set(int index, Object value) {
+            Object previous = get(index);
+            if (value instanceof Integer && numbers != null) {
+                numbers[index] = (Integer) value;
+            } else {
+                widen();
+                objects[index] = value;
+            }
+            return previous;
+        }
+        
+        void setLong(int index, long value) {
+            Objects.checkIndex(index, size);
+            if (numbers != null && value == (int) value) {
+                numbers[index] = (int) value;
+            } else {
+                widen();
+                objects[index] = Numbers.whole(value);
+            }
+        }
+        
+        /** Move to Object[] storage, boxing the numbers stored so far. */
+        private void widen() {
+            if (numbers == null) {
+                return;
+            }
+            objects = new Object[Math.max(numbers.length, 8)];
+            for (int i = 0; i < size; i++) {
+                objects[i] = numbers[i];
+            }
+            numbers = null;
+        }
+        
+        /**
+         * A copy sharing no storage with this list, nested lists copied
+         * too. copies maps each list already copied to its copy, so a list
+         * reachable twice is copied once.
+         */
+        LexiList copy(Map<LexiList, LexiList> copies) {
+            LexiList copy = copies.get(this);
+            if (copy != null) {
+                return copy;
+            }
+            copy = new LexiList();
+            copies.put(this, copy);
+            copy.size = size;
+            if (numbers != null) {
+                copy.numbers = Arrays.copyOf(numbers, Math.max(size, 8));
+                return copy;
+            }
+            copy.numbers = null;
+            copy.objects = Arrays.copyOf(objects, Math.max(size, 8));
+            for (int i = 0; i < size; i++) {
+                if (objects[i] instanceof LexiList) {
+                    copy.objects[i] = ((LexiList) objects[i]).copy(copies);
+                }
+            }
+            return copy;
+        }
+        
+        /** "[1, 2, 3]", with nested lists formatted the same way. */
+        void appendTo(StringBuilder sb) {
+            sb.append('[');
+            for (int i = 0; i < size; i++) {
+                if (i > 0) sb.append(", ");
+                if (numbers != null) {
+                    sb.append(numbers[i]);
+                } else if (objects[i] instanceof LexiList) {
+                    ((LexiList) objects[i]).appendTo(sb);
+                } else {
+                    sb.append(formatValue(objects[i]));
+                }
+            }
+            sb.append(']');
+        }
+    }
+    
+    /** The list held by a variable; errors name the variable. */
+    private static LexiList listValue(ExecutionContext context, int slot, String name) throws LexiException {
+        Object list = context.get(slot);
+        if (list == null) {
+            throw new LexiException("Variable '" + name + "' not defined");
+        }
+        if (!(list instanceof LexiList)) {
+            throw new LexiException("Variable '" + name + "' is not a list");
+        }
+        return (LexiList) list;
+    }
+    
+    /** A 1-based position in a list as a 0-based index. */
+    private static int listIndex(LexiList list, int position, String name) throws LexiException {
+        if (position < 1 || position > list.size()) {
+            throw new LexiException("No item " + position + " in list '" + name + "' (it has " +
+                list.size() + (list.size() == 1 ? " item)" : " items)"));
+        }
+        return position - 1;
+    }
+    
+    // ============================================================
+    // STATEMENT TREE
+    // ============================================================
+    
+    /**
+     * A parsed statement. Each source line is matched against the natural
+     * language patterns once, when the program is compiled, and the
+     * interpreter executes these nodes instead of re-reading the text.
+     */
+    abstract static class Statement {
+        final int line;
+        final String source;
+        
+        // Completion of a "return" without a value
+        static final Object RETURNED = new Object();
+        
+        Statement(int line, String source) {
+            this.line = line;
+            this.source = source;
+        }
+        
+        /**
+         * Run the statement. Returns null to carry on with the next one, or
+         * the completion of a "return" that ran: its value, or RETURNED.
+         */
+        abstract Object execute(ExecutionContext context) throws LexiException;
+    }
+    
+    /**
+     * "create a number called score with value 90"
+     */
+    static final class CreateStatement extends Statement {
+        final int slot;
+        final Expression value;
+        
+        CreateStatement(int line, String source, int slot, Expression value) {
+            super(line, source);
+            this.slot = slot;
+            this.value = value;
+        }
+        
+        Object execute(ExecutionContext context) throws LexiException {
+            assign(context, slot, value);
+            return null;
+        }
+    }
+    
+    /**
+     * "set score to 100" or "set result to call square with 5"
+     */
+    static final class SetStatement extends Statement {
+        final int slot;
+        final Expression value;
+        final Expression[] appended;   // for "set s to s + ...", the parts after s; else null
+        
+        SetStatement(int line, String source, int slot, Expression value) {
+            super(line, source);
+            this.slot = slot;
+            this.value = value;
+            this.appended = appendedParts(slot, value);
+        }
+        
+        Object execute(ExecutionContext context) throws LexiException {
+            if (appended == null) {
+                assign(context, slot, value);
+                return null;
+            }
+            
+            // "set s to s + ...": append to the text in place once the slot holds a buffer
+            Object current = context.local(slot);
+            if (current instanceof TextBuffer) {
+                StringBuilder tail = new StringBuilder();
+                for (Expression part : appended) {
+                    part.appendTo(tail, context);
+                }
+                ((TextBuffer) current).append(tail);
+                return null;
+            }
+            assign(context, slot, value);
+            Object result = context.local(slot);
+            if (result instanceof String) {
+                context.set(slot, new TextBuffer((String) result));
+            }
+            return null;
+        }
+        
+        private static Expression[] appendedParts(int slot, Expression value) {
+            Expression concatenation = (value instanceof AdditionOrConcatenation)
+                ? ((AdditionOrConcatenation) value).concatenation : value;
+            if (!(concatenation instanceof ConcatenationExpression)) {
+                return null;
+            }
+            Expression[] parts = ((ConcatenationExpression) concatenation).parts;
+            if (parts.length < 2 || !(parts[0] instanceof ConcatenationPart) ||
+                ((ConcatenationPart) parts[0]).slot != slot) {
+                return null;
+            }
+            return Arrays.copyOfRange(parts, 1, parts.length);
+        }
+    }
+    
+    /**
+     * "increase score by 5" / "decrease score by 3"
+     */
+    static final class IncreaseStatement extends Statement {
+        final int slot;
+        final Expression amount;   // null means "by 1"
+        final int sign;
+        
+        IncreaseStatement(int line, String source, int slot, Expression amount, int sign) {
+            super(line, source);
+            this.slot = slot;
+            this.amount = amount;
+            this.sign = sign;
+        }
+        
+        Object execute(ExecutionContext context) throws LexiException {
+            if (context.holdsNumber(slot) && (amount == null || amount.isNumeric(context))) {
+                try {
+                    long current = context.getLong(slot);
+                    long step = (amount != null) ? amount.evaluateLong(context) : 1;
+                    context.setLong(slot, (sign > 0) ? Math.addExact(current, step) : Math.subtractExact(current, step));
+                    return null;
+                } catch (ArithmeticException e) {
+                    // beyond a long: widened below
+                }
+            }
+            
+            Object current = context.get(slot);
+            if (current == null) {
+                throw new LexiException("Variable '" + context.scope.names.get(slot) + "' not defined");
+            }
+            Object step = (amount != null) ? amount.evaluate(context) : Integer.valueOf(1);
+            context.set(slot, Numbers.arithmetic(sign > 0 ? '+' : '-', current, step, context.runtime.decimal));
+            return null;
+        }
+    }
+    
+    /**
+     * "display score" or "display \"Hello\" + name"
+     */
+    static final class DisplayStatement extends Statement {
+        final Expression value;
+        
+        DisplayStatement(int line, String source, Expression value) {
+            super(line, source);
+            this.value = value;
+        }
+        
+        Object execute(ExecutionContext context) throws LexiException {
+            context.runtime.out.println(formatValue(value.evaluate(context)));
+            return null;
+        }
+    }
+    
+    /**
+     * "ask for name"
+     */
+    static final class InputStatement extends Statement {
+        final int slot;
+        
+        InputStatement(int line, String source, int slot) {
+            super(line, source);
+            this.slot = slot;
+        }
+        
+        Object execute(ExecutionContext context) throws LexiException {
+            context.runtime.out.print("? ");
+            String input = context.runtime.readLine();
+            
+            Object number = Numbers.parse(input, context.runtime.decimal);
+            context.set(slot, (number != null) ? number : input);
+            return null;
+        }
+    }
+    
+    /**
+     * "call greet with \"Alice\""
+     */
+    static final class CallStatement extends Statement {
+        final CallExpression call;
+        
+        CallStatement(int line, String source, CallExpression call) {
+            super(line, source);
+            this.call = call;
+        }
+        
+        Object execute(ExecutionContext context) throws LexiException {
+            callFunction(call, context);
+            return null;
+        }
+    }
+    
+    /**
+     * "create list names"
+     */
+    static final class CreateListStatement extends Statement {
+        final int slot;
+        
+        CreateListStatement(int line, String source, int slot) {
+            super(line, source);
+            this.slot = slot;
+        }
+        
+        Object execute(ExecutionContext context) {
+            context.set(slot, new LexiList());
+            return null;
+        }
+    }
+    
+    /**
+     * "add 5 to scores"
+     */
+    static final class ListAddStatement extends Statement {
+        final Expression value;
+        final String listName;
+        final int listSlot;
+        
+        ListAddStatement(int line, String source, Expression value, String listName, int listSlot) {
+            super(line, source);
+            this.value = value;
+            this.listName = listName;
+            this.listSlot = listSlot;
+        }
+        
+        Object execute(ExecutionContext context) throws LexiException {
+            LexiList list = listValue(context, listSlot, listName);
+            if (value.isNumeric(context)) {
+                try {
+                    list.addLong(value.evaluateLong(context));
+                    return null;
+                } catch (ArithmeticException e) {
+                    // beyond a long: added boxed below
+                }
+            }
+            list.add(value.evaluate(context));
+            return null;
+        }
+    }
+    
+    /**
+     * "set item 2 of scores to 95"
+     */
+    static final class SetListItemStatement extends Statement {
+        final String listName;
+        final int listSlot;
+        final Expression position;
+        final Expression value;
+        
+        SetListItemStatement(int line, String source, String listName, int listSlot,
+                             Expression position, Expression value) {
+            super(line, source);
+            this.listName = listName;
+            this.listSlot = listSlot;
+            this.position = position;
+            this.value = value;
+        }
+        
+        Object execute(ExecutionContext context) throws LexiException {
+            LexiList list = listValue(context, listSlot, listName);
+            int index = listIndex(list, position.evaluateInt(context), listName);
+            if (value.isNumeric(context)) {
+                try {
+                    list.setLong(index, value.evaluateLong(context));
+                    return null;
+                } catch (ArithmeticException e) {
+                    // beyond a long: stored boxed below
+                }
+            }
+            list.set(index, value.evaluate(context));
+            return null;
+        }
+    }
+    
+    /**
+     * "return n * n"
+     */
+    static final class ReturnStatement extends Statement {
+        final Expression value;   // null for a bare "return"
+        
+        ReturnStatement(int line, String source, Expression value) {
+            super(line, source);
+            this.value = value;
+        }
+        
+        Object execute(ExecutionContext context) throws LexiException {
+            if (value instanceof CallExpression && context != context.globals) {
+                // "return call f ..." in a function: f replaces this call (see invoke)
+                CallExpression call = (CallExpression) value;
+                Function function = call.target(context.runtime);
+                if (function.compiled == null) {
+                    return new TailCall(function, frame(call, function, context), line);
+                }
+            }
+            return (value != null) ? value.evaluate(context) : RETURNED;
+        }
+    }
+    
+    /**
+     * Completion of a "return call" in a function: the call to make in
+     * place of the current one, with its frame already bound.
+     */
+    static final class TailCall {
+        final Function function;
+        final ExecutionContext frame;
+        final int line;   // of the return, for "did not return a value"
+        
+        TailCall(Function function, ExecutionContext frame, int line) {
+            this.function = function;
+            this.frame = frame;
+            this.line = line;
+        }
+    }
+    
+    /**
+     * "if ... elseif ... else ... end"
+     * conditions[i] guards branches[i]; elseBranch may be null.
+     */
+    static final class IfStatement extends Statement {
+        final Condition[] conditions;
+        final Statement[][] branches;
+        final Statement[] elseBranch;
+        
+        IfStatement(int line, String source, Condition[] conditions, 
+                    Statement[][] branches, Statement[] elseBranch) {
+            super(line, source);
+            this.conditions = conditions;
+            this.branches = branches;
+            this.elseBranch = elseBranch;
+        }
+        
+        Object execute(ExecutionContext context) throws LexiException {
+            for (int i = 0; i < conditions.length; i++) {
+                if (conditions[i].evaluate(context)) {
+                    return executeBlock(branches[i], context);
+                }
+            }
+            return (elseBranch != null) ? executeBlock(elseBranch, context) : null;
+        }
+    }
+    
+    /**
+     * "while count < 10 ... end"
+     */
+    static final class WhileStatement extends Statement {
+        final Condition condition;
+        final Statement[] body;
+        final LoopTier tier;   // null unless the loop is at top level
+        
+        WhileStatement(int line, String source, Condition condition, Statement[] body, 
+                       boolean topLevel) {
+            super(line, source);
+            this.condition = condition;
+            this.body = body;
+            this.tier = topLevel ? new LoopTier(this) : null;
+        }
+        
+        Object execute(ExecutionContext context) throws LexiException {
+            LexiRuntime runtime = context.runtime;
+            while (true) {
+                if (tier != null && tier.ready(context) && tier.run(context, 0, 0)) {
+                    return null;
+                }
+                runtime.currentLine = line;
+                if (!condition.evaluate(context)) {
+                    return null;
+                }
+                Object completion = executeBlock(body, context);
+                if (completion != null) {
+                    return completion;
+                }
+            }
+        }
+    }
+    
+    /**
+     * "for i from 1 to 10 ... end"
+     */
+    static final class ForStatement extends Statement {
+        final int slot;
+        final Expression start;
+        final Expression end;
+        final Statement[] body;
+        final LoopTier tier;   // null unless the loop is at top level
+        
+        ForStatement(int line, String source, int slot, 
+                     Expression start, Expression end, Statement[] body, boolean topLevel) {
+            super(line, source);
+            this.slot = slot;
+            this.start = start;
+            this.end = end;
+            this.body = body;
+            this.tier = topLevel ? new LoopTier(this) : null;
+        }
+        
+        Object execute(ExecutionContext context) throws LexiException {
+            int start = this.start.evaluateInt(context);
+            int end = this.end.evaluateInt(context);
+            
+            for (int i = start; i <= end; i++) {
+                if (tier != null && tier.ready(context) && tier.run(context, i, end)) {
+                    return null;
+                }
+                context.setLong(slot, i);
+                Object completion = executeBlock(body, context);
+                if (completion != null) {
+                    return completion;
+                }
+            }
+            return null;
+        }
+    }
+    
+    /**
+     * "parallel for i from 1 to n reducing sum total, list results"
+     * The range is split into chunks run on the common ForkJoin pool. Each
+     * chunk works on a private copy of the frame and a runtime of its own,
+     * so the body may only set variables it introduces, which are not seen
+     * after the loop, and these (see parallelBodyError):
+     *   sum x   - each chunk sums from 0; the sums are added to x
+     *   min x   - each chunk starts from x; the smallest of their final
+     *             values (and x) is kept
+     *   max x   - the same, keeping the largest
+     *   list x  - each chunk adds to an empty list; they are appended to
+     *             x in iteration order
+     * What the chunks display is printed in iteration order once all are
+     * done, so the output is the same as a plain for loop's.
+     */
+    static final class ParallelForStatement extends Statement {
+        static final int SUM = 0, MIN = 1, MAX = 2, LIST = 3;
+        static final List<String> REDUCTIONS = Arrays.asList("sum", "min", "max", "list");
+        
+        final int slot;
+        final Expression start;
+        final Expression end;
+        final Statement[] body;
+        final int[] reductions;
+        final int[] reductionSlots;
+        final String[] reductionNames;
+        
+        ParallelForStatement(int line, String source, int slot, Expression start, Expression end,
+                             Statement[] body, int[] reductions, int[] reductionSlots, String[] reductionNames) {
+            super(line, source);
+            this.slot = slot;
+            this.start = start;
+            this.end = end;
+            this.body = body;
+            this.reductions = reductions;
+            this.reductionSlots = reductionSlots;
+            this.reductionNames = reductionNames;
+        }
+        
+        Object execute(ExecutionContext context) throws LexiException {
+            int start = this.start.evaluateInt(context);
+            int end = this.end.evaluateInt(context);
+            if (start > end) {
+                return null;
+            }
+            for (int i = 0; i < reductions.length; i++) {
+                if (reductions[i] == LIST) {
+                    listValue(context, reductionSlots[i], reductionNames[i]);
+                }
+            }
+            
+            // A few chunks per worker, so an uneven chunk does not leave the others idle
+            long count = (long) end - start + 1;
+            int chunks = (int) Math.min(count, ForkJoinPool.getCommonPoolParallelism() * 4L);
+            ParallelChunk[] work = new ParallelChunk[chunks];
+            List<ForkJoinTask<?>> tasks = new ArrayList<>(chunks);
+            for (int c = 0; c < chunks; c++) {
+                int from = (int) (start + count * c / chunks);
+                int to = (int) (start + count * (c + 1) / chunks - 1);
+                work[c] = new ParallelChunk(this, context, from, to);
+                tasks.add(ForkJoinPool.commonPool().submit(work[c]));
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+            
+            PrintWriter out = context.runtime.out;
+            for (ParallelChunk chunk : work) {
+                out.print(chunk.output);
+                if (chunk.failure != null) {
+                    throw chunk.failure;
+                }
+            }
+            for (int i = 0; i < reductions.length; i++) {
+                reduce(i, context, work);
+            }
+            context.setLong(slot, end);
+            return null;
+        }
+        
+        /** Merge the chunks' copies of reduction variable i into context. */
+        private void reduce(int i, ExecutionContext context, ParallelChunk[] work) throws LexiException {
+            int slot = reductionSlots[i];
+            if (reductions[i] == LIST) {
+                LexiList list = listValue(context, slot, reductionNames[i]);
+                for (ParallelChunk chunk : work) {
+                    list.addAll(listValue(chunk.frame, slot, reductionNames[i]));
+                }
+                return;
+            }
+            Object result = context.get(slot);
+            if (reductions[i] == SUM && result == null) {
+                result = 0;
+            }
+            for (ParallelChunk chunk : work) {
+                Object value = chunk.frame.get(slot);
+                if (reductions[i] == SUM) {
+                    result = Numbers.arithmetic('+', result, value, context.runtime.decimal);
+                } else if (value != null) {
+                    Object number = Numbers.toNumber(value, context.runtime.decimal);
+                    if (result == null || (Numbers.compare(number, Numbers.toNumber(result, context.runtime.decimal)) < 0)
+                                         == (reductions[i] == MIN)) {
+                        result = number;
+                    }
+                }
+            }
+            context.set(slot, result);
+        }
+    }
+    
+    /**
+     * One range of a parallel for, with its private frame, runtime and
+     * display output. The frame is copied before the chunk is submitted,
+     * while the loop's thread is the only one using the original.
+     */
+    static final class ParallelChunk implements Runnable {
+        private final ParallelForStatement loop;
+        private final int from;
+        private final int to;
+        final ExecutionContext frame;
+        final StringWriter output = new StringWriter();
+        LexiException failure;
+        
+        ParallelChunk(ParallelForStatement loop, ExecutionContext context, int from, int to) {
+            this.loop = loop;
+            this.from = from;
+            this.to = to;
+            LexiRuntime runtime = context.runtime.worker(output);
+            ExecutionContext globals = new ExecutionContext(context.globals, runtime);
+            this.frame = (context == context.globals) ? globals : new ExecutionContext(context, globals);
+            for (int i = 0; i < loop.reductions.length; i++) {
+                int slot = loop.reductionSlots[i];
+                if (loop.reductions[i] == ParallelForStatement.SUM) {
+                    frame.setLong(slot, 0);
+                } else if (loop.reductions[i] == ParallelForStatement.LIST) {
+                    frame.set(slot, new LexiList());
+                }
+            }
+        }
+        
+        public void run() {
+            try {
+                for (int i = from; i <= to; i++) {
+                    frame.setLong(loop.slot, i);
+                    executeBlock(loop.body, frame);
+                }
+            } catch (LexiException e) {
+                failure = e;
+            } catch (StackOverflowError e) {
+                failure = new LexiException("Out of stack in a parallel for", frame.runtime.currentLine);
+            } catch (RuntimeException | Error e) {
+                failure = new LexiException("Parallel for failed: " + e, frame.runtime.currentLine);
+            } finally {
+                frame.runtime.out.flush();
+            }
+        }
+    }
+    
+    /**
+     * "spawn call fetch with url as page"
+     * Starts the call as a task and carries on at once; the task is stored
+     * in the variable after "as", if there is one.
+     */
+    static final class SpawnStatement extends Statement {
+        final CallExpression call;
+        final int slot;   // -1 without "as"
+        
+        SpawnStatement(int line, String source, CallExpression call, int slot) {
+            super(line, source);
+            this.call = call;
+            this.slot = slot;
+        }
+        
+        Object execute(ExecutionContext context) throws LexiException {
+            LexiTask task = TaskScope.spawn(call, context);
+            if (slot >= 0) {
+                context.set(slot, task);
+            }
+            return null;
+        }
+    }
+    
+    /**
+     * "wait for page"
+     * Blocks until the task finishes and replaces it with the value its
+     * function returned (a function that returns nothing leaves the task).
+     * If the task failed, its error is raised here.
+     */
+    static final class WaitStatement extends Statement {
+        final String name;
+        final int slot;
+        
+        WaitStatement(int line, String source, String name, int slot) {
+            super(line, source);
+            this.name = name;
+            this.slot = slot;
+        }
+        
+        Object execute(ExecutionContext context) throws LexiException {
+            Object value = context.get(slot);
+            if (!(value instanceof LexiTask)) {
+                throw new LexiException("Variable '" + name + "' is not a task");
+            }
+            LexiTask task = (LexiTask) value;
+            if (task.spawner != context.runtime) {
+                // Another task would share the result (and its lists) with the spawner
+                throw new LexiException("Only the code that spawned task '" + task.name + "' can wait for it");
+            }
+            Object result = task.await();
+            if (result != null) {
+                context.set(slot, result);
+            }
+            return null;
+        }
+    }
+    
+    /**
+     * "function square n ... end"
+     * The body is compiled with the rest of the program; executing the
+     * definition only registers it.
+     */
+    static final class FunctionDefinitionStatement extends Statement {
+        final Function function;
+        
+        FunctionDefinitionStatement(int line, String source, Function function) {
+            super(line, source);
+            this.function = function;
+        }
+        
+        Object execute(ExecutionContext context) {
+            context.runtime.define(function);
+            return null;
+        }
+    }
+    
+    /**
+     * A line that did not match any pattern. The error is reported when the
+     * line is reached, exactly as if it had been interpreted directly.
+     */
+    static final class InvalidStatement extends Statement {
+        final String message;
+        
+        InvalidStatement(int line, String source, String message) {
+            super(line, source);
+            this.message = message;
+        }
+        
+        Object execute(ExecutionContext context) throws LexiException {
+            throw new LexiException(message);
+        }
+    }
+    
+    // ============================================================
+    // STATEMENT COMPILATION
+    // ============================================================
+    
+    /**
+     * Compile lines [startLine, endLine) into a statement tree.
+     * Block headers consume their body up to the matching end, which is
+     * looked up in the precomputed index rather than searched for.
+     */
+    private static Statement[] compileBlock(List<String> code, BlockIndex index, Scope scope, 
+                                            int startLine, int endLine) {
+        List<Statement> block = new ArrayList<>();
+        int i = startLine;
+        
+        while (i < endLine) {
+            String line = code.get(i).trim();
+            
+            // Skip empty lines and comments
+            if (line.isEmpty() || line.startsWith("#") || line.startsWith("//")) {
+                i++;
+                continue;
+            }
+            
+            if (isIfStatement(line)) {
+                block.add(compileIfBlock(code, index, scope, i));
+                i = index.end(i) + 1;
+            } else if (isWhileStatement(line)) {
+                block.add(compileWhileBlock(code, index, scope, i));
+                i = index.end(i) + 1;
+            } else if (isForStatement(line)) {
+                block.add(compileForBlock(code, index, scope, i));
+                i = index.end(i) + 1;
+            } else if (isParallelForStatement(line)) {
+                block.add(compileParallelForBlock(code, index, scope, i));
+                i = index.end(i) + 1;
+            } else if (isFunctionDefinition(line)) {
+                block.add(compileFunctionDefinition(code, index, scope, i));
+                i = index.end(i) + 1;
+            } else if (isBlockEnd(line)) {
+                block.add(new InvalidStatement(i, line, 
+                    "Unexpected '" + line + "' without a matching block"));
+                i++;
+            } else {
+                block.add(compileStatement(line, i, scope));
+                i++;
+            }
+        }
+        
+        return block.toArray(new Statement[0]);
+    }
+    
+    /**
+     * Dispatch on the leading keyword so each line is matched only against
+     * the pattern(s) that can possibly apply to it.
+     */
+    private static Statement compileStatement(String line, int lineNumber, Scope scope) {
+        if (isReturnStatement(line)) return compileReturn(line, lineNumber, scope);
+        
+        Statement statement = null;
+        
+        switch (leadingKeyword(line)) {
+            case "create":
+                statement = parseCreateVariable(line, lineNumber, scope);
+                if (statement == null) {
+                    statement = parseCreateArray(line, lineNumber, scope);
+                }
+                break;
+            case "set":
+            case "make":
+            case "let":
+                statement = parseSetListItem(line, lineNumber, scope);
+                if (statement == null) {
+                    statement = parseSetVariable(line, lineNumber, scope);
+                }
+                break;
+            case "increase":
+            case "increment":
+                statement = parseIncreaseVariable(line, lineNumber, scope);
+                break;
+            case "decrease":
+            case "decrement":
+                statement = parseDecreaseVariable(line, lineNumber, scope);
+                break;
+            case "display":
+            case "show":
+            case "print":
+            case "say":
+                statement = parseDisplay(line, lineNumber, scope);
+                break;
+            case "ask":
+            case "get":
+            case "input":
+                statement = parseInput(line, lineNumber, scope);
+                break;
+            case "call":
+            case "run":
+                statement = parseFunctionCall(line, lineNumber, scope);
+                break;
+            case "add":
+                statement = parseArrayAdd(line, lineNumber, scope);
+                break;
+            case "spawn":
+                statement = parseSpawn(line, lineNumber, scope);
+                break;
+            case "wait":
+                statement = parseWait(line, lineNumber, scope);
+                break;
+        }
+        
+        if (statement == null) {
+            statement = new InvalidStatement(lineNumber, line, "Unknown command: " + line);
+        }
+        return statement;
+    }
+    
+    /**
+     * First word of a trimmed line, lower-cased ("" for an empty line).
+     */
+    private static String leadingKeyword(String line) {
+        int end = 0;
+        while (end < line.length() && !Character.isWhitespace(line.charAt(end))) {
+            end++;
+        }
+        return line.substring(0, end).toLowerCase();
+    }
+    
+    // ============================================================
+    // PATTERN TABLE (compiled once, shared by every parse)
+    // ============================================================
+    
+    // create a number called score with value 90
+    private static final Pattern CREATE_VARIABLE = Pattern.compile(
+        "create\\s+a\\s+(?:number|variable|string)\\s+called\\s+(\\w+)\\s+with\\s+value\\s+(.+)",
+        Pattern.CASE_INSENSITIVE
+    );
+    
+    // set score to 100
+    private static final Pattern SET_VARIABLE = Pattern.compile(
+        "(set|make|let)\\s+(\\w+)\\s+(?:to|equal to|=|be)\\s+(.+)",
+        Pattern.CASE_INSENSITIVE
+    );
+    
+    // increase score by 5
+    private static final Pattern INCREASE_VARIABLE = Pattern.compile(
+        "(increase|increment)\\s+(\\w+)(?:\\s+by\\s+(\\S+))?",
+        Pattern.CASE_INSENSITIVE
+    );
+    
+    // decrease score by 3
+    private static final Pattern DECREASE_VARIABLE = Pattern.compile(
+        "(decrease|decrement)\\s+(\\w+)(?:\\s+by\\s+(\\S+))?",
+        Pattern.CASE_INSENSITIVE
+    );
+    
+    // display "Hello" + name
+    private static final Pattern DISPLAY = Pattern.compile(
+        "(display|show|print|say)\\s+(.+)",
+        Pattern.CASE_INSENSITIVE
+    );
+    
+    // ask for name
+    private static final Pattern INPUT = Pattern.compile(
+        "(ask|get|input)\\s+(?:for|input for)\\s+(\\w+)",
+        Pattern.CASE_INSENSITIVE
+    );
+    
+    // create list names
+    private static final Pattern CREATE_LIST = Pattern.compile(
+        "create\\s+(list|array)\\s+(\\w+)",
+        Pattern.CASE_INSENSITIVE
+    );
+    
+    // set item 2 of scores to 95
+    private static final Pattern SET_LIST_ITEM = Pattern.compile(
+        "(?:set|make|let)\\s+item\\s+(.+?)\\s+of\\s+(\\w+)\\s+(?:to|=|be)\\s+(.+)",
+        Pattern.CASE_INSENSITIVE
+    );
+    
+    // add 5 to scores
+    private static final Pattern LIST_ADD = Pattern.compile(
+        "add\\s+(.+?)\\s+to\\s+(\\w+)",
+        Pattern.CASE_INSENSITIVE
+    );
+    
+    // function square n
+    private static final Pattern FUNCTION_HEADER = Pattern.compile(
+        "(define\\s+|remember\\s+)?function\\s+(\\w+)(?:\\s+(.+))?",
+        Pattern.CASE_INSENSITIVE
+    );
+    
+    // call greet with "Alice"
+    private static final Pattern FUNCTION_CALL = Pattern.compile(
+        "(call|run function)\\s+(\\w+)(?:\\s+with\\s+(.+))?",
+        Pattern.CASE_INSENSITIVE
+    );
+    
+    // spawn call fetch with url as page
+    private static final Pattern SPAWN = Pattern.compile(
+        "spawn\\s+(.+?)(?:\\s+as\\s+(\\w+))?",
+        Pattern.CASE_INSENSITIVE
+    );
+    
+    // wait for page
+    private static final Pattern WAIT = Pattern.compile(
+        "wait\\s+for\\s+(\\w+)",
+        Pattern.CASE_INSENSITIVE
+    );
+    
+    // for i from 1 to 10, for i from 1 to length of scores
+    private static final Pattern PARALLEL_FOR_HEADER = Pattern.compile(
+        "parallel\\s+(?:for|loop)\\s+(\\w+)\\s+from\\s+(.+?)\\s+to\\s+(.+?)(?:\\s+reducing\\s+(.+))?",
+        Pattern.CASE_INSENSITIVE
+    );
+    
+    private static final Pattern FOR_HEADER = Pattern.compile(
+        "(?:for|loop)\\s+(\\w+)\\s+from\\s+(.+?)\\s+to\\s+(.+)",
+        Pattern.CASE_INSENSITIVE
+    );
+    
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern OPERATORS = Pattern.compile("[+\\-*/()%^]");
+    
+    // Two-character operators first so ">=" is not read as ">"
+    private static final String[] COMPARISON_OPERATORS = {"==", "!=", ">=", "<=", ">", "<"};
+    
+    // ============================================================
+    // NATURAL LANGUAGE PATTERNS
+    // ============================================================
+    
+    /**
+     * Pattern: "create a number called score with value 90"
+     */
+    private static Statement parseCreateVariable(String line, int lineNumber, Scope scope) {
+        Matcher m = CREATE_VARIABLE.matcher(line);
+        if (m.matches()) {
+            return new CreateStatement(lineNumber, line, scope.define(m.group(1)), 
+                compileExpression(m.group(2), scope));
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Pattern: "set score to 100"
+     * Pattern: "set result to call square with 5"
+     */
+    private static Statement parseSetVariable(String line, int lineNumber, Scope scope) {
+        Matcher m = SET_VARIABLE.matcher(line);
+        if (m.matches()) {
+            String varName = m.group(2);
+            String valueExpr = m.group(3);
+            
+            // Check if it's a function call with return value
+            Expression value = parseCallExpression(valueExpr.trim(), scope);
+            if (value == null) {
+                value = compileExpression(valueExpr, scope);
+            }
+            return new SetStatement(lineNumber, line, scope.define(varName), value);
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Pattern: "increase score by 5"
+     */
+    private static Statement parseIncreaseVariable(String line, int lineNumber, Scope scope) {
+        Matcher m = INCREASE_VARIABLE.matcher(line);
+        if (m.matches()) {
+            Expression amount = (m.group(3) != null) ? compileExpression(m.group(3), scope) : null;
+            return new IncreaseStatement(lineNumber, line, scope.define(m.group(2)), amount, 1);
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Pattern: "decrease score by 3"
+     */
+    private static Statement parseDecreaseVariable(String line, int lineNumber, Scope scope) {
+        Matcher m = DECREASE_VARIABLE.matcher(line);
+        if (m.matches()) {
+            Expression amount = (m.group(3) != null) ? compileExpression(m.group(3), scope) : null;
+            return new IncreaseStatement(lineNumber, line, scope.define(m.group(2)), amount, -1);
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Pattern: "display score" or "display \"Hello\" + name"
+     */
+    private static Statement parseDisplay(String line, int lineNumber, Scope scope) {
+        Matcher m = DISPLAY.matcher(line);
+        if (m.matches()) {
+            return new DisplayStatement(lineNumber, line, compileExpression(m.group(2), scope));
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Pattern: "ask for name"
+     */
+    private static Statement parseInput(String line, int lineNumber, Scope scope) {
+        Matcher m = INPUT.matcher(line);
+        if (m.matches()) {
+            return new InputStatement(lineNumber, line, scope.define(m.group(2)));
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Pattern: "call greet with \"Alice\""
+     */
+    private static Statement parseFunctionCall(String line, int lineNumber, Scope scope) {
+        CallExpression call = parseCallExpression(line, scope);
+        if (call != null) {
+            return new CallStatement(lineNumber, line, call);
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Pattern: "spawn call fetch with url as page"
+     */
+    private static Statement parseSpawn(String line, int lineNumber, Scope scope) {
+        Matcher m = SPAWN.matcher(line);
+        if (m.matches()) {
+            CallExpression call = parseCallExpression(m.group(1), scope);
+            if (call != null) {
+                int slot = (m.group(2) != null) ? scope.define(m.group(2)) : -1;
+                return new SpawnStatement(lineNumber, line, call, slot);
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Pattern: "wait for page"
+     */
+    private static Statement parseWait(String line, int lineNumber, Scope scope) {
+        Matcher m = WAIT.matcher(line);
+        if (m.matches()) {
+            return new WaitStatement(lineNumber, line, m.group(1), scope.define(m.group(1)));
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Pattern: "create list names"
+     */
+    private static Statement parseCreateArray(String line, int lineNumber, Scope scope) {
+        Matcher m = CREATE_LIST.matcher(line);
+        if (m.matches()) {
+            return new CreateListStatement(lineNumber, line, scope.define(m.group(2)));
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Pattern: "set item 2 of scores to 95"
+     */
+    private static Statement parseSetListItem(String line, int lineNumber, Scope scope) {
+        Matcher m = SET_LIST_ITEM.matcher(line);
+        if (m.matches()) {
+            String listName = m.group(2);
+            return new SetListItemStatement(lineNumber, line, listName, scope.define(listName),
+                compileExpression(m.group(1), scope), compileExpression(m.group(3), scope));
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Pattern: "add 5 to scores"
+     */
+    private static Statement parseArrayAdd(String line, int lineNumber, Scope scope) {
+        Matcher m = LIST_ADD.matcher(line);
+        if (m.matches()) {
+            String listName = m.group(2).trim();
+            return new ListAddStatement(lineNumber, line, compileExpression(m.group(1), scope), 
+                listName, scope.define(listName));
+        }
+        
+        return null;
+    }
+    
+    // ============================================================
+    // RETURN STATEMENT
+    // ============================================================
+    
+    private static boolean isReturnStatement(String line) {
+        String lower = line.trim().toLowerCase();
+        return lower.startsWith("return ") || lower.equals("return");
+    }
+    
+    private static Statement compileReturn(String line, int lineNumber, Scope scope) {
+        String expr = line.substring(6).trim(); // Skip "return"
+        if (expr.isEmpty()) {
+            return new ReturnStatement(lineNumber, line, null);
+        }
+        
+        Expression value = parseCallExpression(expr, scope);
+        if (value == null) {
+            value = compileExpression(expr, scope);
+        }
+        return new ReturnStatement(lineNumber, line, value);
+    }
+    
+    // ============================================================
+    // FUNCTION HANDLING
+    // ============================================================
+    
+    private static boolean isFunctionDefinition(String line) {
+        String lower = line.trim().toLowerCase();
+        return lower.startsWith("function ") || lower.startsWith("define function ") ||
+               lower.startsWith("remember function ");
+    }
+    
+    private static Statement compileFunctionDefinition(List<String> code, BlockIndex index, 
+                                                       Scope scope, int startLine) {
+        String line = code.get(startLine).trim();
+        
+        Matcher m = FUNCTION_HEADER.matcher(line);
+        if (!m.find()) {
+            return new InvalidStatement(startLine, line, "Invalid function syntax");
+        }
+        
+        boolean remembered = m.group(1) != null && m.group(1).toLowerCase().startsWith("remember");
+        String funcName = m.group(2);
+        String paramsStr = m.group(3);
+        
+        List<String> parameters = new ArrayList<>();
+        if (paramsStr != null && !paramsStr.trim().isEmpty()) {
+            String[] params = WHITESPACE.split(paramsStr.trim());
+            for (String param : params) {
+                parameters.add(param.trim());
+            }
+        }
+        
+        // Functions see their own parameters and locals, then globals
+        Scope globalScope = (scope.global != null) ? scope.global : scope;
+        Scope funcScope = new Scope(funcName, globalScope);
+        for (String param : parameters) {
+            funcScope.define(param);
+        }
+        
+        Statement[] body = compileBlock(code, index, funcScope, startLine + 1, index.end(startLine));
+        funcScope.link();
+        return new FunctionDefinitionStatement(startLine, line, 
+            new Function(funcName, parameters, body, funcScope, remembered));
+    }
+    
+    /**
+     * Parse "call f with a, b" (or "run function f ...") into a CallExpression
+     * with compiled arguments. Returns null when the text is not a function call.
+     */
+    private static CallExpression parseCallExpression(String expr, Scope scope) {
+        String keyword = leadingKeyword(expr);
+        if (!keyword.equals("call") && !keyword.equals("run")) {
+            return null;
+        }
+        
+        Matcher m = FUNCTION_CALL.matcher(expr);
+        if (m.matches()) {
+            Expression[] arguments = new Expression[0];
+            if (m.group(3) != null) {
+                List<String> argParts = splitArguments(m.group(3));
+                arguments = new Expression[argParts.size()];
+                for (int i = 0; i < arguments.length; i++) {
+                    arguments[i] = compileExpression(argParts.get(i), scope);
+                }
+            }
+            return new CallExpression(m.group(2), arguments);
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Split the arguments a, "x, y", b at the commas outside quotes.
+     */
+    private static List<String> splitArguments(String text) {
+        List<String> parts = new ArrayList<>();
+        boolean inQuotes = false;
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"') {
+                inQuotes = !inQuotes;
+            } else if (c == ',' && !inQuotes) {
+                parts.add(text.substring(start, i));
+                start = i + 1;
+            }
+        }
+        parts.add(text.substring(start));
+        return parts;
+    }
+    
+    /**
+     * Call function and return its return value (null if it returned nothing)
+     */
+    private static Object callFunction(CallExpression call, ExecutionContext context) 
+            throws LexiException {
+        
+        LexiRuntime runtime = context.runtime;
+        Function func = call.target(runtime);
+        
+        if (runtime.parallelWorker && !func.pure) {
+            // Chunks share lists and globals' lists; only a pure function cannot touch them
+            throw new LexiException("A parallel for can only call functions that use nothing but their " +
+                "arguments (no display, ask, list changes, globals or other calls): '" + func.name + "'");
+        }
+        
+        if (func.memo != null) {
+            return callRemembered(call, func, context);
+        }
+        
+        // Hot functions run as bytecode while their arguments are numbers
+        CompiledFunction compiled = hotCode(func, runtime);
+        if (compiled != null) {
+            int[] arguments = numericArguments(call, context);
+            if (arguments != null) {
+                try {
+                    return compiled.invoke(arguments);
+                } catch (Deoptimize | ArithmeticException | StackOverflowError e) {
+                    func.compiled = null;   // interpret this call, and from now on
+                }
+            }
+        }
+        
+        return invoke(func, frame(call, func, context));
+    }
+    
+    /**
+     * Call a remembered function: a repeated call with the same arguments
+     * is a lookup, and only a miss runs the body.
+     */
+    private static Object callRemembered(CallExpression call, Function func, ExecutionContext context)
+            throws LexiException {
+        Object[] arguments = new Object[call.arguments.length];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = call.arguments[i].evaluate(context);
+        }
+        Object key = Memo.key(arguments, context.runtime.decimal);
+        if (key != null) {
+            Object result = func.memo.get(key);
+            if (result != null) {
+                return result;
+            }
+        }
+        
+        ExecutionContext frame = new ExecutionContext(func.scope, context.globals);
+        for (int i = 0; i < arguments.length; i++) {
+            frame.set(i, arguments[i]);
+        }
+        Object result = invoke(func, frame);
+        if (key != null) {
+            func.memo.put(key, result);
+        }
+        return result;
+    }
+    
+    /**
+     * A new frame for func, its parameters (the first slots) bound to the
+     * call's arguments evaluated in the caller's frame.
+     */
+    private static ExecutionContext frame(CallExpression call, Function func, ExecutionContext context)
+            throws LexiException {
+        return frame(call, func, context, context.globals);
+    }
+    
+    /** The same, for a frame over other globals than the caller's (a task's). */
+    private static ExecutionContext frame(CallExpression call, Function func, ExecutionContext context,
+                                          ExecutionContext globals) throws LexiException {
+        ExecutionContext frame = new ExecutionContext(func.scope, globals);
+        for (int i = 0; i < call.arguments.length; i++) {
+            assign(frame, i, call.arguments[i], context);
+        }
+        return frame;
+    }
+    
+    /**
+     * Run a function in a bound frame and return its return value. Nesting
+     * is limited by the runtime's call depth, not by the Java stack: after
+     * FIRST_SEGMENT calls on the caller's thread, and then every
+     * SEGMENT_CALLS, the chain continues on a new thread with a stack of
+     * its own while this one waits. A "return call" in the body hands
+     * back the next function and frame, which run here in place of this
+     * call, so tail recursion does not nest at all. Tasks the call
+     * spawns are finished before it returns, and cancelled if it fails.
+     */
+    static Object invoke(Function func, ExecutionContext frame) throws LexiException {
+        LexiRuntime runtime = frame.runtime;
+        int depth = ++runtime.callDepth;
+        TaskScope outer = runtime.tasks;
+        runtime.tasks = null;
+        try {
+            if (depth > runtime.maxCallDepth) {
+                throw new LexiException("Function '" + func.name + "' nested deeper than " +
+                    runtime.maxCallDepth + " calls (see --max-depth)");
+            }
+            Object result = (depth >= runtime.segmentEnd) ? StackSegment.run(func, frame) : run(func, frame);
+            TaskScope.close(runtime);
+            return result;
+        } catch (StackOverflowError e) {
+            throw new LexiException("Function '" + func.name + "' ran out of stack at depth " + depth);
+        } finally {
+            TaskScope.cancel(runtime);
+            runtime.tasks = outer;
+            runtime.callDepth--;
+        }
+    }
+    
+    private static Object run(Function func, ExecutionContext frame) throws LexiException {
+        TailCall tail = null;
+        while (true) {
+            Object completion = (func.compiledBody != null) ? func.compiledBody.execute(frame)
+                                                            : executeBlock(func.body, frame);
+            if (!(completion instanceof TailCall)) {
+                Object result = valueOf(completion);
+                if (result == null && tail != null) {
+                    // as if the "return call" had evaluated the call itself
+                    throw new LexiException("Function '" + func.name + "' did not return a value", tail.line);
+                }
+                return result;
+            }
+            tail = (TailCall) completion;
+            func = tail.function;
+            frame = tail.frame;
+        }
+    }
+    
+    // Calls run on one thread's stack before the chain moves to a new one. A
+    // call takes 1.3-2.4 KB of stack (more with deeply nested blocks), so a
+    // caller's thread, 1 MB by default and partly used already, gets 128 and
+    // a 16 MB segment thread 2048
+    static final int FIRST_SEGMENT = 128;
+    static final int SEGMENT_CALLS = 2048;
+    static final int DEFAULT_CALL_DEPTH = 10_000;
+    
+    /**
+     * A run of nested calls on another thread's stack. The threads are
+     * pooled, so a call that crosses a segment boundary costs a hand-off
+     * rather than a thread start. The calling thread parks until the
+     * segment is done, so the runtime is still used by one thread at a time.
+     */
+    private static final class StackSegment implements Runnable {
+        // Room for SEGMENT_CALLS calls with deeply nested blocks; only touched pages are committed
+        static final long STACK_BYTES = 16L << 20;
+        
+        private static final AtomicLong SEGMENT_THREADS = new AtomicLong();
+        private static final ExecutorService THREADS = Executors.newCachedThreadPool(segment -> {
+            Thread thread = new Thread(null, segment, "lexi-calls-" + SEGMENT_THREADS.incrementAndGet(), STACK_BYTES);
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        private final Function func;
+        private final ExecutionContext frame;
+        private final Thread caller = Thread.currentThread();
+        private Object result;
+        private Throwable failure;
+        private volatile boolean done;
+        
+        private StackSegment(Function func, ExecutionContext frame) {
+            this.func = func;
+            this.frame = frame;
+        }
+        
+        static Object run(Function func, ExecutionContext frame) throws LexiException {
+            LexiRuntime runtime = frame.runtime;
+            int end = runtime.segmentEnd;
+            runtime.segmentEnd = runtime.callDepth + SEGMENT_CALLS;
+            StackSegment segment = new StackSegment(func, frame);
+            try {
+                THREADS.execute(segment);
+                return segment.await();
+            } finally {
+                runtime.segmentEnd = end;
+            }
+        }
+        
+        private Object await() throws LexiException {
+            // If interrupted, stop the segment at its next block, and wait for that:
+            // until it has stopped the runtime is still in use on its thread
+            LexiRuntime runtime = frame.runtime;
+            boolean interrupted = false;
+            boolean cancelled = false;
+            while (!done) {
+                LockSupport.park(this);
+                if (Thread.interrupted() && !interrupted) {
+                    interrupted = true;
+                    cancelled = runtime.cancelled;
+                    runtime.cancelled = true;
+                }
+            }
+            if (interrupted) {
+                runtime.cancelled = cancelled;
+                Thread.currentThread().interrupt();
+                if (failure != null) {
+                    throw new LexiException("Interrupted in function '" + func.name + "'");
+                }
+            }
+            
+            if (failure instanceof LexiException) {
+                throw (LexiException) failure;
+            } else if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            return result;
+        }
+        
+        public void run() {
+            try {
+                result = Lexi.run(func, frame);
+            } catch (Throwable t) {
+                failure = t;
+            } finally {
+                done = true;
+                LockSupport.unpark(caller);
+            }
+        }
+    }
+    
+    /**
+     * The tasks one call (or the top level) has spawned. Running tasks are
+     * limited per scope: a spawn past LIMIT waits until one finishes. When
+     * the call returns, every task it spawned has finished; when it or one
+     * of its tasks fails, the tasks still running are cancelled and stop
+     * at their next block.
+     */
+    static final class TaskScope {
+        static final int LIMIT = 64;
+        
+        private static final AtomicLong TASK_THREADS = new AtomicLong();
+        private static final ExecutorService THREADS = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(null, task, "lexi-task-" + TASK_THREADS.incrementAndGet(),
+                                       StackSegment.STACK_BYTES);
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        private final Semaphore room = new Semaphore(LIMIT);
+        private final List<LexiTask> tasks = new ArrayList<>();
+        private volatile LexiException failure;   // the first task to fail
+        
+        /**
+         * Start call as a task of the running call. The arguments are
+         * evaluated here; the task gets its own frame, runtime and a copy
+         * of the globals, and every list in them or in its arguments is
+         * copied, so the task and its spawner never share anything they
+         * can change.
+         */
+        static LexiTask spawn(CallExpression call, ExecutionContext context) throws LexiException {
+            LexiRuntime runtime = context.runtime;
+            Function func = call.target(runtime);
+            LexiRuntime own = runtime.task();
+            ExecutionContext globals = new ExecutionContext(context.globals, own);
+            ExecutionContext frame = frame(call, func, context, globals);
+            Map<LexiList, LexiList> copies = new IdentityHashMap<>();
+            globals.copyLists(copies);
+            frame.copyLists(copies);
+            
+            if (runtime.tasks == null) {
+                runtime.tasks = new TaskScope();
+            }
+            TaskScope scope = runtime.tasks;
+            try {
+                scope.room.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new LexiException("Interrupted while spawning '" + func.name + "'");
+            }
+            LexiTask task = new LexiTask(func, frame, scope, runtime);
+            synchronized (scope) {
+                if (scope.tasks.size() >= LIMIT) {
+                    // Finished tasks with nothing left to report are not kept
+                    scope.tasks.removeIf(done -> done.isDone() && (done.waited || !done.failed));
+                }
+                scope.tasks.add(task);
+            }
+            THREADS.execute(task);
+            return task;
+        }
+        
+        /**
+         * Wait for the running call's tasks, then raise the first failure
+         * (by then its siblings were cancelled).
+         */
+        static void close(LexiRuntime runtime) throws LexiException {
+            TaskScope scope = runtime.tasks;
+            if (scope == null) {
+                return;
+            }
+            runtime.tasks = null;
+            LexiException error = null;
+            for (LexiTask task : scope.tasks) {
+                try {
+                    task.await();
+                } catch (LexiException e) {
+                    error = (error != null) ? error : e;
+                }
+            }
+            if (scope.failure != null) {
+                throw scope.failure;
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+        
+        /** Cancel whatever the running call's tasks have not finished. */
+        static void cancel(LexiRuntime runtime) {
+            TaskScope scope = runtime.tasks;
+            if (scope != null) {
+                runtime.tasks = null;
+                scope.stop();
+            }
+        }
+        
+        private synchronized void fail(LexiException e) {
+            if (failure == null) {
+                failure = e;
+                stop();
+            }
+        }
+        
+        private synchronized void stop() {
+            for (LexiTask task : tasks) {
+                task.runtime.cancelled = true;
+                task.cancel(true);
+            }
+        }
+    }
+    
+    /**
+     * A spawned call: the value a "spawn ... as t" stores in t. It holds
+     * the call's return value, or its error, once the call finishes.
+     */
+    static final class LexiTask extends FutureTask<Object> {
+        final String name;
+        final LexiRuntime runtime;
+        final LexiRuntime spawner;   // the only runtime that may wait for it
+        private final TaskScope scope;
+        boolean waited;           // reported by "wait for" (spawner's thread only)
+        volatile boolean failed;
+        
+        LexiTask(Function func, ExecutionContext frame, TaskScope scope, LexiRuntime spawner) {
+            super(() -> call(func, frame));
+            this.name = func.name;
+            this.runtime = frame.runtime;
+            this.spawner = spawner;
+            this.scope = scope;
+        }
+        
+        private static Object call(Function func, ExecutionContext frame) throws LexiException {
+            try {
+                return invoke(func, frame);
+            } catch (LexiException e) {
+                // The line is the task's, not the one its spawner is on when this is raised
+                if (e.line < 0) {
+                    e.line = frame.runtime.currentLine;
+                }
+                throw e;
+            }
+        }
+        
+        @Override
+        protected void setException(Throwable t) {
+            if (isCancelled()) {
+                return;
+            }
+            failed = true;
+            super.setException(t);
+            scope.fail(exception(t));
+        }
+        
+        @Override
+        protected void done() {
+            scope.room.release();
+        }
+        
+        /** Block until the call finishes; its return value, or its error raised here. */
+        Object await() throws LexiException {
+            waited = true;
+            try {
+                return get();
+            } catch (ExecutionException e) {
+                throw exception(e.getCause());
+            } catch (CancellationException e) {
+                throw new LexiException("Task '" + name + "' was cancelled");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new LexiException("Interrupted while waiting for task '" + name + "'");
+            }
+        }
+        
+        private LexiException exception(Throwable failure) {
+            return (failure instanceof LexiException) ? (LexiException) failure
+                : new LexiException("Task '" + name + "' failed: " + failure);
+        }
+        
+        @Override
+        public String toString() {
+            return "<task " + name + ">";
+        }
+    }
+    
+    /**
+     * Store an expression's value in a slot, keeping numeric results unboxed.
+     */
+    private static void assign(ExecutionContext context, int slot, Expression value)
+            throws LexiException {
+        assign(context, slot, value, context);
+    }
+
+    /**
+     * Evaluate value in source and store it in target's slot
+     * (used to bind arguments in the caller's frame to a new frame).
+     */
+    private static void assign(ExecutionContext target, int slot, Expression value,
+                               ExecutionContext source) throws LexiException {
+        if (value.isNumeric(source)) {
+            try {
+                target.setLong(slot, value.evaluateLong(source));
+                return;
+            } catch (ArithmeticException e) {
+                // beyond a long: evaluate() widens it (numeric nodes have no side effects)
+            }
+        }
+        target.set(slot, value.evaluate(source));
+    }
+
+    // ============================================================
+    // EXPRESSION TREE
+    // ============================================================
+
+    /**
+     * A compiled expression. Expression text is parsed once, together with
+     * its statement, and every evaluation walks these nodes.
+     */
+    abstract static class Expression {
+        abstract Object evaluate(ExecutionContext context) throws LexiException;
+
+        /** Value as an int, for loop bounds and list positions. */
+        int evaluateInt(ExecutionContext context) throws LexiException {
+            return toInt(evaluate(context));
+        }
+
+        /**
+         * Value as a whole number without boxing. Only used when isNumeric()
+         * is true; throws ArithmeticException if the exact result is not a
+         * long (overflow, a fraction), and the caller then falls back to
+         * evaluate().
+         */
+        long evaluateLong(ExecutionContext context) throws LexiException {
+            return toLong(evaluate(context));
+        }
+
+        /**
+         * True if evaluateLong() should be tried before evaluate(): the value
+         * is a whole number, or is arithmetic that can be evaluated again if
+         * evaluateLong() gives up.
+         */
+        boolean isNumeric(ExecutionContext context) {
+            return false;
+        }
+
+        /** Append the value as text (used by string concatenation). */
+        void appendTo(StringBuilder sb, ExecutionContext context) throws LexiException {
+            sb.append(formatValue(evaluate(context)));
+        }
+    }
+
+    /**
+     * Base for arithmetic nodes: always a number, and a whole number
+     * computed unboxed whenever isNumeric() says so.
+     */
+    abstract static class NumericExpression extends Expression {
+        abstract long evaluateLong(ExecutionContext context) throws LexiException;
+
+        Object evaluate(ExecutionContext context) throws LexiException {
+            return Numbers.whole(evaluateLong(context));
+        }
+
+        int evaluateInt(ExecutionContext context) throws LexiException {
+            if (isNumeric(context)) {
+                try {
+                    long value = evaluateLong(context);
+                    if (value == (int) value) {
+                        return (int) value;
+                    }
+                } catch (ArithmeticException e) {
+                    // reported by toInt() below
+                }
+            }
+            return toInt(evaluate(context));
+        }
+
+        boolean isNumeric(ExecutionContext context) {
+            return true;
+        }
+
+        void appendTo(StringBuilder sb, ExecutionContext context) throws LexiException {
+            if (isNumeric(context)) {
+                try {
+                    sb.append(evaluateLong(context));
+                    return;
+                } catch (ArithmeticException e) {
+                    // beyond a long: formatted below
+                }
+            }
+            sb.append(formatValue(evaluate(context)));
+        }
+    }
+
+    static final class NumberLiteral extends NumericExpression {
+        final long value;
+
+        NumberLiteral(long value) {
+            this.value = value;
+        }
+
+        long evaluateLong(ExecutionContext context) {
+            return value;
+        }
+    }
+
+    /**
+     * "2.5": a double, or an exact BigDecimal when the runtime is in
+     * decimal mode. Whole numbers too big for a long are read the same way.
+     */
+    static final class DecimalLiteral extends Expression {
+        final String text;
+        final double value;
+        final BigDecimal exact;
+
+        DecimalLiteral(String text) {
+            this.text = text;
+            this.value = Double.parseDouble(text);
+            this.exact = new BigDecimal(text);
+        }
+
+        Object evaluate(ExecutionContext context) {
+            return context.runtime.decimal ? (Object) exact : (Object) value;
+        }
+    }
+
+    static final class StringLiteral extends Expression {
+        final String value;
+
+        StringLiteral(String value) {
+            this.value = value;
+        }
+
+        Object evaluate(ExecutionContext context) {
+            return value;
+        }
+    }
+
+    /**
+     * A value handed in from Java, e.g. an argument passed through
+     * Invocable. Never produced by the parser.
+     */
+    static final class ValueExpression extends Expression {
+        final Object value;
+
+        ValueExpression(Object value) {
+            this.value = value;
+        }
+
+        Object evaluate(ExecutionContext context) {
+            return value;
+        }
+
+        boolean isNumeric(ExecutionContext context) {
+            return value instanceof Integer || value instanceof Long;
+        }
+    }
+
+    /**
+     * A variable read, resolved to its slot when compiled.
+     */
+    static final class VariableExpression extends Expression {
+        final String name;
+        final int slot;
+
+        VariableExpression(String name, int slot) {
+            this.name = name;
+            this.slot = slot;
+        }
+
+        Object evaluate(ExecutionContext context) throws LexiException {
+            Object value = context.get(slot);
+            if (value == null) {
+                throw new LexiException("Variable '" + name + "' not defined");
+            }
+            return value;
+        }
+
+        long evaluateLong(ExecutionContext context) throws LexiException {
+            if (context.holdsNumber(slot)) {
+                return context.getLong(slot);
+            }
+            Object value = evaluate(context);
+            if (!Numbers.isWhole(value)) {
+                throw Numbers.NOT_WHOLE;
+            }
+            return ((Number) value).longValue();
+        }
+
+        int evaluateInt(ExecutionContext context) throws LexiException {
+            return context.holdsNumber(slot) ? toInt(context.getLong(slot)) : toInt(evaluate(context));
+        }
+
+        boolean isNumeric(ExecutionContext context) {
+            return context.holdsNumber(slot);
+        }
+    }
+
+    /**
+     * "item 2 of scores" (positions start at 1)
+     */
+    static final class ListItemExpression extends Expression {
+        final String listName;
+        final int listSlot;
+        final Expression position;
+
+        ListItemExpression(String listName, int listSlot, Expression position) {
+            this.listName = listName;
+            this.listSlot = listSlot;
+            this.position = position;
+        }
+
+        Object evaluate(ExecutionContext context) throws LexiException {
+            LexiList list = listValue(context, listSlot, listName);
+            return list.get(listIndex(list, position.evaluateInt(context), listName));
+        }
+
+        long evaluateLong(ExecutionContext context) throws LexiException {
+            LexiList list = listValue(context, listSlot, listName);
+            return list.getLong(listIndex(list, position.evaluateInt(context), listName));
+        }
+
+        boolean isNumeric(ExecutionContext context) {
+            Object list = context.get(listSlot);
+            return list instanceof LexiList && ((LexiList) list).isNumeric();
+        }
+    }
+
+    /**
+     * "length of scores" / "size of scores"; also the length of a text.
+     */
+    static final class LengthExpression extends NumericExpression {
+        final String name;
+        final int slot;
+
+        LengthExpression(String name, int slot) {
+            this.name = name;
+            this.slot = slot;
+        }
+
+        long evaluateLong(ExecutionContext context) throws LexiException {
+            Object value = context.get(slot);
+            if (value instanceof String) {
+                return ((String) value).length();
+            }
+            return listValue(context, slot, name).size();
+        }
+    }
+
+    static final class NegateExpression extends NumericExpression {
+        final Expression operand;
+        final boolean pure;
+
+        NegateExpression(Expression operand) {
+            this.operand = operand;
+            this.pure = isArithmetic(operand);
+        }
+
+        long evaluateLong(ExecutionContext context) throws LexiException {
+            return Math.negateExact(operand.evaluateLong(context));
+        }
+
+        Object evaluate(ExecutionContext context) throws LexiException {
+            if (pure) {
+                try {
+                    return Numbers.whole(evaluateLong(context));
+                } catch (ArithmeticException e) {
+                    // beyond a long: widened below
+                }
+            }
+            return Numbers.negate(operand.evaluate(context), context.runtime.decimal);
+        }
+
+        boolean isNumeric(ExecutionContext context) {
+            return pure;
+        }
+    }
+
+    /**
+     * Arithmetic: + - * / % ^. Whole numbers are added, subtracted,
+     * multiplied and taken modulo unboxed as longs, with overflow checked;
+     * '/' and '^' may produce fractions, so they start out in Numbers.
+     * When the fast path gives up (overflow, a fraction, a variable that
+     * does not hold a whole number) the node is evaluated again boxed,
+     * which is safe because arithmetic on variables has no side effects.
+     */
+    static final class BinaryExpression extends NumericExpression {
+        final char operator;
+        final Expression left;
+        final Expression right;
+        final boolean pure;   // only literals, variables and list reads below
+
+        BinaryExpression(char operator, Expression left, Expression right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+            this.pure = isArithmetic(left) && isArithmetic(right);
+        }
+
+        long evaluateLong(ExecutionContext context) throws LexiException {
+            return Numbers.exact(operator, left.evaluateLong(context), right.evaluateLong(context));
+        }
+
+        Object evaluate(ExecutionContext context) throws LexiException {
+            if (isNumeric(context)) {
+                try {
+                    return Numbers.whole(evaluateLong(context));
+                } catch (ArithmeticException e) {
+                    // not a whole long: computed boxed below
+                }
+            }
+            return Numbers.arithmetic(operator, left.evaluate(context), right.evaluate(context),
+                                      context.runtime.decimal);
+        }
+
+        boolean isNumeric(ExecutionContext context) {
+            return pure && operator != '/' && operator != '^';
+        }
+    }
+
+    /**
+     * True if e is computed from literals, variables and list reads only,
+     * so evaluateLong() can be tried first and, if it gives up, the whole
+     * expression evaluated again.
+     */
+    private static boolean isArithmetic(Expression e) {
+        return e instanceof NumberLiteral || e instanceof VariableExpression || e instanceof LengthExpression ||
+               (e instanceof ListItemExpression && isArithmetic(((ListItemExpression) e).position)) ||
+               (e instanceof NegateExpression && ((NegateExpression) e).pure) ||
+               (e instanceof BinaryExpression && ((BinaryExpression) e).pure);
+    }
+
+    /**
+     * "Total: " + count + "!" - every '+' separated part is evaluated
+     * on its own and appended as text.
+     */
+    static final class ConcatenationExpression extends Expression {
+        final Expression[] parts;
+
+        ConcatenationExpression(Expression[] parts) {
+            this.parts = parts;
+        }
+
+        Object evaluate(ExecutionContext context) throws LexiException {
+            StringBuilder sb = new StringBuilder();
+            for (Expression part : parts) {
+                part.appendTo(sb, context);
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * An unquoted part of a concatenation: a variable's value if it names
+     * one, otherwise its arithmetic value, otherwise the text itself.
+     */
+    static final class ConcatenationPart extends Expression {
+        final String text;
+        final int slot;              // -1 if the text is not a variable name
+        final Expression numeric;
+        private final boolean invalid;        // the text is not arithmetic at all
+        private final int[] numberSlots;      // variables the arithmetic reads as numbers
+        private final int[] listSlots;        // lists and texts it takes items or lengths of
+
+        ConcatenationPart(String text, int slot, Expression numeric) {
+            this.text = text;
+            this.slot = slot;
+            this.numeric = numeric;
+            List<Integer> numbers = new ArrayList<>();
+            List<Integer> lists = new ArrayList<>();
+            this.invalid = !collectReads(numeric, numbers, lists);
+            this.numberSlots = numbers.stream().mapToInt(Integer::intValue).toArray();
+            this.listSlots = lists.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        /**
+         * Sort the slots an arithmetic tree reads by what they must hold.
+         * False if the tree contains text that did not parse.
+         */
+        private static boolean collectReads(Expression e, List<Integer> numbers, List<Integer> lists) {
+            if (e instanceof InvalidExpression) {
+                return false;
+            } else if (e instanceof VariableExpression) {
+                numbers.add(((VariableExpression) e).slot);
+            } else if (e instanceof LengthExpression) {
+                lists.add(((LengthExpression) e).slot);
+            } else if (e instanceof ListItemExpression) {
+                lists.add(((ListItemExpression) e).listSlot);
+                return collectReads(((ListItemExpression) e).position, numbers, lists);
+            } else if (e instanceof NegateExpression) {
+                return collectReads(((NegateExpression) e).operand, numbers, lists);
+            } else if (e instanceof BinaryExpression) {
+                BinaryExpression b = (BinaryExpression) e;
+                return collectReads(b.left, numbers, lists) && collectReads(b.right, numbers, lists);
+            }
+            return true;
+        }
+
+        /**
+         * True if the text is to be shown as written: it is not arithmetic,
+         * or a variable it mentions holds nothing it could calculate with.
+         * Decided from the slots, so no exception is thrown to find out.
+         */
+        private boolean isText(ExecutionContext context) {
+            if (invalid) {
+                return true;
+            }
+            for (int s : numberSlots) {
+                if (!context.holdsNumber(s)) {
+                    Object value = context.get(s);
+                    if (!Numbers.isNumber(value) &&
+                        !(value instanceof String && Numbers.parse((String) value, false) != null)) {
+                        return true;
+                    }
+                }
+            }
+            for (int s : listSlots) {
+                Object value = context.get(s);
+                if (!(value instanceof LexiList) && !(value instanceof String)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        Object evaluate(ExecutionContext context) throws LexiException {
+            if (slot >= 0) {
+                Object value = context.get(slot);
+                if (value != null) {
+                    return formatValue(value);
+                }
+            }
+            return isText(context) ? text : numeric.evaluate(context);
+        }
+    }
+
+    /**
+     * Unquoted text containing '+': addition, unless one of the variables
+     * it mentions currently holds a string, in which case it concatenates.
+     * The choice is a slot check per evaluation, not a rescan of the text.
+     */
+    static final class AdditionOrConcatenation extends Expression {
+        final int[] slots;
+        final Expression addition;
+        final Expression concatenation;
+
+        AdditionOrConcatenation(int[] slots, Expression addition, Expression concatenation) {
+            this.slots = slots;
+            this.addition = addition;
+            this.concatenation = concatenation;
+        }
+
+        private boolean concatenates(ExecutionContext context) {
+            for (int slot : slots) {
+                if (context.holdsString(slot)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        Object evaluate(ExecutionContext context) throws LexiException {
+            return concatenates(context) ? concatenation.evaluate(context) : addition.evaluate(context);
+        }
+
+        int evaluateInt(ExecutionContext context) throws LexiException {
+            return concatenates(context) ? toInt(concatenation.evaluate(context))
+                                         : addition.evaluateInt(context);
+        }
+
+        long evaluateLong(ExecutionContext context) throws LexiException {
+            return concatenates(context) ? toLong(concatenation.evaluate(context))
+                                         : addition.evaluateLong(context);
+        }
+
+        boolean isNumeric(ExecutionContext context) {
+            return !concatenates(context) && addition.isNumeric(context);
+        }
+    }
+
+    /**
+     * "call f with a, b" used as a value.
+     */
+    static final class CallExpression extends Expression {
+        final String name;
+        final Expression[] arguments;
+        private CallLink link;   // the function this site last resolved to
+
+        CallExpression(String name, Expression[] arguments) {
+            this.name = name;
+            this.arguments = arguments;
+        }
+
+        /**
+         * The function called, looked up by name only when the runtime's
+         * functions have changed since the last call from this site. The
+         * argument count is checked when the site is linked.
+         */
+        Function target(LexiRuntime runtime) throws LexiException {
+            CallLink current = link;
+            if (current != null && current.stamp == runtime.functionStamp) {
+                return current.function;
+            }
+            Function function = runtime.functions.get(name);
+            if (function == null) {
+                throw new LexiException("Function '" + name + "' not defined");
+            }
+            if (arguments.length != function.parameters.size()) {
+                throw new LexiException("Function '" + name + "' expects " +
+                    function.parameters.size() + " arguments, got " + arguments.length);
+            }
+            link = new CallLink(runtime.functionStamp, function);
+            return function;
+        }
+
+        Object evaluate(ExecutionContext context) throws LexiException {
+            Object result = callFunction(this, context);
+
+            if (result == null) {
+                throw new LexiException("Function '" + name + "' did not return a value");
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * A call site's resolved target. Immutable, so a compiled program shared
+     * by several runtimes can relink a site from any thread; the stamps of
+     * different runtimes never coincide.
+     */
+    static final class CallLink {
+        final long stamp;
+        final Function function;
+
+        CallLink(long stamp, Function function) {
+            this.stamp = stamp;
+            this.function = function;
+        }
+    }
+
+    /**
+     * Text that could not be parsed; the error is raised when evaluated.
+     */
+    static final class InvalidExpression extends NumericExpression {
+        final String message;
+
+        InvalidExpression(String message) {
+            this.message = message;
+        }
+
+        long evaluateLong(ExecutionContext context) throws LexiException {
+            throw new LexiException(message);
+        }
+    }
+
+    /**
+     * "left op right" from an if/elseif/while header.
+     * A condition without a comparison operator is always false.
+     */
+    static final class Condition {
+        final int operator;   // index into COMPARISON_OPERATORS, -1 if none
+        final Expression left;
+        final Expression right;
+
+        Condition(int operator, Expression left, Expression right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        boolean evaluate(ExecutionContext context) throws LexiException {
+            if (operator < 0) {
+                return false;
+            }
+
+            // Whole-number comparison without boxing either side
+            if (left.isNumeric(context) && right.isNumeric(context)) {
+                try {
+                    return compare(operator, left.evaluateLong(context), right.evaluateLong(context));
+                } catch (ArithmeticException e) {
+                    // beyond a long: compared boxed below
+                }
+            }
+
+            Object l = left.evaluate(context);
+            Object r = right.evaluate(context);
+
+            if (Numbers.isNumber(l) && Numbers.isNumber(r)) {
+                return compare(operator, Numbers.compare(l, r), 0);
+            }
+
+            if (l instanceof String || r instanceof String) {
+                switch (COMPARISON_OPERATORS[operator]) {
+                    case "==": return l.toString().equals(r.toString());
+                    case "!=": return !l.toString().equals(r.toString());
+                }
+            }
+
+            return false;
+        }
+    }
+
+    // ============================================================
+    // EXPRESSION COMPILATION
+    // ============================================================
+
+    /**
+     * Compile expression text into a tree. Whether '+' adds or concatenates
+     * is settled here whenever the text decides it (quotes, or no '+');
+     * otherwise AdditionOrConcatenation checks the variables' current types.
+     */
+    private static Expression compileExpression(String text, Scope scope) {
+        String expr = text.trim();
+
+        if (expr.indexOf('"') < 0) {
+            Expression arithmetic = compileArithmetic(expr, scope);
+            if (expr.indexOf('+') < 0) {
+                return arithmetic;
+            }
+
+            int[] slots = variableSlots(expr, scope);
+            if (slots.length == 0) {
+                return arithmetic;
+            }
+            return new AdditionOrConcatenation(slots, arithmetic, compileConcatenation(expr, scope));
+        }
+
+        // String literal
+        if (isStringLiteral(expr)) {
+            return new StringLiteral(expr.substring(1, expr.length() - 1));
+        }
+
+        // String concatenation
+        if (expr.indexOf('+') >= 0) {
+            return compileConcatenation(expr, scope);
+        }
+
+        // Stray quote: reported by the parser when evaluated
+        return compileArithmetic(expr, scope);
+    }
+
+    private static boolean isStringLiteral(String expr) {
+        return expr.length() >= 2 && expr.startsWith("\"") && expr.endsWith("\"") &&
+               expr.indexOf('"', 1) == expr.length() - 1;
+    }
+
+    private static Expression compileArithmetic(String expr, Scope scope) {
+        expr = expr.trim();
+        if (expr.isEmpty()) return new NumberLiteral(0);
+
+        try {
+            return new Parser(expr, scope).parseExpression();
+        } catch (IllegalArgumentException e) {
+            return new InvalidExpression(e.getMessage());
+        }
+    }
+
+    /**
+     * Slots of the distinct variable names mentioned in an arithmetic text.
+     */
+    private static int[] variableSlots(String expr, Scope scope) {
+        Set<Integer> slots = new LinkedHashSet<>();
+        for (String token : OPERATORS.split(expr)) {
+            token = token.trim();
+            if (isVariableName(token)) {
+                slots.add(scope.define(token));
+            }
+        }
+        int[] result = new int[slots.size()];
+        int i = 0;
+        for (int slot : slots) {
+            result[i++] = slot;
+        }
+        return result;
+    }
+
+    private static boolean isVariableName(String token) {
+        if (token.isEmpty() || Character.isDigit(token.charAt(0))) {
+            return false;
+        }
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Split concatenation text into quoted literals and unquoted parts.
+     */
+    private static Expression compileConcatenation(String expr, Scope scope) {
+        List<Expression> parts = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean inQuotes = false;
+
+        for (int i = 0; i < expr.length(); i++) {
+            char c = expr.charAt(i);
+
+            if (c == '"') {
+                if (inQuotes) {
+                    parts.add(new StringLiteral(current.toString()));
+                    current = new StringBuilder();
+                    inQuotes = false;
+                } else {
+                    String part = current.toString().trim();
+                    if (!part.isEmpty() && !part.equals("+")) {
+                        parts.add(compileArithmetic(part, scope));
+                    }
+                    current = new StringBuilder();
+                    inQuotes = true;
+                }
+            } else if (c == '+' && !inQuotes) {
+                String part = current.toString().trim();
+                if (!part.isEmpty()) {
+                    parts.add(compileConcatenationPart(part, scope));
+                }
+                current = new StringBuilder();
+            } else {
+                current.append(c);
+            }
+        }
+
+        String part = current.toString().trim();
+        if (!part.isEmpty() && !part.equals("+")) {
+            parts.add(compileConcatenationPart(part, scope));
+        }
+
+        return new ConcatenationExpression(parts.toArray(new Expression[0]));
+    }
+
+    private static Expression compileConcatenationPart(String part, Scope scope) {
+        int slot = isVariableName(part) ? scope.define(part) : -1;
+        Expression numeric = compileArithmetic(part, scope);
+        if (numeric instanceof ListItemExpression) {
+            return numeric;   // an item may be text; its errors are real errors
+        }
+        return new ConcatenationPart(part, slot, numeric);
+    }
+
+    /**
+     * Parse "left op right". The first operator found, in
+     * COMPARISON_OPERATORS order, splits the text.
+     */
+    private static Condition compileCondition(String condition, Scope scope) {
+        condition = condition.trim();
+
+        for (int op = 0; op < COMPARISON_OPERATORS.length; op++) {
+            int index = condition.indexOf(COMPARISON_OPERATORS[op]);
+            if (index >= 0) {
+                String leftStr = condition.substring(0, index);
+                String rightStr = condition.substring(index + COMPARISON_OPERATORS[op].length());
+                return new Condition(op, compileExpression(leftStr, scope),
+                                     compileExpression(rightStr, scope));
+            }
+        }
+
+        return new Condition(-1, null, null);
+    }
+
+    private static boolean compare(int operator, long l, long r) {
+        switch (operator) {
+            case 0: return l == r;
+            case 1: return l != r;
+            case 2: return l >= r;
+            case 3: return l <= r;
+            case 4: return l > r;
+            default: return l < r;
+        }
+    }
+
+    // ============================================================
+    // EXPRESSION PARSER (with proper precedence)
+    // ============================================================
+
+    /**
+     * Recursive descent parser that builds an expression tree. Variable
+     * names are resolved to slots in the given scope as they are read.
+     * Syntax errors are thrown as IllegalArgumentException and turned into
+     * an InvalidExpression by compileArithmetic().
+     */
+    static class Parser {
+        private String expr;
+        private int pos;
+        private Scope scope;
+
+        Parser(String expr, Scope scope) {
+            this.expr = expr;
+            this.pos = 0;
+            this.scope = scope;
+        }
+
+        Expression parseExpression() {
+            Expression result = parseTerm();
+
+            while (pos < expr.length()) {
+                skipWhitespace();
+                if (pos >= expr.length()) break;
+
+                char op = expr.charAt(pos);
+                if (op == '+' || op == '-') {
+                    pos++;
+                    result = new BinaryExpression(op, result, parseTerm());
+                } else {
+                    break;
+                }
+            }
+
+            return result;
+        }
+
+        Expression parseTerm() {
+            Expression result = parseFactor();
+
+            while (pos < expr.length()) {
+                skipWhitespace();
+                if (pos >= expr.length()) break;
+
+                char op = expr.charAt(pos);
+                if (op == '*' || op == '/' || op == '%') {
+                    pos++;
+                    result = new BinaryExpression(op, result, parseFactor());
+                } else {
+                    break;
+                }
+            }
+
+            return result;
+        }
+
+        Expression parseFactor() {
+            skipWhitespace();
+
+            if (pos < expr.length() && expr.charAt(pos) == '-') {
+                pos++;
+                return new NegateExpression(parsePrimary());
+            }
+
+            Expression result = parsePrimary();
+
+            skipWhitespace();
+            if (pos < expr.length() && expr.charAt(pos) == '^') {
+                pos++;
+                result = new BinaryExpression('^', result, parseFactor());
+            }
+
+            return result;
+        }
+
+        Expression parsePrimary() {
+            skipWhitespace();
+
+            if (pos < expr.length() && expr.charAt(pos) == '(') {
+                pos++;
+                Expression result = parseExpression();
+                skipWhitespace();
+                if (pos < expr.length() && expr.charAt(pos) == ')') {
+                    pos++;
+                }
+                return result;
+            }
+
+            int start = pos;
+            while (pos < expr.length()) {
+                char c = expr.charAt(pos);
+                if (Character.isLetterOrDigit(c) || c == '_') {
+                    pos++;
+                } else {
+                    break;
+                }
+            }
+
+            String token = expr.substring(start, pos);
+            if (token.isEmpty()) {
+                throw new IllegalArgumentException("Unexpected character at position " + pos);
+            }
+
+            Expression list = parseListAccess(token);
+            if (list != null) {
+                return list;
+            }
+
+            if (isDigits(token)) {
+                // "2.5": the fraction follows the whole part
+                if (pos + 1 < expr.length() && expr.charAt(pos) == '.' && Character.isDigit(expr.charAt(pos + 1))) {
+                    pos++;
+                    while (pos < expr.length() && Character.isDigit(expr.charAt(pos))) {
+                        pos++;
+                    }
+                    return new DecimalLiteral(expr.substring(start, pos));
+                }
+                try {
+                    return new NumberLiteral(Long.parseLong(token));
+                } catch (NumberFormatException e) {
+                    return new DecimalLiteral(token);   // too big for a long
+                }
+            }
+            return new VariableExpression(token, scope.define(token));
+        }
+
+        private static boolean isDigits(String token) {
+            for (int i = 0; i < token.length(); i++) {
+                char c = token.charAt(i);
+                if (c < '0' || c > '9') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * "item <position> of <list>" or "length of <name>" / "size of <name>",
+         * after token. Returns null (with pos unchanged) when the text is not
+         * one of these, so "item" and "length" still work as variable names.
+         */
+        private Expression parseListAccess(String token) {
+            String keyword = token.toLowerCase();
+            if (!keyword.equals("item") && !keyword.equals("length") && !keyword.equals("size")) {
+                return null;
+            }
+            int mark = pos;
+            skipWhitespace();
+            if (pos == mark || pos >= expr.length()) {
+                pos = mark;
+                return null;
+            }
+
+            Expression position = null;
+            if (keyword.equals("item")) {
+                if (startsWithWord("of")) {
+                    pos = mark;
+                    return null;
+                }
+                position = parsePrimary();
+                skipWhitespace();
+            }
+            if (!startsWithWord("of")) {
+                pos = mark;
+                return null;
+            }
+            pos += 2;
+            skipWhitespace();
+            int nameStart = pos;
+            while (pos < expr.length() && (Character.isLetterOrDigit(expr.charAt(pos)) || expr.charAt(pos) == '_')) {
+                pos++;
+            }
+            String name = expr.substring(nameStart, pos);
+            if (!isVariableName(name)) {
+                throw new IllegalArgumentException("Expected a list name after 'of' at position " + nameStart);
+            }
+
+            int slot = scope.define(name);
+            return (position != null) ? new ListItemExpression(name, slot, position)
+                                      : new LengthExpression(name, slot);
+        }
+
+        private boolean startsWithWord(String word) {
+            int end = pos + word.length();
+            return expr.regionMatches(true, pos, word, 0, word.length()) &&
+                   end < expr.length() && Character.isWhitespace(expr.charAt(end));
+        }
+
+        void skipWhitespace() {
+            while (pos < expr.length() && Character.isWhitespace(expr.charAt(pos))) {
+                pos++;
+            }
+        }
+    }
+
+    // ============================================================
+    // BLOCK HANDLING
+    // ============================================================
+    
+    /**
+     * Matching-line table built in a single pass over the source.
+     * 
+     * end(i)     - for a block header, the line of its end/done/finish
+     *              (code.size() if the block is never closed), else -1
+     * nextArm(i) - for an if header or one of its elseif/else lines, the
+     *              line of the next elseif/else arm or of the closing end
+     *
+     * Only lines from base on are indexed, so a streamed block can be
+     * compiled with its real line numbers (see SourceWindow).
+     */
+    static final class BlockIndex {
+        private final int base;
+        private final int[] end;
+        private final int[] nextArm;
+        
+        BlockIndex(List<String> code) {
+            this(code, 0);
+        }
+        
+        BlockIndex(List<String> code, int base) {
+            this.base = base;
+            int size = code.size();
+            int count = size - base;
+            end = new int[count];
+            nextArm = new int[count];
+            Arrays.fill(end, -1);
+            Arrays.fill(nextArm, -1);
+            
+            // Stack of open blocks: header line, last arm line, arm state
+            int[] openHeader = new int[count];
+            int[] openArm = new int[count];
+            boolean[] openIsIf = new boolean[count];
+            boolean[] openInElse = new boolean[count];
+            int depth = 0;
+            
+            for (int i = base; i < size; i++) {
+                String line = code.get(i).trim().toLowerCase();
+                
+                if (isBlockHeader(line)) {
+                    openHeader[depth] = i;
+                    openArm[depth] = i;
+                    openIsIf[depth] = isIfStatement(line);
+                    openInElse[depth] = false;
+                    depth++;
+                } else if (isBlockEnd(line)) {
+                    if (depth > 0) {
+                        depth--;
+                        end[openHeader[depth] - base] = i;
+                        nextArm[openArm[depth] - base] = i;
+                    }
+                } else if (depth > 0 && openIsIf[depth - 1] && !openInElse[depth - 1] &&
+                           (line.startsWith("elseif ") || line.equals("else"))) {
+                    nextArm[openArm[depth - 1] - base] = i;
+                    openArm[depth - 1] = i;
+                    openInElse[depth - 1] = line.equals("else");
+                }
+            }
+            
+            // Unclosed blocks run to the end of the source
+            while (depth > 0) {
+                depth--;
+                end[openHeader[depth] - base] = size;
+                nextArm[openArm[depth] - base] = size;
+            }
+        }
+        
+        int end(int line) {
+            return end[line - base];
+        }
+        
+        int nextArm(int line) {
+            return nextArm[line - base];
+        }
+    }
+    
+    /**
+     * Source lines first.. of a longer program, seen through line numbers
+     * of the whole program. Lines before first are never read.
+     */
+    static final class SourceWindow extends AbstractList<String> {
+        private final int first;
+        private final List<String> lines;
+        
+        SourceWindow(int first, List<String> lines) {
+            this.first = first;
+            this.lines = lines;
+        }
+        
+        @Override
+        public String get(int index) {
+            return lines.get(index - first);
+        }
+        
+        @Override
+        public int size() {
+            return first + lines.size();
+        }
+    }
+    
+    private static boolean isBlockHeader(String line) {
+        return isIfStatement(line) || isWhileStatement(line) || 
+               isForStatement(line) || isParallelForStatement(line) || isFunctionDefinition(line);
+    }
+    
+    private static boolean isIfStatement(String line) {
+        return line.trim().toLowerCase().startsWith("if ");
+    }
+    
+    /**
+     * Compile "if ... elseif ... else ... end" starting at startLine,
+     * following the arm chain recorded in the block index.
+     */
+    private static Statement compileIfBlock(List<String> code, BlockIndex index, Scope scope, 
+                                            int startLine) {
+        String header = code.get(startLine).trim();
+        int blockEnd = index.end(startLine);
+        
+        List<Condition> conditions = new ArrayList<>();
+        List<Statement[]> branches = new ArrayList<>();
+        Statement[] elseBranch = null;
+        
+        int arm = startLine;
+        String condition = header.substring(3).trim();
+        
+        while (arm < blockEnd) {
+            int next = index.nextArm(arm);
+            Statement[] body = compileBlock(code, index, scope, arm + 1, next);
+            
+            if (condition == null) {
+                elseBranch = body;
+            } else {
+                conditions.add(compileCondition(condition, scope));
+                branches.add(body);
+            }
+            
+            if (next < blockEnd) {
+                String armLine = code.get(next).trim();
+                condition = armLine.equalsIgnoreCase("else") ? null : armLine.substring(7).trim();
+            }
+            arm = next;
+        }
+        
+        return new IfStatement(startLine, header, conditions.toArray(new Condition[0]), 
+            branches.toArray(new Statement[0][]), elseBranch);
+    }
+    
+    private static boolean isWhileStatement(String line) {
+        String lower = line.trim().toLowerCase();
+        return lower.startsWith("while ") || lower.startsWith("repeat ");
+    }
+    
+    private static Statement compileWhileBlock(List<String> code, BlockIndex index, Scope scope, 
+                                               int startLine) {
+        String header = code.get(startLine).trim();
+        String firstWord = leadingKeyword(header);
+        String condition = header.substring(firstWord.length()).trim();
+        
+        Statement[] body = compileBlock(code, index, scope, startLine + 1, index.end(startLine));
+        return new WhileStatement(startLine, header, compileCondition(condition, scope), body, 
+            scope.global == null);
+    }
+    
+    private static boolean isParallelForStatement(String line) {
+        String lower = line.trim().toLowerCase();
+        return lower.startsWith("parallel for ") || lower.startsWith("parallel loop ");
+    }
+    
+    private static boolean isForStatement(String line) {
+        String lower = line.trim().toLowerCase();
+        return lower.startsWith("for ") || lower.startsWith("loop ");
+    }
+    
+    private static Statement compileForBlock(List<String> code, BlockIndex index, Scope scope, 
+                                             int startLine) {
+        String header = code.get(startLine).trim();
+        Matcher m = FOR_HEADER.matcher(header);
+        if (!m.find()) {
+            return new InvalidStatement(startLine, header, "Invalid for loop syntax");
+        }
+        
+        int slot = scope.define(m.group(1));
+        Statement[] body = compileBlock(code, index, scope, startLine + 1, index.end(startLine));
+        return new ForStatement(startLine, header, slot, compileExpression(m.group(2), scope), 
+            compileExpression(m.group(3), scope), body, scope.global == null);
+    }
+    
+    private static Statement compileParallelForBlock(List<String> code, BlockIndex index, Scope scope,
+                                                     int startLine) {
+        String header = code.get(startLine).trim();
+        Matcher m = PARALLEL_FOR_HEADER.matcher(header);
+        if (!m.matches()) {
+            return new InvalidStatement(startLine, header, "Invalid parallel for syntax");
+        }
+        
+        List<String> clauses = (m.group(4) != null) ? Arrays.asList(m.group(4).split(",")) : Collections.emptyList();
+        int[] reductions = new int[clauses.size()];
+        int[] reductionSlots = new int[clauses.size()];
+        String[] reductionNames = new String[clauses.size()];
+        Set<Integer> writable = new HashSet<>();
+        Set<Integer> created = new HashSet<>();
+        for (int i = 0; i < reductions.length; i++) {
+            String[] words = WHITESPACE.split(clauses.get(i).trim());
+            reductions[i] = ParallelForStatement.REDUCTIONS.indexOf(words[0].toLowerCase());
+            if (words.length != 2 || reductions[i] < 0 || !isVariableName(words[1])) {
+                return new InvalidStatement(startLine, header, "Invalid reduction '" + clauses.get(i).trim() +
+                    "' (use sum, min, max or list, then a variable)");
+            }
+            reductionNames[i] = words[1];
+            reductionSlots[i] = scope.define(words[1]);
+            writable.add(reductionSlots[i]);
+            if (reductions[i] == ParallelForStatement.LIST) {
+                created.add(reductionSlots[i]);   // each chunk starts it as a new list
+            }
+        }
+        
+        int slot = scope.define(m.group(1));
+        writable.add(slot);
+        // Names first mentioned from here on are the body's own
+        int firstLocal = scope.names.size();
+        Statement[] body = compileBlock(code, index, scope, startLine + 1, index.end(startLine));
+        String error = parallelBodyError(body, scope, firstLocal, writable, created);
+        if (error != null) {
+            return new InvalidStatement(startLine, header, error);
+        }
+        return new ParallelForStatement(startLine, header, slot, compileExpression(m.group(2), scope),
+            compileExpression(m.group(3), scope), body, reductions, reductionSlots, reductionNames);
+    }
+    
+    /**
+     * Why a parallel for body cannot run in chunks, or null if it can.
+     * Chunks run at the same time on copies of the frame, which share its
+     * lists, and the copies are dropped after the loop. So the body may
+     * only set variables it introduces (slots from firstLocal on) or that
+     * are writable (the counter and reductions), and may only change a
+     * list that is in created: one it made in the same iteration on every
+     * path to the change, or a "reducing list" it has not reassigned.
+     * created is updated to the lists made on every path through body.
+     */
+    private static String parallelBodyError(Statement[] body, Scope scope, int firstLocal,
+                                            Set<Integer> writable, Set<Integer> created) {
+        for (Statement statement : body) {
+            String error = null;
+            if (statement instanceof InputStatement) {
+                error = "A parallel for cannot ask for input";
+            } else if (statement instanceof ReturnStatement) {
+                error = "A parallel for cannot return";
+            } else if (statement instanceof FunctionDefinitionStatement) {
+                error = "A function cannot be defined inside a parallel for";
+            } else if (statement instanceof SpawnStatement || statement instanceof WaitStatement) {
+                error = "A parallel for cannot spawn or wait for tasks";
+            } else if (statement instanceof ListAddStatement &&
+                       !created.contains(((ListAddStatement) statement).listSlot)) {
+                error = "A parallel for can only add to lists it creates or that are named in 'reducing list': '" +
+                    ((ListAddStatement) statement).listName + "'";
+            } else if (statement instanceof SetListItemStatement &&
+                       !created.contains(((SetListItemStatement) statement).listSlot)) {
+                error = "A parallel for can only change lists it creates or that are named in 'reducing list': '" +
+                    ((SetListItemStatement) statement).listName + "'";
+            } else if (statement instanceof ParallelForStatement) {
+                // Its own body was checked when it was compiled; it merges into its list reductions
+                ParallelForStatement loop = (ParallelForStatement) statement;
+                for (int i = 0; i < loop.reductions.length && error == null; i++) {
+                    if (loop.reductions[i] == ParallelForStatement.LIST && !created.contains(loop.reductionSlots[i])) {
+                        error = "A parallel for can only add to lists it creates or that are named in " +
+                            "'reducing list': '" + loop.reductionNames[i] + "'";
+                    }
+                }
+            }
+            
+            for (int assigned : assignedSlots(statement)) {
+                if (error == null && assigned < firstLocal && !writable.contains(assigned)) {
+                    error = "A parallel for cannot change '" + scope.names.get(assigned) + "', which is used " +
+                        "before it, as the change would be lost (name it after 'reducing' or use a new variable)";
+                }
+                created.remove(assigned);
+            }
+            if (statement instanceof CreateListStatement) {
+                created.add(((CreateListStatement) statement).slot);
+            }
+            
+            if (error == null && statement instanceof IfStatement) {
+                IfStatement s = (IfStatement) statement;
+                // A list is made on every path only if every branch makes it
+                Set<Integer> made = null;
+                for (Statement[] branch : s.branches) {
+                    Set<Integer> path = new HashSet<>(created);
+                    error = (error != null) ? error : parallelBodyError(branch, scope, firstLocal, writable, path);
+                    made = intersect(made, path);
+                }
+                Set<Integer> path = new HashSet<>(created);
+                if (error == null && s.elseBranch != null) {
+                    error = parallelBodyError(s.elseBranch, scope, firstLocal, writable, path);
+                }
+                Set<Integer> after = intersect(made, path);
+                created.clear();
+                created.addAll(after);
+            } else if (error == null && (statement instanceof WhileStatement || statement instanceof ForStatement)) {
+                Statement[] loopBody = (statement instanceof WhileStatement)
+                    ? ((WhileStatement) statement).body : ((ForStatement) statement).body;
+                // A pass may start with what the one before set in place of a list
+                // made before the loop (a new list is fine), and there may be no pass at all
+                Set<Integer> reassigned = new HashSet<>();
+                assignedIn(loopBody, reassigned);
+                created.removeAll(reassigned);
+                error = parallelBodyError(loopBody, scope, firstLocal, writable, new HashSet<>(created));
+            }
+            if (error != null) {
+                return error;
+            }
+        }
+        return null;
+    }
+    
+    /** Slots a statement itself assigns, leaving out those in blocks it contains. */
+    private static int[] assignedSlots(Statement statement) {
+        if (statement instanceof CreateStatement) {
+            return new int[] { ((CreateStatement) statement).slot };
+        } else if (statement instanceof SetStatement) {
+            return new int[] { ((SetStatement) statement).slot };
+        } else if (statement instanceof IncreaseStatement) {
+            return new int[] { ((IncreaseStatement) statement).slot };
+        } else if (statement instanceof CreateListStatement) {
+            return new int[] { ((CreateListStatement) statement).slot };
+        } else if (statement instanceof ForStatement) {
+            return new int[] { ((ForStatement) statement).slot };
+        } else if (statement instanceof ParallelForStatement) {
+            // A "reducing list" keeps its list, which the loop appends to
+            ParallelForStatement loop = (ParallelForStatement) statement;
+            int[] slots = new int[loop.reductions.length + 1];
+            int count = 0;
+            for (int i = 0; i < loop.reductions.length; i++) {
+                if (loop.reductions[i] != ParallelForStatement.LIST) {
+                    slots[count++] = loop.reductionSlots[i];
+                }
+            }
+            slots[count++] = loop.slot;
+            return Arrays.copyOf(slots, count);
+        }
+        return new int[0];
+    }
+    
+    /**
+     * Add every slot assigned in body, nested blocks included, to slots,
+     * except by "create list".
+     */
+    private static void assignedIn(Statement[] body, Set<Integer> slots) {
+        for (Statement statement : body) {
+            if (!(statement instanceof CreateListStatement)) {
+                for (int slot : assignedSlots(statement)) {
+                    slots.add(slot);
+                }
+            }
+            if (statement instanceof IfStatement) {
+                IfStatement s = (IfStatement) statement;
+                for (Statement[] branch : s.branches) {
+                    assignedIn(branch, slots);
+                }
+                if (s.elseBranch != null) {
+                    assignedIn(s.elseBranch, slots);
+                }
+            } else if (statement instanceof WhileStatement) {
+                assignedIn(((WhileStatement) statement).body, slots);
+            } else if (statement instanceof ForStatement) {
+                assignedIn(((ForStatement) statement).body, slots);
+            } else if (statement instanceof ParallelForStatement) {
+                assignedIn(((ParallelForStatement) statement).body, slots);
+            }
+        }
+    }
+    
+    /** The slots in both sets; a null first set stands for every slot. */
+    private static Set<Integer> intersect(Set<Integer> first, Set<Integer> second) {
+        if (first == null) {
+            return second;
+        }
+        Set<Integer> both = new HashSet<>(first);
+        both.retainAll(second);
+        return both;
+    }
+    
+    private static boolean isBlockEnd(String line) {
+        String lower = line.trim().toLowerCase();
+        return lower.equals("end") || lower.equals("done") || lower.equals("finish");
+    }
+    
+    // ============================================================
+    // BYTECODE TIER (Hot Functions and Loops)
+    // ============================================================
+
+    /**
+     * A hot function compiled to a hidden class. Arguments are the
+     * parameter values in order.
+     */
+    interface CompiledFunction {
+        int invoke(int[] arguments) throws LexiException;
+    }
+
+    /**
+     * A hot top-level loop compiled to a hidden class. It resumes the loop
+     * at counter i (for loops only) and works directly on the global frame.
+     */
+    interface CompiledLoop {
+        void run(long[] numbers, int i, int end) throws LexiException;
+    }
+
+    /**
+     * Thrown by compiled function code when it reaches something only the
+     * interpreter handles, e.g. a local read that falls back to a global.
+     * Compiled functions have no side effects, so the call is simply run
+     * again by the interpreter. Thrown on every deoptimization, so it is
+     * one shared instance with no stack trace.
+     */
+    static final class Deoptimize extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        static final Deoptimize INSTANCE = new Deoptimize();
+
+        private Deoptimize() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Count a call and compile the function once it is hot.
+     * Returns null while the function should be interpreted.
+     */
+    private static CompiledFunction hotCode(Function func, LexiRuntime runtime) {
+        if (func.compiled == null && func.compiledBody == null && !func.tierAttempted && runtime.tierThreshold >= 0 &&
+                !runtime.debugMode && ++func.calls > runtime.tierThreshold) {
+            func.tierAttempted = true;
+            func.compiled = new TierCompiler().compileFunction(func);
+        }
+        return func.compiled;
+    }
+
+    /**
+     * Argument values for a compiled call, or null if one of them is not
+     * an int-sized whole number (the interpreter then handles the call).
+     */
+    private static int[] numericArguments(CallExpression call, ExecutionContext context)
+            throws LexiException {
+        int[] values = new int[call.arguments.length];
+        for (int i = 0; i < values.length; i++) {
+            Expression argument = call.arguments[i];
+            if (!argument.isNumeric(context)) {
+                return null;
+            }
+            long value;
+            try {
+                value = argument.evaluateLong(context);
+            } catch (ArithmeticException e) {
+                return null;
+            }
+            if (value != (int) value) {
+                return null;
+            }
+            values[i] = (int) value;
+        }
+        return values;
+    }
+
+    /**
+     * Iteration counter and compiled code for one top-level loop. Once hot,
+     * the loop continues in compiled code at the next iteration boundary,
+     * provided every variable it uses currently holds an int-sized number.
+     */
+    static final class LoopTier {
+        final Statement loop;
+        int iterations;
+        boolean attempted;
+        volatile CompiledLoop compiled;   // published after slots
+        int[] slots;
+
+        LoopTier(Statement loop) {
+            this.loop = loop;
+        }
+
+        /** Count an iteration; true if the rest of the loop can run compiled. */
+        boolean ready(ExecutionContext context) {
+            LexiRuntime runtime = context.runtime;
+            if (compiled == null) {
+                if (attempted || runtime.tierThreshold < 0 || runtime.debugMode || ++iterations <= runtime.tierThreshold) {
+                    return false;
+                }
+                attempted = true;
+                TierCompiler compiler = new TierCompiler();
+                CompiledLoop code = compiler.compileLoop(loop);
+                if (code == null) {
+                    return false;
+                }
+                slots = compiler.referencedSlots();
+                compiled = code;
+            }
+
+            for (int slot : slots) {
+                if (slot >= context.slots.length || context.slots[slot] != ExecutionContext.NUMBER ||
+                        context.numbers[slot] != (int) context.numbers[slot]) {
+                    return false;
+                }
+            }
+            return !runtime.debugMode;
+        }
+        
+        /**
+         * Run the rest of the loop compiled. If a result outgrows an int (or
+         * is a fraction) the loop's variables are put back as they were on
+         * entry and false is returned: the interpreter then redoes those
+         * iterations, widening as it goes. Compiled loops only change these
+         * numbers, so nothing else can tell they ran twice.
+         */
+        boolean run(ExecutionContext context, int i, int end) throws LexiException {
+            CompiledLoop code = compiled;   // another thread may have dropped it since ready()
+            if (code == null) {
+                return false;
+            }
+            long[] numbers = context.numbers;
+            long[] saved = new long[slots.length];
+            for (int k = 0; k < slots.length; k++) {
+                saved[k] = numbers[slots[k]];
+            }
+            try {
+                code.run(numbers, i, end);
+                return true;
+            } catch (Deoptimize | ArithmeticException e) {
+                for (int k = 0; k < slots.length; k++) {
+                    numbers[slots[k]] = saved[k];
+                }
+                compiled = null;   // interpreted from now on (attempted stays set)
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Runtime support called from compiled code. Errors are raised exactly
+     * as the interpreter raises them, including the reported line.
+     */
+    static final class TierRuntime {
+        /** l / r when it is a whole int; otherwise the interpreter computes the fraction. */
+        static int divide(int l, int r, int line) throws LexiException {
+            if (r == 0) {
+                throw new LexiException("Division by zero", line);
+            }
+            if (l % r != 0 || (l == Integer.MIN_VALUE && r == -1)) {
+                throw Deoptimize.INSTANCE;
+            }
+            return l / r;
+        }
+
+        static long divide(long l, long r, int line) throws LexiException {
+            if (r == 0) {
+                throw new LexiException("Division by zero", line);
+            }
+            if (l % r != 0 || (l == Long.MIN_VALUE && r == -1)) {
+                throw Deoptimize.INSTANCE;
+            }
+            return l / r;
+        }
+
+        static int remainder(int l, int r, int line) throws LexiException {
+            if (r == 0) {
+                throw new LexiException("Division by zero", line);
+            }
+            return l % r;
+        }
+
+        static long remainder(long l, long r, int line) throws LexiException {
+            if (r == 0) {
+                throw new LexiException("Division by zero", line);
+            }
+            return l % r;
+        }
+
+        /** Exact power; ArithmeticException if it is a fraction or too big. */
+        static int power(int l, int r) {
+            return Math.toIntExact(Numbers.power(l, r));
+        }
+
+        static long power(long l, long r) {
+            return Numbers.power(l, r);
+        }
+
+        /** A variable read by inlined arithmetic: its whole-number value, or deoptimize. */
+        static long number(ExecutionContext frame, int slot) throws LexiException {
+            if (!frame.holdsNumber(slot)) {
+                throw Deoptimize.INSTANCE;
+            }
+            return frame.getLong(slot);
+        }
+
+        static Deoptimize deoptimize() {
+            return Deoptimize.INSTANCE;
+        }
+    }
+
+    /**
+     * Translates a purely numeric statement tree into JVM bytecode.
+     *
+     * Functions become a static method taking and returning ints; every
+     * local lives in a JVM local, with an "assigned" flag for locals that
+     * are not parameters. Only self-recursive calls are allowed, so the
+     * compiled code never has side effects and can always deoptimize.
+     * Arithmetic uses Math.addExact and friends, so a result that needs a
+     * long or a fraction deoptimizes instead of wrapping around.
+     *
+     * Top-level loops become a method that reads and writes the global
+     * frame's numbers[] array directly. They may not call functions; on
+     * overflow LoopTier.run() rolls their variables back.
+     *
+     * Anything else (strings, lists, display, input, other calls, return
+     * outside a function) makes the tree not compilable, and it stays in
+     * the interpreter.
+     */
+    static final class TierCompiler {
+        private static final String CLASS_NAME = "src/Lexi$Compiled";
+        private static final String RUNTIME = "src/Lexi$TierRuntime";
+
+        private static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13,
+            ILOAD = 0x15, ALOAD = 0x19, IALOAD = 0x2e, LALOAD = 0x2f, ISTORE = 0x36,
+            LASTORE = 0x50, IINC = 0x84, I2L = 0x85, L2I = 0x88, IFNE = 0x9a, IF_ICMPEQ = 0x9f,
+            IF_ICMPNE = 0xa0, IF_ICMPLT = 0xa1, IF_ICMPGE = 0xa2, IF_ICMPGT = 0xa3,
+            IF_ICMPLE = 0xa4, GOTO = 0xa7, IRETURN = 0xac, RETURN = 0xb1,
+            INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8, ATHROW = 0xbf;
+
+        // Jump taken when the condition is false, indexed like COMPARISON_OPERATORS
+        private static final int[] JUMP_IF_FALSE =
+            {IF_ICMPNE, IF_ICMPEQ, IF_ICMPLT, IF_ICMPGT, IF_ICMPLE, IF_ICMPGE};
+
+        private final ClassWriter classWriter = new ClassWriter();
+        private final Set<Integer> referenced = new TreeSet<>();
+
+        private ByteVector code;
+        private int stack;
+        private int maxStack;
+        private int nextLocal;
+        private int maxLocals;
+
+        private Function function;      // null when compiling a loop
+        private int parameterCount;
+        private int flagBase;           // first "assigned" flag local (functions)
+        private int line;               // line of the statement being compiled
+
+        /** Compile a function, or return null if it is not compilable. */
+        CompiledFunction compileFunction(Function func) {
+            try {
+                function = func;
+                parameterCount = func.parameters.size();
+                flagBase = func.scope.size();
+                String descriptor = "(" + "I".repeat(parameterCount) + ")I";
+
+                // static int run(int...) - the body
+                begin(flagBase + (flagBase - parameterCount));
+                for (int slot = parameterCount; slot < flagBase; slot++) {
+                    push(0);
+                    local(ISTORE, slot);
+                    push(0);
+                    local(ISTORE, flag(slot));
+                }
+                block(func.body);
+                deoptimize();   // falling off the end returns nothing
+                end(0x0008, "run", descriptor);
+
+                // public int invoke(int[] arguments)
+                begin(2);
+                for (int i = 0; i < parameterCount; i++) {
+                    local(ALOAD, 1);
+                    push(i);
+                    op(IALOAD, -1);
+                }
+                invoke(INVOKESTATIC, CLASS_NAME, "run", descriptor, 1 - parameterCount);
+                op(IRETURN, -1);
+                end(0x0001, "invoke", "([I)I");
+
+                return (CompiledFunction) define("src/Lexi$CompiledFunction");
+            } catch (IllegalArgumentException | ReflectiveOperationException | LinkageError e) {
+                return null;
+            }
+        }
+
+        /** Compile a top-level while or for loop, or return null if it is not compilable. */
+        CompiledLoop compileLoop(Statement loop) {
+            try {
+                // public void run(long[] numbers, int i, int end)
+                begin(4);
+                if (loop instanceof ForStatement) {
+                    ForStatement f = (ForStatement) loop;
+                    forLoop(f, 2, 3);
+                } else {
+                    block(new Statement[] { loop });
+                }
+                op(RETURN, 0);
+                end(0x0001, "run", "([JII)V");
+
+                return (CompiledLoop) define("src/Lexi$CompiledLoop");
+            } catch (IllegalArgumentException | ReflectiveOperationException | LinkageError e) {
+                return null;
+            }
+        }
+
+        /** Global slots read or written by the last compiled loop. */
+        int[] referencedSlots() {
+            int[] slots = new int[referenced.size()];
+            int i = 0;
+            for (int slot : referenced) {
+                slots[i++] = slot;
+            }
+            return slots;
+        }
+
+        private Object define(String interfaceName) throws ReflectiveOperationException {
+            byte[] bytes = classWriter.toByteArray(CLASS_NAME, interfaceName);
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            return lookup.lookupClass().getDeclaredConstructor().newInstance();
+        }
+
+        // ----- statements -----
+
+        private void block(Statement[] statements) {
+            for (Statement statement : statements) {
+                statement(statement);
+            }
+        }
+
+        private void statement(Statement statement) {
+            line = statement.line;
+
+            if (statement instanceof CreateStatement) {
+                CreateStatement s = (CreateStatement) statement;
+                beginStore(s.slot);
+                expression(s.value);
+                endStore(s.slot);
+            } else if (statement instanceof SetStatement) {
+                SetStatement s = (SetStatement) statement;
+                beginStore(s.slot);
+                expression(s.value);
+                endStore(s.slot);
+            } else if (statement instanceof IncreaseStatement) {
+                IncreaseStatement s = (IncreaseStatement) statement;
+                beginStore(s.slot);
+                load(s.slot);
+                if (s.amount != null) {
+                    expression(s.amount);
+                } else {
+                    push(1);
+                }
+                exact(s.sign > 0 ? "addExact" : "subtractExact");
+                endStore(s.slot);
+            } else if (statement instanceof IfStatement) {
+                IfStatement s = (IfStatement) statement;
+                Label end = new Label();
+                for (int i = 0; i < s.conditions.length; i++) {
+                    Label next = new Label();
+                    line = s.line;
+                    condition(s.conditions[i], next);
+                    block(s.branches[i]);
+                    jump(GOTO, end, 0);
+                    place(next);
+                }
+                if (s.elseBranch != null) {
+                    block(s.elseBranch);
+                }
+                place(end);
+            } else if (statement instanceof WhileStatement) {
+                WhileStatement s = (WhileStatement) statement;
+                Label top = new Label();
+                Label exit = new Label();
+                place(top);
+                line = s.line;
+                condition(s.condition, exit);
+                block(s.body);
+                jump(GOTO, top, 0);
+                place(exit);
+            } else if (statement instanceof ForStatement) {
+                ForStatement s = (ForStatement) statement;
+                int counter = newLocal();
+                int end = newLocal();
+                expression(s.start);
+                local(ISTORE, counter);
+                expression(s.end);
+                local(ISTORE, end);
+                forLoop(s, counter, end);
+            } else if (statement instanceof ReturnStatement && function != null &&
+                       ((ReturnStatement) statement).value != null) {
+                expression(((ReturnStatement) statement).value);
+                op(IRETURN, -1);
+            } else {
+                throw new IllegalArgumentException("Not compilable: " + statement.source);
+            }
+        }
+
+        /** for-loop body and increment, with the counter and bound already in locals. */
+        private void forLoop(ForStatement s, int counter, int end) {
+            Label top = new Label();
+            Label exit = new Label();
+            place(top);
+            local(ILOAD, counter);
+            local(ILOAD, end);
+            jump(IF_ICMPGT, exit, -2);
+            beginStore(s.slot);
+            local(ILOAD, counter);
+            endStore(s.slot);
+            block(s.body);
+            code.u1(IINC).u1(counter).u1(1);
+            jump(GOTO, top, 0);
+            place(exit);
+        }
+
+        /** Jump to ifFalse unless the condition holds. */
+        private void condition(Condition c, Label ifFalse) {
+            if (c.operator < 0) {
+                jump(GOTO, ifFalse, 0);
+                return;
+            }
+            expression(c.left);
+            expression(c.right);
+            jump(JUMP_IF_FALSE[c.operator], ifFalse, -2);
+        }
+
+        // ----- expressions -----
+
+        private void expression(Expression e) {
+            if (e instanceof NumberLiteral) {
+                long value = ((NumberLiteral) e).value;
+                if (value != (int) value) {
+                    throw new IllegalArgumentException("Not compilable: " + value);
+                }
+                push((int) value);
+            } else if (e instanceof VariableExpression) {
+                load(((VariableExpression) e).slot);
+            } else if (e instanceof NegateExpression) {
+                expression(((NegateExpression) e).operand);
+                invoke(INVOKESTATIC, "java/lang/Math", "negateExact", "(I)I", 0);
+            } else if (e instanceof BinaryExpression) {
+                BinaryExpression b = (BinaryExpression) e;
+                expression(b.left);
+                expression(b.right);
+                switch (b.operator) {
+                    case '+': exact("addExact"); break;
+                    case '-': exact("subtractExact"); break;
+                    case '*': exact("multiplyExact"); break;
+                    case '/':
+                        push(line);
+                        invoke(INVOKESTATIC, RUNTIME, "divide", "(III)I", -2);
+                        break;
+                    case '%':
+                        push(line);
+                        invoke(INVOKESTATIC, RUNTIME, "remainder", "(III)I", -2);
+                        break;
+                    default:
+                        invoke(INVOKESTATIC, RUNTIME, "power", "(II)I", -1);
+                }
+            } else if (e instanceof AdditionOrConcatenation) {
+                // Every variable holds a number in compiled code, so '+' always adds
+                expression(((AdditionOrConcatenation) e).addition);
+            } else if (e instanceof CallExpression && function != null &&
+                       ((CallExpression) e).name.equals(function.name) &&
+                       ((CallExpression) e).arguments.length == parameterCount) {
+                // Self-recursion: the running function is necessarily the current binding
+                for (Expression argument : ((CallExpression) e).arguments) {
+                    expression(argument);
+                }
+                invoke(INVOKESTATIC, CLASS_NAME, "run",
+                    "(" + "I".repeat(parameterCount) + ")I", 1 - parameterCount);
+            } else {
+                throw new IllegalArgumentException("Not compilable: " + e.getClass().getSimpleName());
+            }
+        }
+
+        // ----- variables -----
+
+        private int flag(int slot) {
+            return flagBase + slot - parameterCount;
+        }
+
+        private void load(int slot) {
+            if (function != null) {
+                if (slot >= parameterCount) {
+                    Label assigned = new Label();
+                    local(ILOAD, flag(slot));
+                    jump(IFNE, assigned, -1);
+                    deoptimize();
+                    place(assigned);
+                }
+                local(ILOAD, slot);
+            } else {
+                referenced.add(slot);
+                local(ALOAD, 1);
+                push(slot);
+                op(LALOAD, 0);
+                op(L2I, -1);
+            }
+        }
+
+        private void deoptimize() {
+            invoke(INVOKESTATIC, RUNTIME, "deoptimize", "()Lsrc/Lexi$Deoptimize;", 1);
+            op(ATHROW, -1);
+        }
+
+        /** Overflow-checked int arithmetic (JIT intrinsics); an overflow leaves compiled code. */
+        private void exact(String method) {
+            invoke(INVOKESTATIC, "java/lang/Math", method, "(II)I", -1);
+        }
+        
+        private void beginStore(int slot) {
+            if (function == null) {
+                referenced.add(slot);
+                local(ALOAD, 1);
+                push(slot);
+            }
+        }
+
+        private void endStore(int slot) {
+            if (function != null) {
+                local(ISTORE, slot);
+                if (slot >= parameterCount) {
+                    push(1);
+                    local(ISTORE, flag(slot));
+                }
+            } else {
+                op(I2L, 1);
+                op(LASTORE, -4);
+            }
+        }
+
+        // ----- code buffer -----
+
+        private void begin(int locals) {
+            code = new ByteVector();
+            stack = 0;
+            maxStack = 0;
+            nextLocal = locals;
+            maxLocals = locals;
+        }
+
+        private void end(int access, String name, String descriptor) {
+            if (code.length > 0xffff) {
+                throw new IllegalArgumentException("Method too large");
+            }
+            classWriter.method(access, name, descriptor, code, maxStack, maxLocals);
+        }
+
+        private int newLocal() {
+            int local = nextLocal++;
+            maxLocals = Math.max(maxLocals, nextLocal);
+            return local;
+        }
+
+        private void op(int opcode, int stackChange) {
+            code.u1(opcode);
+            adjust(stackChange);
+        }
+
+        private void adjust(int stackChange) {
+            stack += stackChange;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        private void local(int opcode, int index) {
+            if (index > 0xff) {
+                throw new IllegalArgumentException("Too many locals");
+            }
+            code.u1(opcode).u1(index);
+            adjust(opcode == ISTORE ? -1 : 1);
+        }
+
+        private void push(int value) {
+            if (value >= -1 && value <= 5) {
+                code.u1(ICONST_0 + value);
+            } else if (value == (byte) value) {
+                code.u1(BIPUSH).u1(value);
+            } else if (value == (short) value) {
+                code.u1(SIPUSH).u2(value);
+            } else {
+                code.u1(LDC_W).u2(classWriter.integer(value));
+            }
+            adjust(1);
+        }
+
+        private void invoke(int opcode, String owner, String name, String descriptor, int stackChange) {
+            code.u1(opcode).u2(classWriter.methodRef(owner, name, descriptor));
+            adjust(stackChange);
+        }
+
+        private void jump(int opcode, Label target, int stackChange) {
+            int at = code.length;
+            code.u1(opcode).u2(0);
+            adjust(stackChange);
+            if (target.position >= 0) {
+                patch(at, target.position);
+            } else {
+                target.jumps.add(at);
+            }
+        }
+
+        private void place(Label label) {
+            label.position = code.length;
+            for (int at : label.jumps) {
+                patch(at, label.position);
+            }
+        }
+
+        private void patch(int at, int target) {
+            int offset = target - at;
+            if (offset != (short) offset) {
+                throw new IllegalArgumentException("Jump too far");
+            }
+            code.set2(at + 1, offset);
+        }
+    }
+
+    /** A jump target in the code being generated. */
+    static final class Label {
+        int position = -1;
+        final List<Integer> jumps = new ArrayList<>();
+    }
+
+    /** Growable byte buffer with big-endian writes, as class files use. */
+    static final class ByteVector {
+        byte[] data = new byte[64];
+        int length;
+
+        ByteVector u1(int value) {
+            ensure(1);
+            data[length++] = (byte) value;
+            return this;
+        }
+
+        ByteVector u2(int value) {
+            ensure(2);
+            data[length++] = (byte) (value >>> 8);
+            data[length++] = (byte) value;
+            return this;
+        }
+
+        ByteVector u4(int value) {
+            return u2(value >>> 16).u2(value);
+        }
+
+        ByteVector bytes(ByteVector other) {
+            ensure(other.length);
+            System.arraycopy(other.data, 0, data, length, other.length);
+            length += other.length;
+            return this;
+        }
+
+        void set2(int at, int value) {
+            data[at] = (byte) (value >>> 8);
+            data[at + 1] = (byte) value;
+        }
+
+        private void ensure(int size) {
+            if (length + size > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + size));
+            }
+        }
+    }
+
+    /**
+     * Minimal class file writer: a constant pool, a public no-argument
+     * constructor and the methods added. Version 49 classes need no stack
+     * map frames; the JVM verifies them by type inference.
+     */
+    static final class ClassWriter {
+        private final ByteVector pool = new ByteVector();
+        private final Map<String, Integer> constants = new HashMap<>();
+        private int poolCount = 1;
+        private final ByteVector methods = new ByteVector();
+        private int methodCount;
+
+        int utf8(String value) {
+            Integer index = constants.get("U" + value);
+            if (index == null) {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                pool.u1(1).u2(bytes.length);
+                for (byte b : bytes) {
+                    pool.u1(b);
+                }
+                index = poolCount++;
+                constants.put("U" + value, index);
+            }
+            return index;
+        }
+
+        int integer(int value) {
+            Integer index = constants.get("I" + value);
+            if (index == null) {
+                pool.u1(3).u4(value);
+                index = poolCount++;
+                constants.put("I" + value, index);
+            }
+            return index;
+        }
+
+        int classRef(String name) {
+            return entry("C" + name, 7, utf8(name), -1);
+        }
+
+        int methodRef(String owner, String name, String descriptor) {
+            int type = entry("N" + name + descriptor, 12, utf8(name), utf8(descriptor));
+            return entry("M" + owner + "." + name + descriptor, 10, classRef(owner), type);
+        }
+
+        private int entry(String key, int tag, int first, int second) {
+            Integer index = constants.get(key);
+            if (index == null) {
+                pool.u1(tag).u2(first);
+                if (second >= 0) {
+                    pool.u2(second);
+                }
+                index = poolCount++;
+                constants.put(key, index);
+            }
+            return index;
+        }
+
+        void method(int access, String name, String descriptor, ByteVector code,
+                    int maxStack, int maxLocals) {
+            methods.u2(access).u2(utf8(name)).u2(utf8(descriptor)).u2(1);
+            methods.u2(utf8("Code")).u4(12 + code.length).u2(maxStack).u2(maxLocals);
+            methods.u4(code.length).bytes(code).u2(0).u2(0);
+            methodCount++;
+        }
+
+        byte[] toByteArray(String name, String interfaceName) {
+            // public <init>() { super(); }
+            ByteVector init = new ByteVector();
+            init.u1(0x2a).u1(0xb7).u2(methodRef("java/lang/Object", "<init>", "()V")).u1(0xb1);
+            method(0x0001, "<init>", "()V", init, 1, 1);
+
+            int thisClass = classRef(name);
+            int superClass = classRef("java/lang/Object");
+            int implemented = classRef(interfaceName);
+
+            ByteVector out = new ByteVector();
+            out.u4(0xCAFEBABE).u2(0).u2(49);
+            out.u2(poolCount).bytes(pool);
+            out.u2(0x0030).u2(thisClass).u2(superClass);   // final, super
+            out.u2(1).u2(implemented);
+            out.u2(0);                                     // fields
+            out.u2(methodCount).bytes(methods);
+            out.u2(0);                                     // attributes
+            return Arrays.copyOf(out.data, out.length);
+        }
+    }
+
+    // ============================================================
+    // AHEAD-OF-TIME COMPILER (--compile)
+    // ============================================================
+
+    /**
+     * A function or program body translated to Java by the AOT compiler.
+     * Returns the function's return value (null if it returned nothing).
+     */
+    interface CompiledBody {
+        Object execute(ExecutionContext frame) throws LexiException;
+    }
+
+    /**
+     * Compile a .lexi file into a runnable jar:
+     *   java src.Lexi --compile foo.lexi -o foo.jar
+     *   java -jar foo.jar
+     * The program is parsed with the interpreter's own grammar; lines the
+     * interpreter would reject when reached are reported now instead.
+     */
+    private static void compileToJar(String sourcePath, String jarPath) {
+        LexiRuntime runtime = new LexiRuntime();
+        try {
+            loadFile(runtime, sourcePath);
+        } catch (IOException e) {
+            System.err.println("Error loading file: " + e.getMessage());
+            System.exit(1);
+        }
+        ParsedProgram parsed = parseProgram(runtime.program);
+
+        AotCompiler compiler = new AotCompiler(parsed.scope, sourcePath);
+        String source = compiler.translate(parsed.tree);
+
+        if (!compiler.errors.isEmpty()) {
+            for (String error : compiler.errors) {
+                System.err.println(error);
+            }
+            System.err.println(compiler.errors.size() + " error(s), no jar written");
+            System.exit(1);
+        }
+
+        try {
+            writeJar(source, jarPath);
+            System.out.println("Compiled: " + jarPath);
+        } catch (IOException e) {
+            System.err.println("Error writing jar: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Compile the generated source with the JDK's compiler and package it,
+     * together with the Lexi runtime classes, as an executable jar.
+     */
+    private static void writeJar(String source, String jarPath) throws IOException {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null) {
+            throw new IOException("--compile needs a JDK; no Java compiler is available");
+        }
+
+        Path runtime;
+        try {
+            runtime = Paths.get(Lexi.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException("Cannot locate the Lexi runtime classes", e);
+        }
+
+        Path work = Files.createTempDirectory("lexic");
+        try {
+            Path sourceFile = work.resolve("src").resolve(AotCompiler.CLASS_NAME + ".java");
+            Path classes = work.resolve("classes");
+            Files.createDirectories(sourceFile.getParent());
+            Files.createDirectories(classes);
+            Files.write(sourceFile, source.getBytes(StandardCharsets.UTF_8));
+
+            int status = javac.run(null, null, null, "-encoding", "UTF-8", "-nowarn",
+                "-cp", runtime.toString(), "-d", classes.toString(), sourceFile.toString());
+            if (status != 0) {
+                throw new IOException("Generated code did not compile");
+            }
+
+            Manifest manifest = new Manifest();
+            manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+            manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, "src." + AotCompiler.CLASS_NAME);
+
+            try (JarOutputStream jar = new JarOutputStream(
+                    Files.newOutputStream(Paths.get(jarPath)), manifest)) {
+                addClasses(jar, classes, null);
+                if (Files.isDirectory(runtime)) {
+                    addClasses(jar, runtime, AotCompiler.CLASS_NAME + ".class");
+                } else {
+                    copyRuntimeClasses(jar, runtime);
+                }
+            }
+        } finally {
+            try (java.util.stream.Stream<Path> files = Files.walk(work)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    /** Add the classes in root/src/ (the runtime, or the generated program). */
+    private static void addClasses(JarOutputStream jar, Path root, String skip) throws IOException {
+        Path dir = root.resolve("src");
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.class")) {
+            for (Path file : files) {
+                String name = "src/" + file.getFileName();
+                if (file.getFileName().toString().equals(skip)) {
+                    continue;
+                }
+                jar.putNextEntry(new JarEntry(name));
+                Files.copy(file, jar);
+                jar.closeEntry();
+            }
+        }
+    }
+
+    /** Copy the runtime classes when Lexi itself is running from a jar. */
+    private static void copyRuntimeClasses(JarOutputStream jar, Path runtimeJar) throws IOException {
+        try (JarFile source = new JarFile(runtimeJar.toFile())) {
+            for (JarEntry entry : Collections.list(source.entries())) {
+                String name = entry.getName();
+                if (name.startsWith("src/") && name.endsWith(".class") &&
+                        !name.equals("src/" + AotCompiler.CLASS_NAME + ".class")) {
+                    jar.putNextEntry(new JarEntry(name));
+                    try (InputStream in = source.getInputStream(entry)) {
+                        in.transferTo(jar);
+                    }
+                    jar.closeEntry();
+                }
+            }
+        }
+    }
+
+    /**
+     * Translates a compiled statement tree into the source of one Java class.
+     *
+     * Control flow becomes Java control flow and integer arithmetic becomes
+     * Java int arithmetic on the frame's slots. Everything else (strings,
+     * lists, input, calls) is delegated to the same Expression and Statement
+     * nodes the interpreter uses, built once in static fields, so behaviour
+     * is identical. Invalid lines and calls to functions that are never
+     * defined are collected as errors.
+     */
+    static final class AotCompiler {
+        static final String CLASS_NAME = "LexiProgram";
+
+        final List<String> errors = new ArrayList<>();
+
+        private final Scope globalScope;
+        private final String sourcePath;
+        private final Map<Scope, String> scopeFields = new IdentityHashMap<>();
+        private final Set<String> definedFunctions = new HashSet<>();
+        private final StringBuilder scopes = new StringBuilder();
+        private final StringBuilder constants = new StringBuilder();
+        private final StringBuilder methods = new StringBuilder();
+        private int constantCount;
+        private int methodCount;
+        private int line;   // line of the statement being translated
+
+        AotCompiler(Scope globalScope, String sourcePath) {
+            this.globalScope = globalScope;
+            this.sourcePath = sourcePath;
+        }
+
+        String translate(Statement[] tree) {
+            collectFunctions(tree);
+            scopeField(globalScope);
+            method("program", tree, false);
+
+            StringBuilder out = new StringBuilder();
+            out.append("package src;\n\n");
+            out.append("/**\n * Generated by \"java src.Lexi --compile\" from ")
+               .append(sourcePath.replace("*/", "*\\/")).append(". Do not edit.\n */\n");
+            out.append("public final class ").append(CLASS_NAME).append(" {\n");
+            out.append(scopes).append('\n');
+            out.append(constants).append('\n');
+            out.append("    public static void main(String[] args) {\n");
+            out.append("        Lexi.AotRuntime.run(").append(scopeFields.get(globalScope))
+               .append(", ").append(CLASS_NAME).append("::program, args);\n");
+            out.append("    }\n\n");
+            out.append(methods);
+            out.append("}\n");
+            return out.toString();
+        }
+
+        private void collectFunctions(Statement[] block) {
+            for (Statement statement : block) {
+                if (statement instanceof FunctionDefinitionStatement) {
+                    Function function = ((FunctionDefinitionStatement) statement).function;
+                    definedFunctions.add(function.name);
+                    collectFunctions(function.body);
+                } else if (statement instanceof IfStatement) {
+                    IfStatement s = (IfStatement) statement;
+                    for (Statement[] branch : s.branches) {
+                        collectFunctions(branch);
+                    }
+                    if (s.elseBranch != null) {
+                        collectFunctions(s.elseBranch);
+                    }
+                } else if (statement instanceof WhileStatement) {
+                    collectFunctions(((WhileStatement) statement).body);
+                } else if (statement instanceof ForStatement) {
+                    collectFunctions(((ForStatement) statement).body);
+                }
+            }
+        }
+
+        private String scopeField(Scope scope) {
+            String field = scopeFields.get(scope);
+            if (field == null) {
+                field = "SCOPE" + scopeFields.size();
+                scopeFields.put(scope, field);
+                scopes.append("    static final Lexi.Scope ").append(field).append(" = Lexi.AotRuntime.scope(")
+                      .append(quote(scope.name)).append(", ")
+                      .append(scope.global != null ? scopeFields.get(scope.global) : "null");
+                for (String name : scope.names) {
+                    scopes.append(", ").append(quote(name));
+                }
+                scopes.append(");\n");
+            }
+            return field;
+        }
+
+        private void method(String name, Statement[] body, boolean function) {
+            StringBuilder out = new StringBuilder();
+            out.append("    static Object ").append(name)
+               .append("(Lexi.ExecutionContext f) throws Lexi.LexiException {\n");
+            if (block(out, body, 2, function)) {
+                out.append("        return null;\n");
+            }
+            out.append("    }\n\n");
+            methods.append(out);
+        }
+
+        // ----- statements -----
+
+        /** Translate a block; returns false if control cannot reach its end. */
+        private boolean block(StringBuilder out, Statement[] block, int depth, boolean function) {
+            for (Statement statement : block) {
+                line = statement.line;
+                emit(out, depth, "f.runtime.currentLine = " + statement.line + ";");
+                if (!statement(out, statement, depth, function)) {
+                    return false;   // the rest is unreachable, as in the interpreter
+                }
+            }
+            return true;
+        }
+
+        private boolean statement(StringBuilder out, Statement statement, int depth, boolean function) {
+            if (statement instanceof CreateStatement) {
+                CreateStatement s = (CreateStatement) statement;
+                emit(out, depth, assign(s.slot, s.value));
+            } else if (statement instanceof SetStatement && ((SetStatement) statement).appended != null) {
+                // Appends in place at run time, see SetStatement
+                SetStatement s = (SetStatement) statement;
+                delegate(out, depth, "new Lexi.SetStatement(" + s.line + ", " + quote(s.source) + ", " +
+                    s.slot + ", " + node(s.value) + ")");
+            } else if (statement instanceof SetStatement) {
+                SetStatement s = (SetStatement) statement;
+                emit(out, depth, assign(s.slot, s.value));
+            } else if (statement instanceof IncreaseStatement) {
+                IncreaseStatement s = (IncreaseStatement) statement;
+                String amount = (s.amount != null) ? wholeCode(s.amount) : "1L";
+                String node = "new Lexi.IncreaseStatement(" + s.line + ", " + quote(s.source) + ", " + s.slot + ", " +
+                    (s.amount != null ? node(s.amount) : "null") + ", " + s.sign + ")";
+                if (amount == null) {
+                    delegate(out, depth, node);
+                } else {
+                    emit(out, depth, "try { f.setLong(" + s.slot + ", Math." + (s.sign > 0 ? "addExact" : "subtractExact") +
+                        "(Lexi.TierRuntime.number(f, " + s.slot + "), " + amount + ")); } " +
+                        "catch (ArithmeticException | Lexi.Deoptimize e) { " + constant("Lexi.Statement", node) + ".execute(f); }");
+                }
+            } else if (statement instanceof DisplayStatement) {
+                emit(out, depth, "Lexi.AotRuntime.display(f, " + objectValue(((DisplayStatement) statement).value) + ");");
+            } else if (statement instanceof InputStatement) {
+                InputStatement s = (InputStatement) statement;
+                delegate(out, depth, "new Lexi.InputStatement(" + s.line + ", " + quote(s.source) + ", " + s.slot + ")");
+            } else if (statement instanceof CallStatement) {
+                CallStatement s = (CallStatement) statement;
+                delegate(out, depth, "new Lexi.CallStatement(" + s.line + ", " + quote(s.source) + ", " +
+                    node(s.call) + ")");
+            } else if (statement instanceof SpawnStatement) {
+                SpawnStatement s = (SpawnStatement) statement;
+                delegate(out, depth, "new Lexi.SpawnStatement(" + s.line + ", " + quote(s.source) + ", " +
+                    node(s.call) + ", " + s.slot + ")");
+            } else if (statement instanceof WaitStatement) {
+                WaitStatement s = (WaitStatement) statement;
+                delegate(out, depth, "new Lexi.WaitStatement(" + s.line + ", " + quote(s.source) + ", " +
+                    quote(s.name) + ", " + s.slot + ")");
+            } else if (statement instanceof CreateListStatement) {
+                CreateListStatement s = (CreateListStatement) statement;
+                delegate(out, depth, "new Lexi.CreateListStatement(" + s.line + ", " + quote(s.source) + ", " +
+                    s.slot + ")");
+            } else if (statement instanceof ListAddStatement) {
+                ListAddStatement s = (ListAddStatement) statement;
+                delegate(out, depth, "new Lexi.ListAddStatement(" + s.line + ", " + quote(s.source) + ", " +
+                    node(s.value) + ", " + quote(s.listName) + ", " + s.listSlot + ")");
+            } else if (statement instanceof SetListItemStatement) {
+                SetListItemStatement s = (SetListItemStatement) statement;
+                delegate(out, depth, "new Lexi.SetListItemStatement(" + s.line + ", " + quote(s.source) + ", " +
+                    quote(s.listName) + ", " + s.listSlot + ", " + node(s.position) + ", " + node(s.value) + ")");
+            } else if (statement instanceof ReturnStatement) {
+                Expression value = ((ReturnStatement) statement).value;
+                if (function && value instanceof CallExpression) {
+                    // The node hands back a tail call for Lexi.invoke to make
+                    emit(out, depth, "return " + constant("Lexi.Statement", "new Lexi.ReturnStatement(" +
+                        statement.line + ", " + quote(statement.source) + ", " + node(value) + ")") + ".execute(f);");
+                } else if (function) {
+                    emit(out, depth, "return " + (value != null ? objectValue(value) : "null") + ";");
+                } else {
+                    // A top-level return ends the program
+                    if (value != null) {
+                        emit(out, depth, objectValue(value) + ";");
+                    }
+                    emit(out, depth, "return null;");
+                }
+                return false;
+            } else if (statement instanceof IfStatement) {
+                return ifStatement(out, (IfStatement) statement, depth, function);
+            } else if (statement instanceof WhileStatement) {
+                WhileStatement s = (WhileStatement) statement;
+                emit(out, depth, "while (true) {");
+                emit(out, depth + 1, "f.runtime.currentLine = " + s.line + ";");
+                emit(out, depth + 1, "if (!" + condition(s.condition) + ") break;");
+                block(out, s.body, depth + 1, function);
+                emit(out, depth, "}");
+            } else if (statement instanceof ForStatement) {
+                ForStatement s = (ForStatement) statement;
+                String i = "i" + s.line;
+                String end = "end" + s.line;
+                emit(out, depth, "{");
+                emit(out, depth + 1, "int " + i + "start = " + intValue(s.start) + ";");
+                emit(out, depth + 1, "int " + end + " = " + intValue(s.end) + ";");
+                emit(out, depth + 1, "for (int " + i + " = " + i + "start; " + i + " <= " + end + "; " + i + "++) {");
+                emit(out, depth + 2, "f.setLong(" + s.slot + ", " + i + ");");
+                block(out, s.body, depth + 2, function);
+                emit(out, depth + 1, "}");
+                emit(out, depth, "}");
+            } else if (statement instanceof FunctionDefinitionStatement) {
+                Function fn = ((FunctionDefinitionStatement) statement).function;
+                String name = "function" + (methodCount++) + "_" + fn.name;
+                StringBuilder call = new StringBuilder("Lexi.AotRuntime.define(f, ");
+                call.append(quote(fn.name)).append(", ").append(scopeField(fn.scope))
+                    .append(", ").append(CLASS_NAME).append("::").append(name)
+                    .append(", ").append(fn.memo != null);
+                for (String parameter : fn.parameters) {
+                    call.append(", ").append(quote(parameter));
+                }
+                emit(out, depth, call.append(");").toString());
+                method(name, fn.body, true);
+            } else if (statement instanceof InvalidStatement) {
+                error(((InvalidStatement) statement).message);
+            } else {
+                error("Cannot compile: " + statement.source);
+            }
+            return true;
+        }
+
+        /** if/else if/else; it completes unless every branch (including else) returns. */
+        private boolean ifStatement(StringBuilder out, IfStatement s, int depth, boolean function) {
+            boolean completes = (s.elseBranch == null);
+            for (int i = 0; i < s.conditions.length; i++) {
+                line = s.line;
+                emit(out, depth, (i == 0 ? "if " : "} else if ") + condition(s.conditions[i]) + " {");
+                completes |= block(out, s.branches[i], depth + 1, function);
+            }
+            if (s.elseBranch != null) {
+                emit(out, depth, "} else {");
+                completes |= block(out, s.elseBranch, depth + 1, function);
+            }
+            emit(out, depth, "}");
+            return completes;
+        }
+
+        private void delegate(StringBuilder out, int depth, String statementNode) {
+            emit(out, depth, constant("Lexi.Statement", statementNode) + ".execute(f);");
+        }
+
+        // ----- expressions -----
+
+        /**
+         * Whole-number arithmetic is inlined as exact long code; if it
+         * overflows, divides unevenly or meets a variable that does not hold
+         * a whole number, the node computes the value instead (inlined
+         * arithmetic has no side effects, so it can be redone).
+         */
+        private String assign(int slot, Expression value) {
+            String fallback = "Lexi.AotRuntime.assign(f, " + slot + ", " + constant("Lexi.Expression", node(value)) + ");";
+            String code = alwaysNumeric(value) ? wholeCode(value) : null;
+            if (code != null) {
+                return "try { f.setLong(" + slot + ", " + code + "); } " +
+                    "catch (ArithmeticException | Lexi.Deoptimize e) { " + fallback + " }";
+            }
+            return fallback;
+        }
+
+        /** Java source for value.evaluate(f). */
+        private String objectValue(Expression value) {
+            return constant("Lexi.Expression", node(value)) + ".evaluate(f)";
+        }
+
+        /** Java source for value.evaluateInt(f). */
+        private String intValue(Expression value) {
+            if (value instanceof NumberLiteral && ((NumberLiteral) value).value == (int) ((NumberLiteral) value).value) {
+                return Long.toString(((NumberLiteral) value).value);
+            }
+            return constant("Lexi.Expression", node(value)) + ".evaluateInt(f)";
+        }
+
+        /** True for expressions that are numbers whatever the variables hold. */
+        private static boolean alwaysNumeric(Expression e) {
+            return e instanceof NumericExpression && !(e instanceof InvalidExpression);
+        }
+
+        /**
+         * Inline exact long arithmetic, or null if not pure arithmetic. It
+         * throws ArithmeticException or Deoptimize where the result is not a
+         * whole number or a variable does not hold one.
+         */
+        private String wholeCode(Expression e) {
+            if (e instanceof NumberLiteral) {
+                long value = ((NumberLiteral) e).value;
+                return (value < 0) ? "(" + value + "L)" : value + "L";
+            }
+            if (e instanceof VariableExpression) {
+                return "Lexi.TierRuntime.number(f, " + ((VariableExpression) e).slot + ")";
+            }
+            if (e instanceof NegateExpression) {
+                String operand = wholeCode(((NegateExpression) e).operand);
+                return (operand != null) ? "Math.negateExact(" + operand + ")" : null;
+            }
+            if (e instanceof BinaryExpression) {
+                BinaryExpression b = (BinaryExpression) e;
+                String l = wholeCode(b.left);
+                String r = wholeCode(b.right);
+                if (l == null || r == null) {
+                    return null;
+                }
+                switch (b.operator) {
+                    case '+': return "Math.addExact(" + l + ", " + r + ")";
+                    case '-': return "Math.subtractExact(" + l + ", " + r + ")";
+                    case '*': return "Math.multiplyExact(" + l + ", " + r + ")";
+                    case '/': return "Lexi.TierRuntime.divide(" + l + ", " + r + ", " + line + ")";
+                    case '%': return "Lexi.TierRuntime.remainder(" + l + ", " + r + ", " + line + ")";
+                    default: return "Lexi.TierRuntime.power(" + l + ", " + r + ")";
+                }
+            }
+            return null;
+        }
+
+        /** A literal or a variable's unboxed value, for inlined comparisons; null otherwise. */
+        private static String comparand(Expression e) {
+            if (e instanceof NumberLiteral) {
+                long value = ((NumberLiteral) e).value;
+                return (value < 0) ? "(" + value + "L)" : value + "L";
+            }
+            if (e instanceof VariableExpression) {
+                return "f.getLong(" + ((VariableExpression) e).slot + ")";
+            }
+            return null;
+        }
+
+        /**
+         * Java boolean for condition.evaluate(f). Comparing literals and
+         * variables is inlined, guarded by a check that the variables hold
+         * whole numbers; anything else goes through the Condition node.
+         */
+        private String condition(Condition c) {
+            if (c.operator < 0) {
+                return "(false)";
+            }
+
+            String l = comparand(c.left);
+            String r = comparand(c.right);
+            String fallback = constant("Lexi.Condition", node(c)) + ".evaluate(f)";
+            if (l == null || r == null) {
+                return "(" + fallback + ")";
+            }
+
+            List<String> guards = new ArrayList<>();
+            for (Expression side : new Expression[] { c.left, c.right }) {
+                if (side instanceof VariableExpression) {
+                    guards.add("f.holdsNumber(" + ((VariableExpression) side).slot + ")");
+                }
+            }
+            String compare = "(" + l + " " + COMPARISON_OPERATORS[c.operator] + " " + r + ")";
+            if (guards.isEmpty()) {
+                return compare;
+            }
+            return "(" + String.join(" && ", guards) + " ? " + compare + " : " + fallback + ")";
+        }
+
+        // ----- node construction -----
+
+        /** A static final field holding a node, built once when the class loads. */
+        private String constant(String type, String construction) {
+            String field = "NODE" + (constantCount++);
+            constants.append("    static final ").append(type).append(' ').append(field)
+                     .append(" = ").append(construction).append(";\n");
+            return field;
+        }
+
+        /** Java source that constructs the same node. */
+        private String node(Expression e) {
+            if (e instanceof NumberLiteral) {
+                return "new Lexi.NumberLiteral(" + ((NumberLiteral) e).value + "L)";
+            }
+            if (e instanceof DecimalLiteral) {
+                return "new Lexi.DecimalLiteral(" + quote(((DecimalLiteral) e).text) + ")";
+            }
+            if (e instanceof StringLiteral) {
+                return "new Lexi.StringLiteral(" + quote(((StringLiteral) e).value) + ")";
+            }
+            if (e instanceof VariableExpression) {
+                VariableExpression v = (VariableExpression) e;
+                return "new Lexi.VariableExpression(" + quote(v.name) + ", " + v.slot + ")";
+            }
+            if (e instanceof ListItemExpression) {
+                ListItemExpression item = (ListItemExpression) e;
+                return "new Lexi.ListItemExpression(" + quote(item.listName) + ", " + item.listSlot + ", " +
+                    node(item.position) + ")";
+            }
+            if (e instanceof LengthExpression) {
+                LengthExpression length = (LengthExpression) e;
+                return "new Lexi.LengthExpression(" + quote(length.name) + ", " + length.slot + ")";
+            }
+            if (e instanceof NegateExpression) {
+                return "new Lexi.NegateExpression(" + node(((NegateExpression) e).operand) + ")";
+            }
+            if (e instanceof BinaryExpression) {
+                BinaryExpression b = (BinaryExpression) e;
+                return "new Lexi.BinaryExpression('" + b.operator + "', " + node(b.left) + ", " + node(b.right) + ")";
+            }
+            if (e instanceof ConcatenationExpression) {
+                return "new Lexi.ConcatenationExpression(" + nodes(((ConcatenationExpression) e).parts) + ")";
+            }
+            if (e instanceof ConcatenationPart) {
+                // An unparsable part is displayed as text, so it is not an error here
+                ConcatenationPart p = (ConcatenationPart) e;
+                String numeric = (p.numeric instanceof InvalidExpression)
+                    ? "new Lexi.InvalidExpression(" + quote(((InvalidExpression) p.numeric).message) + ")"
+                    : node(p.numeric);
+                return "new Lexi.ConcatenationPart(" + quote(p.text) + ", " + p.slot + ", " + numeric + ")";
+            }
+            if (e instanceof AdditionOrConcatenation) {
+                AdditionOrConcatenation a = (AdditionOrConcatenation) e;
+                StringBuilder slots = new StringBuilder("new int[] {");
+                for (int i = 0; i < a.slots.length; i++) {
+                    slots.append(i > 0 ? ", " : "").append(a.slots[i]);
+                }
+                return "new Lexi.AdditionOrConcatenation(" + slots.append("}") + ", " +
+                    node(a.addition) + ", " + node(a.concatenation) + ")";
+            }
+            if (e instanceof CallExpression) {
+                CallExpression call = (CallExpression) e;
+                if (!definedFunctions.contains(call.name)) {
+                    error("Function '" + call.name + "' not defined");
+                }
+                return "new Lexi.CallExpression(" + quote(call.name) + ", " + nodes(call.arguments) + ")";
+            }
+            if (e instanceof InvalidExpression) {
+                error(((InvalidExpression) e).message);
+                return "null";
+            }
+            error("Cannot compile expression: " + e.getClass().getSimpleName());
+            return "null";
         }
-        
-        // String concatenation
-        if (expr.contains("+") && (expr.contains("\"") || hasStringVariable(expr, context))) {
-            return evaluateStringConcatenation(expr, context);
+
+        private String node(Condition c) {
+            if (c.operator < 0) {
+                return "new Lexi.Condition(-1, null, null)";
+            }
+            return "new Lexi.Condition(" + c.operator + ", " + node(c.left) + ", " + node(c.right) + ")";
         }
-        
-        // Numeric expression
-        return evaluateNumericExpression(expr, context);
-    }
-    
-    private static boolean hasStringVariable(String expr, ExecutionContext context) {
-        String[] tokens = expr.split("[+\\-*/()%^]");
-        for (String token : tokens) {
-            token = token.trim();
-            if (context.hasVariable(token)) {
-                Object value = context.getVariable(token);
-                if (value instanceof String) {
-                    return true;
-                }
+
+        private String nodes(Expression[] expressions) {
+            StringBuilder sb = new StringBuilder("new Lexi.Expression[] {");
+            for (int i = 0; i < expressions.length; i++) {
+                sb.append(i > 0 ? ", " : "").append(node(expressions[i]));
             }
+            return sb.append("}").toString();
         }
-        return false;
-    }
-    
-    private static String evaluateStringConcatenation(String expr, ExecutionContext context) 
-            throws LexiException {
-        
-        StringBuilder result = new StringBuilder();
-        StringBuilder current = new StringBuilder();
-        boolean inQuotes = false;
-        
-        for (int i = 0; i < expr.length(); i++) {
-            char c = expr.charAt(i);
-            
-            if (c == '"') {
-                if (inQuotes) {
-                    result.append(current);
-                    current = new StringBuilder();
-                    inQuotes = false;
-                } else {
-                    if (current.length() > 0) {
-                        String part = current.toString().trim();
-                        if (!part.isEmpty() && !part.equals("+")) {
-                            Object value = evaluateNumericExpression(part, context);
-                            result.append(value);
-                        }
-                        current = new StringBuilder();
-                    }
-                    inQuotes = true;
-                }
-            } else if (c == '+' && !inQuotes) {
-                if (current.length() > 0) {
-                    String part = current.toString().trim();
-                    if (!part.isEmpty()) {
-                        if (context.hasVariable(part)) {
-                            result.append(formatValue(context.getVariable(part)));
+
+        // ----- output -----
+
+        private void error(String message) {
+            errors.add(sourcePath + ":" + (line + 1) + ": " + message);
+        }
+
+        private static void emit(StringBuilder out, int depth, String code) {
+            for (int i = 0; i < depth; i++) {
+                out.append("    ");
+            }
+            out.append(code).append('\n');
+        }
+
+        /** Java string literal; non-ASCII characters are written as \\u escapes. */
+        private static String quote(String value) {
+            StringBuilder sb = new StringBuilder("\"");
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"': sb.append("\\\""); break;
+                    case '\\': sb.append("\\\\"); break;
+                    case '\n': sb.append("\\n"); break;
+                    case '\r': sb.append("\\r"); break;
+                    case '\t': sb.append("\\t"); break;
+                    default:
+                        if (c < 0x20 || c > 0x7e) {
+                            sb.append(String.format("\\u%04x", (int) c));
                         } else {
-                            try {
-                                result.append(evaluateNumericExpression(part, context));
-                            } catch (Exception e) {
-                                result.append(part);
-                            }
+                            sb.append(c);
                         }
-                    }
-                    current = new StringBuilder();
                 }
-            } else {
-                current.append(c);
             }
+            return sb.append('"').toString();
         }
-        
-        if (current.length() > 0) {
-            String part = current.toString().trim();
-            if (!part.isEmpty() && !part.equals("+")) {
-                if (context.hasVariable(part)) {
-                    result.append(formatValue(context.getVariable(part)));
-                } else {
-                    try {
-                        result.append(evaluateNumericExpression(part, context));
-                    } catch (Exception e) {
-                        result.append(part);
-                    }
+    }
+
+    /**
+     * Entry points used by the code AotCompiler generates.
+     */
+    static final class AotRuntime {
+        static Scope scope(String name, Scope global, String... names) {
+            Scope scope = new Scope(name, global);
+            for (String variable : names) {
+                scope.define(variable);
+            }
+            if (global != null) {
+                scope.link();
+            }
+            return scope;
+        }
+
+        static void define(ExecutionContext frame, String name, Scope scope, CompiledBody body,
+                           boolean remembered, String... parameters) {
+            Function function = new Function(name, Arrays.asList(parameters), new Statement[0], scope, remembered);
+            function.compiledBody = body;
+            frame.runtime.define(function);
+        }
+
+        static void assign(ExecutionContext frame, int slot, Expression value) throws LexiException {
+            Lexi.assign(frame, slot, value);
+        }
+
+        static void display(ExecutionContext frame, Object value) {
+            frame.runtime.out.println(formatValue(value));
+        }
+
+        static void run(Scope global, CompiledBody program, String... args) {
+            LexiRuntime runtime = new LexiRuntime(new InputStreamReader(System.in), OutputBuffer.standardOutput());
+            for (String arg : args) {
+                if (arg.equals("--decimal")) {
+                    runtime.decimal = true;
+                } else if (arg.startsWith("--max-depth=")) {
+                    runtime.maxCallDepth = positiveOption(arg);
+                }
+            }
+            try {
+                program.execute(new ExecutionContext(global, runtime));
+                TaskScope.close(runtime);
+                runtime.out.flush();
+            } catch (LexiException e) {
+                TaskScope.cancel(runtime);
+                runtime.out.flush();
+                if (e.line < 0) {
+                    e.line = runtime.currentLine;
                 }
+                displayError(runtime, e);
             }
         }
-        
-        return result.toString();
-    }
-    
-    private static int evaluateNumericExpression(String expr, ExecutionContext context) 
-            throws LexiException {
-        
-        expr = expr.trim();
-        if (expr.isEmpty()) return 0;
-        
-        Parser parser = new Parser(expr, context);
-        return parser.parseExpression();
     }
-    
+
     // ============================================================
-    // EXPRESSION PARSER (with proper precedence)
+    // NUMBERS
     // ============================================================
     
-    static class Parser {
-        private String expr;
-        private int pos;
-        private ExecutionContext context;
+    /**
+     * The numeric tower: whole numbers are Integer (or Long once they
+     * outgrow an int), fractions are Double, or BigDecimal in decimal
+     * mode. Whole-number arithmetic is exact; a result that is not a
+     * whole number, or does not fit a long, moves up to a fraction
+     * instead of being truncated or wrapping around.
+     */
+    static final class Numbers {
+        // Digits kept by a decimal-mode division that does not come out exact
+        private static final MathContext DIVISION = MathContext.DECIMAL128;
         
-        Parser(String expr, ExecutionContext context) {
-            this.expr = expr;
-            this.pos = 0;
-            this.context = context;
-        }
+        // Thrown by the unboxed fast path when a value is not a whole long
+        static final ArithmeticException NOT_WHOLE = new ArithmeticException("not a whole number");
         
-        int parseExpression() throws LexiException {
-            int result = parseTerm();
-            
-            while (pos < expr.length()) {
-                skipWhitespace();
-                if (pos >= expr.length()) break;
-                
-                char op = expr.charAt(pos);
-                if (op == '+') {
-                    pos++;
-                    result += parseTerm();
-                } else if (op == '-') {
-                    pos++;
-                    result -= parseTerm();
-                } else {
-                    break;
-                }
-            }
-            
-            return result;
+        /** A whole number, boxed as an Integer while it fits one. */
+        static Object whole(long value) {
+            return (value == (int) value) ? (Object) Integer.valueOf((int) value) : (Object) Long.valueOf(value);
         }
         
-        int parseTerm() throws LexiException {
-            int result = parseFactor();
-            
-            while (pos < expr.length()) {
-                skipWhitespace();
-                if (pos >= expr.length()) break;
-                
-                char op = expr.charAt(pos);
-                if (op == '*') {
-                    pos++;
-                    result *= parseFactor();
-                } else if (op == '/') {
-                    pos++;
-                    int divisor = parseFactor();
-                    if (divisor == 0) {
-                        throw new LexiException("Division by zero");
-                    }
-                    result /= divisor;
-                } else if (op == '%') {
-                    pos++;
-                    result %= parseFactor();
-                } else {
-                    break;
-                }
-            }
-            
-            return result;
+        static boolean isNumber(Object value) {
+            return value instanceof Integer || value instanceof Long ||
+                   value instanceof Double || value instanceof BigDecimal;
         }
         
-        int parseFactor() throws LexiException {
-            skipWhitespace();
-            
-            if (pos < expr.length() && expr.charAt(pos) == '-') {
-                pos++;
-                return -parsePrimary();
-            }
-            
-            int result = parsePrimary();
-            
-            skipWhitespace();
-            if (pos < expr.length() && expr.charAt(pos) == '^') {
-                pos++;
-                int exponent = parseFactor();
-                result = (int) Math.pow(result, exponent);
-            }
-            
-            return result;
+        static boolean isWhole(Object value) {
+            return value instanceof Integer || value instanceof Long;
         }
         
-        int parsePrimary() throws LexiException {
-            skipWhitespace();
-            
-            if (pos < expr.length() && expr.charAt(pos) == '(') {
-                pos++;
-                int result = parseExpression();
-                skipWhitespace();
-                if (pos < expr.length() && expr.charAt(pos) == ')') {
-                    pos++;
+        /** Text such as "42", "-7" or "2.5" as a number, or null if it is not one. */
+        static Object parse(String text, boolean decimal) {
+            int digits = 0;
+            int point = -1;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c >= '0' && c <= '9') {
+                    digits++;
+                } else if (c == '.' && point < 0 && digits > 0) {
+                    point = i;
+                } else if (i > 0 || (c != '-' && c != '+')) {
+                    return null;
                 }
-                return result;
             }
-            
-            StringBuilder sb = new StringBuilder();
-            while (pos < expr.length()) {
-                char c = expr.charAt(pos);
-                if (Character.isLetterOrDigit(c) || c == '_') {
-                    sb.append(c);
-                    pos++;
-                } else {
-                    break;
+            if (digits == 0 || point == text.length() - 1) {
+                return null;
+            }
+            if (point < 0) {
+                try {
+                    return whole(Long.parseLong(text));
+                } catch (NumberFormatException e) {
+                    // too big for a long: read as a fraction
                 }
             }
-            
-            String token = sb.toString();
-            if (token.isEmpty()) {
-                throw new LexiException("Unexpected character at position " + pos);
+            return decimal ? (Object) new BigDecimal(text) : (Object) Double.parseDouble(text);
+        }
+        
+        /** A value used in arithmetic as a number; text is converted. */
+        static Object toNumber(Object value, boolean decimal) throws LexiException {
+            if (isNumber(value)) {
+                return value;
             }
-            
-            try {
-                return Integer.parseInt(token);
-            } catch (NumberFormatException e) {
-                if (!context.hasVariable(token)) {
-                    throw new LexiException("Variable '" + token + "' not defined");
+            if (value instanceof String) {
+                Object number = parse((String) value, decimal);
+                if (number != null) {
+                    return number;
                 }
-                return toInt(context.getVariable(token));
+                throw new LexiException("Cannot convert string to number: " + value);
             }
+            throw new LexiException("Invalid number value: " + value);
         }
         
-        void skipWhitespace() {
-            while (pos < expr.length() && Character.isWhitespace(expr.charAt(pos))) {
-                pos++;
+        /**
+         * Whole-number arithmetic on longs. Throws ArithmeticException when
+         * the result is not a long: on overflow, for a '/' that leaves a
+         * remainder and for a negative power.
+         */
+        static long exact(char operator, long l, long r) throws LexiException {
+            switch (operator) {
+                case '+': return Math.addExact(l, r);
+                case '-': return Math.subtractExact(l, r);
+                case '*': return Math.multiplyExact(l, r);
+                case '/':
+                    if (r == 0) {
+                        throw new LexiException("Division by zero");
+                    }
+                    if (l % r != 0 || (l == Long.MIN_VALUE && r == -1)) {
+                        throw NOT_WHOLE;
+                    }
+                    return l / r;
+                case '%':
+                    if (r == 0) {
+                        throw new LexiException("Division by zero");
+                    }
+                    return l % r;
+                default:
+                    return power(l, r);
             }
         }
-    }
-    
-    // ============================================================
-    // BLOCK HANDLING
-    // ============================================================
-    
-    private static int findBlockEnd(List<String> code, int startLine, int maxLine) {
-        int depth = 0;
         
-        for (int i = startLine; i < maxLine; i++) {
-            String line = code.get(i).trim().toLowerCase();
-            
-            if (line.startsWith("if ") || line.startsWith("while ") || 
-                line.startsWith("for ") || line.startsWith("function ") ||
-                line.startsWith("define function")) {
-                depth++;
+        /** base^exponent by repeated squaring, with overflow checked. */
+        static long power(long base, long exponent) {
+            if (exponent < 0) {
+                throw NOT_WHOLE;
             }
-            
-            if (line.equals("end") || line.equals("done") || line.equals("finish")) {
-                depth--;
-                if (depth == 0) {
-                    return i;
+            long result = 1;
+            while (exponent > 0) {
+                if ((exponent & 1) != 0) {
+                    result = Math.multiplyExact(result, base);
+                }
+                exponent >>= 1;
+                if (exponent > 0) {
+                    base = Math.multiplyExact(base, base);
                 }
             }
+            return result;
         }
         
-        return maxLine;
-    }
-    
-    private static boolean isIfStatement(String line) {
-        return line.trim().toLowerCase().startsWith("if ");
-    }
-    
-    private static int handleIfBlock(List<String> code, int startLine, int maxLine, 
-                                    ExecutionContext context) throws LexiException {
-        
-        String condition = code.get(startLine).substring(3).trim();
-        boolean conditionMet = evaluateCondition(condition, context);
-        
-        int blockEnd = findBlockEnd(code, startLine, maxLine);
-        int elseifLine = -1;
-        int elseLine = -1;
-        
-        int depth = 0;
-        for (int i = startLine; i <= blockEnd; i++) {
-            String line = code.get(i).trim().toLowerCase();
+        /** left operator right for any two numbers (or numeric text). */
+        static Object arithmetic(char operator, Object left, Object right, boolean decimal) throws LexiException {
+            Object l = toNumber(left, decimal);
+            Object r = toNumber(right, decimal);
             
-            if (line.startsWith("if ") || line.startsWith("while ") || 
-                line.startsWith("for ") || line.startsWith("function ")) {
-                depth++;
+            if (isWhole(l) && isWhole(r)) {
+                try {
+                    return whole(exact(operator, ((Number) l).longValue(), ((Number) r).longValue()));
+                } catch (ArithmeticException e) {
+                    // a fraction or beyond a long
+                }
+            } else if ((operator == '/' || operator == '%') && ((Number) r).doubleValue() == 0) {
+                throw new LexiException("Division by zero");
             }
             
-            if (line.equals("end")) {
-                depth--;
+            if (decimal || l instanceof BigDecimal || r instanceof BigDecimal) {
+                return decimalArithmetic(operator, toBigDecimal(l), toBigDecimal(r));
             }
-            
-            if (depth == 1) {
-                if (line.startsWith("elseif ") && elseifLine == -1) {
-                    elseifLine = i;
-                }
-                if (line.equals("else") && elseLine == -1) {
-                    elseLine = i;
-                }
+            double a = ((Number) l).doubleValue();
+            double b = ((Number) r).doubleValue();
+            switch (operator) {
+                case '+': return a + b;
+                case '-': return a - b;
+                case '*': return a * b;
+                case '/': return a / b;
+                case '%': return a % b;
+                default: return Math.pow(a, b);
             }
         }
         
-        if (conditionMet) {
-            int ifEnd = (elseifLine != -1) ? elseifLine : (elseLine != -1) ? elseLine : blockEnd;
-            executeBlock(code, startLine + 1, ifEnd, context);
-        } else if (elseifLine != -1) {
-            return handleIfBlock(code, elseifLine, maxLine, context);
-        } else if (elseLine != -1) {
-            executeBlock(code, elseLine + 1, blockEnd, context);
+        private static Object decimalArithmetic(char operator, BigDecimal l, BigDecimal r) {
+            switch (operator) {
+                case '+': return l.add(r);
+                case '-': return l.subtract(r);
+                case '*': return l.multiply(r);
+                case '/': return l.divide(r, DIVISION);
+                case '%': return l.remainder(r);
+                default:
+                    // Whole exponents stay decimal; anything else is a double's worth of digits
+                    if (r.stripTrailingZeros().scale() <= 0 && r.abs().compareTo(BigDecimal.valueOf(999999999)) <= 0) {
+                        return l.pow(r.intValue(), DIVISION);
+                    }
+                    return new BigDecimal(Math.pow(l.doubleValue(), r.doubleValue()), MathContext.DECIMAL64);
+            }
         }
         
-        return blockEnd + 1;
-    }
-    
-    private static boolean isWhileStatement(String line) {
-        String lower = line.trim().toLowerCase();
-        return lower.startsWith("while ") || lower.startsWith("repeat ");
-    }
-    
-    private static int handleWhileBlock(List<String> code, int startLine, int maxLine, 
-                                       ExecutionContext context) throws LexiException {
-        
-        String firstWord = code.get(startLine).trim().split("\\s+")[0].toLowerCase();
-        String condition = code.get(startLine).substring(firstWord.length()).trim();
-        
-        int blockEnd = findBlockEnd(code, startLine, maxLine);
-        
-        while (evaluateCondition(condition, context)) {
-            executeBlock(code, startLine + 1, blockEnd, context);
+        private static BigDecimal toBigDecimal(Object number) {
+            if (number instanceof BigDecimal) {
+                return (BigDecimal) number;
+            }
+            if (isWhole(number)) {
+                return BigDecimal.valueOf(((Number) number).longValue());
+            }
+            return BigDecimal.valueOf(((Number) number).doubleValue());
         }
         
-        return blockEnd + 1;
-    }
-    
-    private static boolean isForStatement(String line) {
-        String lower = line.trim().toLowerCase();
-        return lower.startsWith("for ") || lower.startsWith("loop ");
-    }
-    
-    private static int handleForBlock(List<String> code, int startLine, int maxLine, 
-                                     ExecutionContext context) throws LexiException {
-        
-        String line = code.get(startLine);
-        Pattern p = Pattern.compile(
-            "(?:for|loop)\\s+(\\w+)\\s+from\\s+(\\w+|\\d+)\\s+to\\s+(\\w+|\\d+)",
-            Pattern.CASE_INSENSITIVE
-        );
-        
-        Matcher m = p.matcher(line);
-        if (!m.find()) {
-            throw new LexiException("Invalid for loop syntax");
+        static Object negate(Object value, boolean decimal) throws LexiException {
+            return arithmetic('-', 0, value, decimal);
         }
         
-        String varName = m.group(1);
-        int start = toInt(evaluateExpression(m.group(2), context));
-        int end = toInt(evaluateExpression(m.group(3), context));
-        
-        int blockEnd = findBlockEnd(code, startLine, maxLine);
-        
-        for (int i = start; i <= end; i++) {
-            context.setVariable(varName, i);
-            executeBlock(code, startLine + 1, blockEnd, context);
+        /** Compare two numbers by value, like Long.compare. */
+        static int compare(Object l, Object r) {
+            if (isWhole(l) && isWhole(r)) {
+                return Long.compare(((Number) l).longValue(), ((Number) r).longValue());
+            }
+            if (l instanceof BigDecimal || r instanceof BigDecimal) {
+                return toBigDecimal(l).compareTo(toBigDecimal(r));
+            }
+            return Double.compare(((Number) l).doubleValue(), ((Number) r).doubleValue());
         }
         
-        return blockEnd + 1;
-    }
-    
-    private static boolean evaluateCondition(String condition, ExecutionContext context) 
-            throws LexiException {
-        
-        condition = condition.trim();
-        
-        String[] operators = {"==", "!=", ">=", "<=", ">", "<"};
-        
-        for (String op : operators) {
-            if (condition.contains(op)) {
-                String[] parts = condition.split(Pattern.quote(op), 2);
-                String leftStr = parts[0].trim();
-                String rightStr = parts[1].trim();
-                
-                Object left = evaluateExpression(leftStr, context);
-                Object right = evaluateExpression(rightStr, context);
-                
-                if (left instanceof Integer && right instanceof Integer) {
-                    int l = (Integer) left;
-                    int r = (Integer) right;
-                    
-                    switch (op) {
-                        case "==": return l == r;
-                        case "!=": return l != r;
-                        case ">": return l > r;
-                        case "<": return l < r;
-                        case ">=": return l >= r;
-                        case "<=": return l <= r;
-                    }
-                }
-                
-                if (left instanceof String || right instanceof String) {
-                    String l = left.toString();
-                    String r = right.toString();
-                    
-                    switch (op) {
-                        case "==": return l.equals(r);
-                        case "!=": return !l.equals(r);
-                    }
-                }
+        /** A fraction as plain digits ("0.0041", "12500000.5"), never in E notation. */
+        static String format(Object number) {
+            if (number instanceof BigDecimal) {
+                return ((BigDecimal) number).toPlainString();
+            }
+            double value = (Double) number;
+            double magnitude = Math.abs(value);
+            if (Double.isNaN(value) || Double.isInfinite(value) || (magnitude != 0 && magnitude < 1e-6) || magnitude >= 1e18) {
+                return Double.toString(value);
             }
+            String text = BigDecimal.valueOf(value).toPlainString();
+            return (text.indexOf('.') < 0) ? text + ".0" : text;   // still reads as a fraction
         }
-        
-        return false;
-    }
-    
-    private static boolean isBlockEnd(String line) {
-        String lower = line.trim().toLowerCase();
-        return lower.equals("end") || lower.equals("done") || lower.equals("finish");
     }
     
     // ============================================================
@@ -1210,49 +7674,69 @@ public class Lexi {
         if (value instanceof Integer) {
             return (Integer) value;
         }
-        if (value instanceof String) {
+        return toInt(toLong(value));
+    }
+    
+    private static int toInt(long value) throws LexiException {
+        if (value != (int) value) {
+            throw new LexiException("Number too large: " + value);
+        }
+        return (int) value;
+    }
+    
+    /** A whole number; text is converted, fractions are an error. */
+    private static long toLong(Object value) throws LexiException {
+        Object number = Numbers.toNumber(value, false);
+        if (Numbers.isWhole(number)) {
+            return ((Number) number).longValue();
+        }
+        if (number instanceof BigDecimal) {
             try {
-                return Integer.parseInt((String) value);
-            } catch (NumberFormatException e) {
-                throw new LexiException("Cannot convert string to number: " + value);
+                return ((BigDecimal) number).longValueExact();
+            } catch (ArithmeticException e) {
+                // reported below
+            }
+        } else {
+            double fraction = (Double) number;
+            if (fraction == Math.rint(fraction) && Math.abs(fraction) < 0x1p63) {
+                return (long) fraction;
             }
         }
-        throw new LexiException("Invalid number value: " + value);
+        throw new LexiException("Expected a whole number: " + formatValue(number));
     }
     
     private static String formatValue(Object value) {
-        if (value instanceof ArrayList) {
-            @SuppressWarnings("unchecked")
-            ArrayList<Object> list = (ArrayList<Object>) value;
-            if (list.isEmpty()) {
-                return "[]";
-            }
-            StringBuilder sb = new StringBuilder("[");
-            for (int i = 0; i < list.size(); i++) {
-                if (i > 0) sb.append(", ");
-                sb.append(formatValue(list.get(i)));
-            }
-            sb.append("]");
+        if (value instanceof LexiList) {
+            StringBuilder sb = new StringBuilder();
+            ((LexiList) value).appendTo(sb);
             return sb.toString();
         }
+        if (value instanceof Double || value instanceof BigDecimal) {
+            return Numbers.format(value);
+        }
         return value.toString();
     }
     
-    private static void displayError(LexiException e) {
-        System.err.println("\n❌ Error:");
-        System.err.println(e.getMessage());
-        System.err.println();
+    private static void displayError(LexiRuntime runtime, LexiException e) {
+        runtime.out.flush();
+        PrintWriter err = runtime.err;
+        err.println("\n❌ Error:");
+        err.println(e.getMessage());
+        err.println();
         
-        if (debugMode && currentLine < program.size()) {
-            System.err.println("At line:");
+        int currentLine = runtime.currentLine;
+        List<String> program = runtime.program;
+        if (runtime.debugMode && currentLine < program.size()) {
+            err.println("At line:");
             int start = Math.max(0, currentLine - 2);
             int end = Math.min(program.size(), currentLine + 3);
             
             for (int i = start; i < end; i++) {
                 String marker = (i == currentLine) ? ">>> " : "    ";
-                System.err.println(marker + (i + 1) + ": " + program.get(i));
+                err.println(marker + (i + 1) + ": " + program.get(i));
             }
-            System.err.println();
+            err.println();
         }
+        err.flush();
     }
 }